@@ -5,11 +5,13 @@ import com.beust.jcommander.Parameter;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import de.saar.coli.arranger.abc.AbcParser;
-import de.saar.coli.arranger.abc.AbcWriter;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
 import de.saar.coli.arranger.rules.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Arranges a melody and chords into a barbershop arrangement.
@@ -19,16 +21,49 @@ import java.util.*;
  * and voice leading decisions up to that point. This algorithm
  * runs in linear time in the length of the melody. The scores
  * for the voicings and voice leadings are determined by
- * the rules in the de.saar.coli.arranger.rules package.
+ * the rules in the de.saar.coli.arranger.rules package.<p>
+ *
+ * If one of the {@link SecondOrderVoiceLeadingRule}s is active in the
+ * configuration, the arranger remembers a pair of voicings, for the
+ * previous and the current note, instead of a single voicing. Pairs
+ * that cannot be part of the best arrangement because another
+ * pair with the same current voicing is better by more than the
+ * second-order rules can make up for are discarded right away.
  */
-public class Arrange {
+public class Arrange implements ArrangementEngine {
     private Config config;
+    private int beamWidth = 0;
+    private LatticeCache cache = null;
+    private PrefixCache prefixCache = null;
+    private boolean reuseRepeats = true;
+    private boolean collapseHeldNotes = false;
+    private boolean splitAtChordChanges = true;
+    private boolean coarseToFine = false;
+    private boolean factorizeTransitions = true;
+    private int finePasses = 0;
+    private int reusedColumns = 0;
+    private int computedColumns = 0;
+    private long skippedTransitions = 0;
+    private VoicingPrior voicingPrior = null;
+    private double priorRecall = 1;
+    private long prunedVoicings = 0;
+
+    // repeated sections must have at least this many notes to be reused
+    private static final int MIN_REPEAT_LENGTH = 4;
+
+    // the number of voicings per note that the first fine pass considers
+    private static final int COARSE_HYPOTHESES = 8;
 
     private static final VoiceLeadingRule[] VOICE_LEADING_RULES = {
             new LdHarmonyLeaps(),
             new LdParallelOctaves()
     };
 
+    private static final SecondOrderVoiceLeadingRule[] SECOND_ORDER_RULES = {
+            new LdConsecutiveLeaps(),
+            new LdUnresolvedLeaps()
+    };
+
     private static final VoicingRule[] VOICING_RULES = {
             new VoUseAllChordNotes(),
             new VoBassLowest(),
@@ -41,7 +76,315 @@ public class Arrange {
         this.config = config;
     }
 
-    public static void main(String[] args) throws IOException, AbcParser.AbcParsingException {
+    /**
+     * Returns the voicing rules that the arranger uses.
+     *
+     * @return
+     */
+    public static List<VoicingRule> getVoicingRules() {
+        return List.of(VOICING_RULES);
+    }
+
+    /**
+     * Returns the voice leading rules that the arranger uses.
+     *
+     * @return
+     */
+    public static List<VoiceLeadingRule> getVoiceLeadingRules() {
+        return List.of(VOICE_LEADING_RULES);
+    }
+
+    /**
+     * Returns the second-order voice leading rules that the arranger uses
+     * if they are active in the configuration.
+     *
+     * @return
+     */
+    public static List<SecondOrderVoiceLeadingRule> getSecondOrderVoiceLeadingRules() {
+        return List.of(SECOND_ORDER_RULES);
+    }
+
+    /**
+     * Returns the largest difference that the second-order rules can make
+     * between two triples of consecutive voicings, as a negative number:
+     * the lowest total score they can assign minus the highest one.
+     * This is zero if none of the rules is active in the given configuration.
+     *
+     * @param config
+     * @return
+     */
+    static int getSecondOrderBound(Config config) {
+        return getSecondOrderLowestScore(config) - getSecondOrderHighestScore(config);
+    }
+
+    private static int getSecondOrderLowestScore(Config config) {
+        int ret = 0;
+
+        for (SecondOrderVoiceLeadingRule rule : SECOND_ORDER_RULES) {
+            ret += Math.min(0, rule.getLowestScore(config));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the highest total score that the second-order rules
+     * can assign to three consecutive voicings; zero if all of them are penalties.
+     *
+     * @param config
+     * @return
+     */
+    static int getSecondOrderHighestScore(Config config) {
+        int ret = 0;
+
+        for (SecondOrderVoiceLeadingRule rule : SECOND_ORDER_RULES) {
+            ret += Math.max(0, rule.getHighestScore(config));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Limits the number of voicings that are kept for each note
+     * of the melody to the given beam width. Only the voicings
+     * with the highest scores so far are kept. This makes arranging
+     * faster for long songs or wide voice ranges, but the arrangement
+     * that is found is no longer guaranteed to be the best one.
+     * A beam width of zero (the default) means that all voicings are kept.
+     *
+     * @param beamWidth
+     */
+    public void setBeamWidth(int beamWidth) {
+        this.beamWidth = beamWidth;
+    }
+
+    /**
+     * Returns the beam width, or zero if all voicings are kept.
+     * See {@link #setBeamWidth(int)}.
+     *
+     * @return
+     */
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+
+    /**
+     * Sets the cache for voicing and voice leading scores that
+     * the arranger uses. Sharing a cache between arrangers
+     * makes it faster to arrange songs that have a lot in common,
+     * e.g. the same song in different keys. If no cache is set, or the
+     * cache is not compatible with the configuration of this arranger,
+     * each call to {@link #arrange(Score)} uses a fresh cache.
+     *
+     * @param cache
+     */
+    public void setCache(LatticeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Specifies whether the arranger reuses its computations for repeated
+     * sections of the song (the default). Songs in AABA form repeat their
+     * A sections almost literally, and the arranger detects such repetitions
+     * with {@link ColumnarScore#findRepeats(int, int)}. During the repetition,
+     * the best scores of the voicings of each note are computed as usual,
+     * until they only differ from those at the same point of the earlier occurrence
+     * by a constant. From then on, the best voicings for all following notes of
+     * the repetition are those of the earlier occurrence, with
+     * their scores shifted by the same constant, and the arranger
+     * reuses them instead of recomputing them. Usually this happens a few
+     * notes into the repetition, once the different voicings at the
+     * start of the repetition no longer make a difference for the best
+     * way to continue. Different voicings for the start and end of
+     * the repetition remain possible. The arrangement that is found is the
+     * same as without reusing computations.
+     *
+     * @param reuseRepeats
+     */
+    public void setReuseRepeats(boolean reuseRepeats) {
+        this.reuseRepeats = reuseRepeats;
+    }
+
+    /**
+     * Specifies whether the arranger splits melody notes during which the
+     * chord changes (the default). Each part of such a note is then arranged
+     * separately, with a voicing of its own chord, so the harmony parts can
+     * move under the sustained melody note, e.g. for a swipe; see
+     * {@link Score#splitAtChordChanges()}. The melody is not split in the
+     * arrangement, and harmony parts that do not move under a melody note
+     * sustain their note. Otherwise, each melody note is arranged for the
+     * chord at its onset, and later chords during the note are ignored.
+     *
+     * @param splitAtChordChanges
+     */
+    public void setSplitAtChordChanges(boolean splitAtChordChanges) {
+        this.splitAtChordChanges = splitAtChordChanges;
+    }
+
+    public boolean isSplitAtChordChanges() {
+        return splitAtChordChanges;
+    }
+
+    /**
+     * Specifies whether the arranger first arranges the song on a coarse lattice,
+     * in which the voicings only specify the pitch classes of the parts and not
+     * their octaves; see {@link PitchClassLattice}. The coarse lattice yields an
+     * upper bound for the score of any arrangement that uses a given
+     * voicing. The arranger then arranges the song with only the few
+     * voicings with the best bounds for each note. If no other voicing has a bound
+     * that is at least as high as the score of this arrangement, the arrangement
+     * is the best one. Otherwise, the arranger arranges the song again with all the
+     * voicings whose bound is high enough, which is usually still a small part
+     * of all voicings. Either way, the arrangement has the same score as without
+     * the coarse lattice. This is off by default, because the bounds are
+     * only tight enough to save time for songs with few penalties.
+     * The {@link PrefixCache} is not used, and repeated sections are not reused.
+     *
+     * @param coarseToFine
+     */
+    public void setCoarseToFine(boolean coarseToFine) {
+        this.coarseToFine = coarseToFine;
+    }
+
+    /**
+     * Specifies whether the arranger exploits that the voice leading rules
+     * only depend on a few features of the voicings (see {@link DecomposableVoiceLeadingRule}).
+     * If so, the voicings of two consecutive notes are grouped by their features,
+     * and the best predecessor is computed once for each group instead of comparing
+     * each voicing with each voicing of the previous note. Only the best backpointer
+     * of each voicing is kept. The arrangement is the same either way. This is on by default;
+     * it has no effect if some voice leading rule is not decomposable or second-order rules are active.
+     *
+     * @param factorizeTransitions
+     */
+    public void setFactorizeTransitions(boolean factorizeTransitions) {
+        this.factorizeTransitions = factorizeTransitions;
+    }
+
+    /**
+     * Only considers the most frequent voicing shapes of the given prior
+     * for each note, which together cover the given fraction of the voicings
+     * in the corpus from which the prior was learned; see {@link VoicingPrior}. The other
+     * voicings are dropped before any rule is applied to them. If all valid voicings of
+     * a note are dropped, the note is arranged without the prior. The arrangement
+     * may then be worse than without the prior; the {@link de.saar.coli.arranger.corpus.VoicingPriorLearner}
+     * reports how often this happens for a given recall. The {@link PrefixCache} is not
+     * used with a prior. Pass null to arrange without a prior, which is the default.
+     *
+     * @param prior
+     * @param recall
+     */
+    public void setVoicingPrior(VoicingPrior prior, double recall) {
+        this.voicingPrior = prior;
+        this.priorRecall = recall;
+    }
+
+    /**
+     * Returns the number of voicings in the last call to {@link #arrange(Score)}
+     * that were dropped because their shape is rare in the voicing prior
+     * (see {@link #setVoicingPrior(VoicingPrior, double)}).
+     *
+     * @return
+     */
+    public long getPrunedVoicings() {
+        return prunedVoicings;
+    }
+
+    // the settings on which the columns of the Viterbi algorithm depend, besides the configuration
+    List<Object> getColumnSettings() {
+        return Arrays.asList(beamWidth, voicingPrior, priorRecall);
+    }
+
+    /**
+     * Returns the number of times the full lattice was searched in the last call
+     * to {@link #arrange(Score)} with a coarse lattice (see {@link #setCoarseToFine(boolean)}):
+     * 1 if the bounds showed that the first arrangement is the best one, and 2 otherwise.
+     * Returns 0 if no coarse lattice was used.
+     *
+     * @return
+     */
+    public int getFinePasses() {
+        return finePasses;
+    }
+
+    /**
+     * Specifies whether the arranger collapses consecutive melody notes with
+     * the same pitch under the same chord, e.g. several syllables sung on one
+     * note, into a single column of the lattice. The harmony parts then repeat
+     * their notes for each melody note of such a run. The voicing score of the
+     * collapsed column is counted once for each note of the run, together with
+     * the voice leading scores between the repeated voicings, so the score of
+     * the arrangement is the same as if it had been arranged note by note.
+     * However, the arranger can no longer change the voicing within a run, so
+     * the arrangement may be worse than without collapsing, which is why
+     * this is off by default. Songs are not collapsed if second-order rules
+     * are active, and the {@link PrefixCache} is not used for collapsed songs.
+     *
+     * @param collapseHeldNotes
+     */
+    public void setCollapseHeldNotes(boolean collapseHeldNotes) {
+        this.collapseHeldNotes = collapseHeldNotes;
+    }
+
+    /**
+     * Returns the number of notes in the last call to {@link #arrange(Score)}
+     * for which the voicings and scores were copied from an earlier
+     * occurrence in a repetition; see {@link #setReuseRepeats(boolean)}.
+     *
+     * @return
+     */
+    public int getReusedColumns() {
+        return reusedColumns;
+    }
+
+    /**
+     * Sets the cache in which the arranger looks up and stores the columns
+     * for the beginnings of songs; see {@link PrefixCache}. By default,
+     * there is no such cache.
+     *
+     * @param prefixCache
+     */
+    public void setPrefixCache(PrefixCache prefixCache) {
+        this.prefixCache = prefixCache;
+    }
+
+    /**
+     * Returns the number of transitions in the last call to {@link #arrange(Score)}
+     * that were not scored because they could not lead to the best score of
+     * the next voicing. To find the best predecessor of a voicing, the arranger
+     * looks at the voicings of the previous note in the order of their scores, and stops
+     * as soon as even a transition with the highest possible voice leading score
+     * (see {@link VoiceLeadingRule#getHighestScore(Config)}) could not beat the
+     * best predecessor so far. With factorized transitions (see {@link #setFactorizeTransitions(boolean)}),
+     * this counts pairs of groups of voicings. Transitions are not skipped if
+     * second-order rules are active.
+     *
+     * @return
+     */
+    public long getSkippedTransitions() {
+        return skippedTransitions;
+    }
+
+    /**
+     * Returns the number of notes in the last call to {@link #arrange(Score)}
+     * for which the voicings and scores were computed, rather than
+     * taken from a cache or an earlier occurrence in a repetition.
+     *
+     * @return
+     */
+    public int getComputedColumns() {
+        return computedColumns;
+    }
+
+    private LatticeCache getCache() {
+        if (cache != null && cache.isCompatible(config)) {
+            return cache;
+        } else {
+            return new LatticeCache(config);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, AbcParser.AbcParsingException, InterruptedException, ExecutionException {
         Args arguments = new Args();
         JCommander jc = JCommander.newBuilder().addObject(arguments).build();
         jc.parse(args);
@@ -51,19 +394,47 @@ public class Arrange {
             System.exit(0);
         }
 
+        if( ! arguments.profiles.isEmpty() ) {
+            arrangeProfiles(arguments);
+            return;
+        }
+
         Config config = loadConfig(arguments.configFilename);
 
+        if( arguments.engine != null ) {
+            config.setEngine(arguments.engine);
+        }
+
         System.out.printf("Reading melody and chords from: %s\n", arguments.inputFilename);
         System.out.printf("Writing arrangement to: %s\n\n", arguments.outputFilename);
 
         Score score = new AbcParser().read(new FileReader(arguments.inputFilename));
-        Arrange arranger = new Arrange(config);
-        Arrangement bestArrangement = arranger.arrange(score);
+        Arrangement bestArrangement;
+
+        if( arguments.bestKey ) {
+            List<KeySearch.Result> results = new KeySearch(config).search(score);
+            printKeyRanking(results);
+            bestArrangement = results.get(0).getArrangement();
+        } else {
+            ArrangementEngine arranger = ArrangementEngine.create(config);
+
+            if( arranger instanceof Arrange ) {
+                ((Arrange) arranger).setCollapseHeldNotes(arguments.collapseHeldNotes);
+
+                if( arguments.voicingPriorFilename != null ) {
+                    try (Reader r = new FileReader(arguments.voicingPriorFilename)) {
+                        ((Arrange) arranger).setVoicingPrior(VoicingPrior.read(r), arguments.priorRecall);
+                    }
+                }
+            }
+
+            bestArrangement = arranger.arrange(score);
+        }
 
         if( bestArrangement == null ) {
             System.out.println("Could not find a valid arrangement.");
         } else {
-            AbcWriter abcw = new AbcWriter(config);
+            StreamingAbcWriter abcw = new StreamingAbcWriter(config);
             FileWriter fw = new FileWriter(arguments.outputFilename);
             abcw.write(bestArrangement.getArrangement(), fw);
             fw.flush();
@@ -71,6 +442,72 @@ public class Arrange {
         }
     }
 
+    // arranges the input file for each profile, and writes each arrangement to its own file
+    private static void arrangeProfiles(Args arguments) throws IOException, AbcParser.AbcParsingException, InterruptedException, ExecutionException {
+        List<Config> profiles = new ArrayList<>();
+        for (String profile : arguments.profiles) {
+            profiles.add(loadConfig(profile));
+        }
+
+        System.out.printf("Reading melody and chords from: %s\n\n", arguments.inputFilename);
+        Score score = new AbcParser().read(new FileReader(arguments.inputFilename));
+        List<Arrangement> arrangements = new MultiProfileArranger(profiles).arrange(score);
+
+        for (int i = 0; i < profiles.size(); i++) {
+            String outputFilename = getProfileOutputFilename(arguments.outputFilename, arguments.profiles.get(i));
+
+            if( arrangements.get(i) == null ) {
+                System.out.printf("Could not find a valid arrangement for %s.\n", arguments.profiles.get(i));
+            } else {
+                System.out.printf("Writing arrangement for %s to: %s\n", arguments.profiles.get(i), outputFilename);
+                try (FileWriter fw = new FileWriter(outputFilename)) {
+                    new StreamingAbcWriter(profiles.get(i)).write(arrangements.get(i).getArrangement(), fw);
+                }
+            }
+        }
+    }
+
+    // arranged.abc + examples/female.yaml -> arranged-female.abc
+    static String getProfileOutputFilename(String outputFilename, String profile) {
+        String profileName = new File(profile).getName();
+        if( profileName.contains(".") ) {
+            profileName = profileName.substring(0, profileName.lastIndexOf('.'));
+        }
+
+        int extension = outputFilename.lastIndexOf('.');
+        if( extension <= outputFilename.lastIndexOf(File.separatorChar) ) {
+            return outputFilename + "-" + profileName;
+        } else {
+            return outputFilename.substring(0, extension) + "-" + profileName + outputFilename.substring(extension);
+        }
+    }
+
+    private static void printKeyRanking(List<KeySearch.Result> results) {
+        System.out.printf("\n%4s  %-4s  %6s  %7s", "Rank", "Key", "Transp", "Score");
+        for (String partName : VoicePart.PART_NAMES) {
+            System.out.printf("  %-16s", partName);
+        }
+        System.out.println();
+
+        for (int i = 0; i < results.size(); i++) {
+            KeySearch.Result result = results.get(i);
+            String score = result.getArrangement() == null ? "-" : Integer.toString(result.getScore());
+            System.out.printf("%4d  %-4s  %+6d  %7s", i + 1, result.getKey(), result.getTransposition(), score);
+
+            for (int part = 0; part < 4; part++) {
+                String range = result.getLowestNote(part) == null ? "-" : String.format("%s%d-%s%d %3.0f%%",
+                        Note.getNoteName(result.getLowestNote(part).getRelativeNote()), result.getLowestNote(part).getOctave(),
+                        Note.getNoteName(result.getHighestNote(part).getRelativeNote()), result.getHighestNote(part).getOctave(),
+                        100 * result.getRangeUsage(part));
+                System.out.printf("  %-16s", range);
+            }
+
+            System.out.println();
+        }
+
+        System.out.println();
+    }
+
     public static Config loadConfig(String configFilename) throws FileNotFoundException {
         if( configFilename != null && new File(configFilename).exists() ) {
             System.out.printf("Reading configuration from %s ...\n", configFilename);
@@ -81,53 +518,356 @@ public class Arrange {
         }
     }
 
+    @Override
     public Arrangement arrange(Score score) {
+        return arrange(ColumnarScore.of(score), score);
+    }
+
+    /**
+     * Arranges a score that is given in columnar form.
+     *
+     * @param score
+     * @return
+     */
+    public Arrangement arrange(ColumnarScore score) {
+        return arrange(score, score.toScore());
+    }
+
+    private Arrangement arrange(ColumnarScore score, Score original) {
+        if (splitAtChordChanges) {
+            Score split = original.splitAtChordChanges();
+
+            if (split.countNotes(VoicePart.LEAD) > original.countNotes(VoicePart.LEAD)) {
+                return joinSplitNotes(arrangeUnsplit(ColumnarScore.of(split), split), original);
+            }
+        }
+
+        return arrangeUnsplit(score, original);
+    }
+
+    private Arrangement arrangeUnsplit(ColumnarScore score, Score original) {
+        finePasses = 0;
+
+        if (collapseHeldNotes && getSecondOrderBound(config) == 0) {
+            return arrangeCollapsed(score, original);
+        } else if (coarseToFine) {
+            return arrangeCoarseToFine(score, original);
+        } else {
+            return arrange(score, original, null, null, new ArrayList<>());
+        }
+    }
+
+    // arranges the song on the coarse lattice first; see setCoarseToFine
+    private Arrangement arrangeCoarseToFine(ColumnarScore score, Score original) {
+        long startTime = System.nanoTime();
+        int n = score.countNotes(VoicePart.LEAD);
+        LatticeCache cache = getCache();
+        PitchClassLattice coarse = new PitchClassLattice(this, config, score, cache);
+
+        List<Set<Integer>> bestVoicings = new ArrayList<>();
+        for (int pos = 0; pos < n; pos++) {
+            bestVoicings.add(coarse.getBestVoicings(pos, COARSE_HYPOTHESES));
+        }
+
+        Arrangement arrangement = arrange(score, original, null, null, new ArrayList<>(), null, bestVoicings, cache);
+        finePasses = 1;
+
+        // a better arrangement could only use voicings whose bound is at least the score of this one
+        int minScore = arrangement == null ? Integer.MIN_VALUE : arrangement.getScore();
+        List<Set<Integer>> candidates = new ArrayList<>();
+        boolean certified = true;
+
+        for (int pos = 0; pos < n; pos++) {
+            candidates.add(coarse.getVoicingsAbove(pos, minScore));
+            certified = certified && bestVoicings.get(pos).containsAll(candidates.get(pos));
+        }
+
+        if (!certified) {
+            arrangement = arrange(score, original, null, null, new ArrayList<>(), null, candidates, cache);
+            finePasses = 2;
+        }
+
+        return arrangement == null ? null : new Arrangement(arrangement.getArrangement(), original, arrangement.getScore(), System.nanoTime() - startTime);
+    }
+
+    // arranges the song with runs of held notes collapsed into one column; see setCollapseHeldNotes
+    private Arrangement arrangeCollapsed(ColumnarScore score, Score original) {
+        int n = score.countNotes(VoicePart.LEAD);
+        List<Integer> runLengths = new ArrayList<>();
+        Score collapsed = original.cloneWithoutNotes();
+
+        for (int start = 0, end; start < n; start = end) {
+            int duration = score.getDuration(VoicePart.LEAD, start);
+            end = start + 1;
+
+            while (end < n && score.getPitch(VoicePart.LEAD, end) == score.getPitch(VoicePart.LEAD, start)
+                    && Objects.equals(score.getChordAtNote(VoicePart.LEAD, end), score.getChordAtNote(VoicePart.LEAD, start))) {
+                duration += score.getDuration(VoicePart.LEAD, end);
+                end++;
+            }
+
+            runLengths.add(end - start);
+            collapsed.addNote(VoicePart.LEAD, Note.create(score.getPitch(VoicePart.LEAD, start), duration));
+        }
+
+        int[] heldNotes = runLengths.stream().mapToInt(Integer::intValue).toArray();
+        Arrangement arrangement = arrange(ColumnarScore.of(collapsed), original, null, null, new ArrayList<>(), heldNotes, null, getCache());
+
+        if (arrangement == null) {
+            return null;
+        }
+
+        // repeat the voicing of each column for all notes of its run
+        Score ret = original.cloneWithoutNotes();
+        ret.setComposer(config.getArranger());
+
+        for (int column = 0, i = 0; column < heldNotes.length; column++) {
+            for (int k = 0; k < heldNotes[column]; k++, i++) {
+                Note lead = score.getNote(VoicePart.LEAD, i);
+
+                for (int part = 0; part < 4; part++) {
+                    int pitch = arrangement.getArrangement().getPart(part).get(column).getAbsoluteNote();
+                    ret.addNote(part, part == VoicePart.LEAD ? lead : Note.create(pitch, lead.getDuration()));
+                }
+            }
+        }
+
+        return new Arrangement(ret, original, arrangement.getScore(), arrangement.getRuntimeNs());
+    }
+
+    /**
+     * Arranges a score, reusing the columns that were computed for an earlier
+     * version of the same song with this arranger. The columns for the notes
+     * before the first difference between the two versions are taken over.
+     * After the last difference, the columns of the earlier version are
+     * reused as soon as the best scores only differ from them by a constant,
+     * as for repeated sections (see {@link #setReuseRepeats(boolean)}).
+     * The columns for the new version are added to the given list.
+     *
+     * @param score
+     * @param original
+     * @param previousScore the earlier version, or null
+     * @param previousColumns the columns for the earlier version, or null
+     * @param columns
+     * @return
+     */
+    Arrangement arrange(ColumnarScore score, Score original, ColumnarScore previousScore, List<ForwardColumn> previousColumns, List<ForwardColumn> columns) {
+        return arrange(score, original, previousScore, previousColumns, columns, null, null, getCache());
+    }
+
+    /**
+     * Converts the arrangement of a song whose melody notes were split at
+     * chord changes (see {@link Score#splitAtChordChanges()}) into an
+     * arrangement of the original song. The melody notes are joined again,
+     * and so are the notes of the other parts under the same melody note
+     * if they have the same pitch.
+     *
+     * @param arrangement the arrangement of the split song, or null
+     * @param original
+     * @return
+     */
+    static Arrangement joinSplitNotes(Arrangement arrangement, Score original) {
+        if (arrangement == null) {
+            return null;
+        }
+
+        Score split = arrangement.getArrangement();
+        Score ret = original.cloneWithoutNotes();
+        ret.setComposer(split.getComposer());
+        int piece = 0;
+
+        for (Note lead : original.getPart(VoicePart.LEAD)) {
+            // the pieces into which this note was split
+            int end = piece;
+            for (int duration = 0; duration < lead.getDuration(); end++) {
+                duration += split.getPart(VoicePart.LEAD).get(end).getDuration();
+            }
+
+            for (int part = 0; part < 4; part++) {
+                if (part == VoicePart.LEAD) {
+                    ret.addNote(part, lead);
+                    continue;
+                }
+
+                Note held = split.getPart(part).get(piece);
+                for (int i = piece + 1; i < end; i++) {
+                    Note note = split.getPart(part).get(i);
+
+                    if (note.getAbsoluteNote() == held.getAbsoluteNote()) {
+                        held = Note.create(held.getAbsoluteNote(), held.getDuration() + note.getDuration());
+                    } else {
+                        ret.addNote(part, held);
+                        held = note;
+                    }
+                }
+
+                ret.addNote(part, held);
+            }
+
+            piece = end;
+        }
+
+        return new Arrangement(ret, original, arrangement.getScore(), arrangement.getRuntimeNs());
+    }
+
+    // heldNotes is the number of melody notes that each note of the score stands for if held notes were
+    // collapsed, or null otherwise. The voicings of a collapsed note are scored as if they were repeated.
+    // allowedVoicings contains the keys of the voicings (see PitchClassLattice#getKey) that are considered for
+    // each note, or is null if all voicings are considered.
+    private Arrangement arrange(ColumnarScore score, Score original, ColumnarScore previousScore, List<ForwardColumn> previousColumns, List<ForwardColumn> columns,
+                                int[] heldNotes, List<Set<Integer>> allowedVoicings, LatticeCache cache) {
         long startTime = System.nanoTime();
         int n = score.countNotes(VoicePart.LEAD);
-        List<List<List<Note>>> possibleNotes = computePossibleNotes(score);
         Map<Item, Integer> bestScores = new HashMap<>();
         BackpointerColumn backpointers = new BackpointerColumn(null);
-        int time = 0;
+        LatticeCache.Signature previousSignature = null;
+        Note previousLead = null;
+        int secondOrderBound = getSecondOrderBound(config);
+        boolean secondOrder = secondOrderBound < 0; // if so, the items are pairs of voicings
+        boolean factorize = factorizeTransitions && !secondOrder && isDecomposable();
+        int voiceLeadingBound = getVoiceLeadingBound(config);
+
+        // For repeated sections, the columns of the earlier occurrence are reused; see reuseRepeats.
+        int[] repeats = reuseRepeats ? score.findRepeats(VoicePart.LEAD, MIN_REPEAT_LENGTH) : new int[n];
+        reusedColumns = 0;
+        computedColumns = 0;
+        skippedTransitions = 0;
+        prunedVoicings = 0;
+
+        if (!reuseRepeats) {
+            Arrays.fill(repeats, -1);
+        }
 
-        assert n == possibleNotes.size();
+        // a collapsed note is only the same as an earlier one if it stands for the same number of notes
+        for (int pos = 0; heldNotes != null && pos < n; pos++) {
+            if (repeats[pos] >= 0 && heldNotes[repeats[pos]] != heldNotes[pos]) {
+                repeats[pos] = -1;
+            }
+        }
 
-        for (int pos = 0; pos < n; pos++) {
-            List<List<Note>> notesHere = possibleNotes.get(pos);
-            Chord chordHere = score.getChordAtTime(time);
+        // columns for restricted voicings cannot be reused for the same notes elsewhere
+        if (allowedVoicings != null) {
+            Arrays.fill(repeats, -1);
+        }
+
+        // collapsed notes are not distinguished from real ones in the prefix cache
+        PrefixCache prefixes = heldNotes == null && allowedVoicings == null && voicingPrior == null ? prefixCache : null;
+
+        // the positions of the notes in the earlier version of the song, for the notes after the last difference
+        int[] previousPositions = new int[n];
+        Arrays.fill(previousPositions, -1);
+
+        if (previousScore != null) {
+            int m = previousScore.countNotes(VoicePart.LEAD);
+            int prefix = 0;
+            int suffix = 0;
+
+            while (prefix < n && prefix < m && isSameNote(score, prefix, previousScore, prefix)) {
+                prefix++;
+            }
+
+            while (suffix < n - prefix && suffix < m - prefix && isSameNote(score, n - suffix - 1, previousScore, m - suffix - 1)) {
+                suffix++;
+            }
+
+            for (int i = 1; i <= suffix; i++) {
+                previousPositions[n - i] = m - i;
+            }
+
+            columns.addAll(previousColumns.subList(0, prefix));
+        }
+
+        // resume after the longest beginning of the song that was arranged before
+        if (prefixes != null) {
+            List<ForwardColumn> cachedColumns = prefixes.lookup(config, beamWidth, score);
+
+            if (cachedColumns.size() > columns.size()) {
+                columns.clear();
+                columns.addAll(cachedColumns);
+            }
+        }
+
+        if (!columns.isEmpty()) {
+            int last = columns.size() - 1;
+            backpointers = columns.get(last).backpointers;
+            bestScores = null;
+            previousLead = score.getNote(VoicePart.LEAD, last);
+            previousSignature = cache.getSignature(score.getChordAtNote(VoicePart.LEAD, last), previousLead);
+        }
+
+        for (int pos = columns.size(); pos < n; pos++) {
+            List<List<Note>> notesHere = computePossibleNotes(score, pos);
+            Chord chordHere = score.getChordAtNote(VoicePart.LEAD, pos);
+            Note leadHere = score.getNote(VoicePart.LEAD, pos);
+            LatticeCache.Signature signature = cache.getSignature(chordHere, leadHere);
+            ForwardColumn copied = copyColumn(columns, pos, previousColumns, previousPositions[pos], backpointers);
+
+            if (copied == null) {
+                copied = copyColumn(columns, pos, columns, repeats[pos], backpointers);
+
+                if (copied != null) {
+                    reusedColumns++;
+                }
+            }
+
+            if (copied != null) {
+                columns.add(copied);
+                backpointers = copied.backpointers;
+                bestScores = null; // computed from the column scores when needed
+
+                previousSignature = signature;
+                previousLead = leadHere;
+                continue;
+            }
+
+            if (bestScores == null) {
+                bestScores = columns.get(pos - 1).getScores();
+            }
 
             Map<Item, Integer> bestScoresNext = new HashMap<>();
             BackpointerColumn backpointersNext = new BackpointerColumn(backpointers);
 
-            for (Note bs : notesHere.get(VoicePart.BASS)) {
-                if (chordHere.isAllowedBassNote(bs)) {
-                    for (Note ld : notesHere.get(VoicePart.LEAD)) {
-                        for (Note br : notesHere.get(VoicePart.BARI)) {
-                            for (Note tn : notesHere.get(VoicePart.TENOR)) {
-                                Note[] notes = new Note[]{tn, ld, br, bs};
-                                int voicingScore = scoreVoicing(notes, chordHere);
-
-                                if (voicingScore > Integer.MIN_VALUE) {
-                                    Item it = new Item(notes);
-
-                                    if (pos == 0) {
-                                        // first timestep
-                                        backpointersNext.getBackpointers().put(it, null); // null backpointer = leftmost cell
-                                        bestScoresNext.put(it, voicingScore);
-                                    } else {
-                                        // later timesteps
-                                        for (Map.Entry<Item, Integer> oldEntry : bestScores.entrySet()) {
-                                            int voiceLeadingScore = scoreVoiceLeading(oldEntry.getKey().lastNotes, notes);
-                                            int totalScore = voicingScore + voiceLeadingScore + oldEntry.getValue();
-
-                                            Item newItem = new Item(notes);
-                                            Backpointer bp = new Backpointer(oldEntry.getKey(), totalScore);
-                                            backpointersNext.getBackpointers().put(newItem, bp);
-
-                                            Integer oldBestScore = bestScoresNext.get(newItem);
-                                            if (oldBestScore == null || oldBestScore < totalScore) {
-                                                bestScoresNext.put(newItem, totalScore);
-                                            }
-                                        }
+            // the voicings for this note that are within range, together with their scores
+            List<Item> voicingsHere = new ArrayList<>();
+            List<Integer> voicingScores = new ArrayList<>();
+            int voicingCount = 0;
+
+            // with a prior, only the most frequent voicing shapes are considered; if none of
+            // them is valid, the voicings are collected again without the prior
+            Set<Integer> likelyShapes = voicingPrior == null ? null : voicingPrior.getLikelyShapes(chordHere, leadHere, priorRecall);
+            int prunedHere = 0;
+
+            for (int attempt = 0; attempt < 2 && voicingsHere.isEmpty() && (attempt == 0 || likelyShapes != null); attempt++) {
+                Set<Integer> shapes = attempt == 0 ? likelyShapes : null;
+                prunedHere = 0;
+
+                for (Note bs : notesHere.get(VoicePart.BASS)) {
+                    if (chordHere.isAllowedBassNote(bs)) {
+                        for (Note ld : notesHere.get(VoicePart.LEAD)) {
+                            for (Note br : notesHere.get(VoicePart.BARI)) {
+                                for (Note tn : notesHere.get(VoicePart.TENOR)) {
+                                    Note[] notes = new Note[]{tn, ld, br, bs};
+
+                                    if (allowedVoicings != null && !allowedVoicings.get(pos).contains(PitchClassLattice.getKey(notes))) {
+                                        continue;
+                                    }
+
+                                    if (shapes != null && !shapes.contains(VoicingPrior.getShape(notes))) {
+                                        prunedHere++;
+                                        continue;
+                                    }
+
+                                    int voicingId = signature.getVoicingId(notes, () -> scoreVoicing(notes, chordHere));
+                                    int voicingScore = signature.getVoicingScore(voicingId);
+
+                                    if (voicingScore > Integer.MIN_VALUE && heldNotes != null && heldNotes[pos] > 1) {
+                                        voicingScore = heldNotes[pos] * voicingScore + (heldNotes[pos] - 1) * scoreVoiceLeading(notes, notes);
+                                    }
+
+                                    if (voicingScore > Integer.MIN_VALUE) {
+                                        voicingsHere.add(new Item(notes, voicingId));
+                                        voicingScores.add(voicingScore);
+                                        voicingCount = Math.max(voicingCount, voicingId + 1);
                                     }
                                 }
                             }
@@ -136,9 +876,111 @@ public class Arrange {
                 }
             }
 
-            time += score.getPart(VoicePart.LEAD).get(pos).getDuration();
+            prunedVoicings += prunedHere;
+
+            // the rows of the transition matrix for the voicings of the previous note
+            List<Map.Entry<Item, Integer>> oldEntries = new ArrayList<>(bestScores.entrySet());
+            int[][] transitionScores = new int[oldEntries.size()][];
+            LatticeCache.TransitionMatrix matrix = null;
+
+            if (pos > 0 && !factorize) {
+                matrix = cache.getMatrix(previousSignature, signature, leadHere.getAbsoluteNote() - previousLead.getAbsoluteNote());
+
+                for (int i = 0; i < oldEntries.size(); i++) {
+                    transitionScores[i] = matrix.getRow(oldEntries.get(i).getKey().voicingId, voicingCount);
+                }
+            }
+
+            if (pos > 0 && factorize) {
+                scoreFactorized(oldEntries, voicingsHere, voicingScores, bestScoresNext, backpointersNext, voiceLeadingBound);
+            } else if (pos > 0 && !secondOrder) {
+                LatticeCache.TransitionMatrix transitions = matrix;
+
+                // the indices of the previous voicings, best scores first
+                List<Integer> order = new ArrayList<>();
+                for (int i = 0; i < oldEntries.size(); i++) {
+                    order.add(i);
+                }
+
+                order.sort(byScore(oldEntries));
+
+                // if the previous note has no valid voicing, neither has this one
+                for (int v = 0; v < voicingsHere.size() && !oldEntries.isEmpty(); v++) {
+                    Item it = voicingsHere.get(v);
+                    int[] best = findBestPredecessor(oldEntries, order, voiceLeadingBound,
+                            i -> transitions.getScore(transitionScores[i], it.voicingId, () -> scoreVoiceLeading(oldEntries.get(i).getKey().lastNotes, it.lastNotes)));
+                    int totalScore = best[1] + voicingScores.get(v);
+
+                    backpointersNext.getBackpointers().put(it, new Backpointer(oldEntries.get(best[0]).getKey(), totalScore));
+                    bestScoresNext.put(it, totalScore);
+                }
+            }
+
+            // the first note, and pairs of voicings with second-order rules
+            for (int v = 0; v < voicingsHere.size() && (pos == 0 || secondOrder); v++) {
+                Item it = voicingsHere.get(v);
+                Note[] notes = it.lastNotes;
+                int voicingScore = voicingScores.get(v);
+
+                if (pos == 0) {
+                    // first timestep
+                    backpointersNext.getBackpointers().put(it, null); // null backpointer = leftmost cell
+                    bestScoresNext.put(it, voicingScore);
+                } else {
+                    // later timesteps
+                    for (int i = 0; i < oldEntries.size(); i++) {
+                        Map.Entry<Item, Integer> oldEntry = oldEntries.get(i);
+                        Item oldItem = oldEntry.getKey();
+                        int voiceLeadingScore = matrix.getScore(transitionScores[i], it.voicingId, () -> scoreVoiceLeading(oldItem.lastNotes, notes));
+                        int totalScore = voicingScore + voiceLeadingScore + oldEntry.getValue();
+                        Item newItem = secondOrder ? new Item(notes, it.voicingId, oldItem.lastNotes) : it;
+
+                        if (secondOrder && oldItem.previousNotes != null) {
+                            totalScore += scoreSecondOrderVoiceLeading(oldItem.previousNotes, oldItem.lastNotes, notes);
+                        }
+
+                        Backpointer bp = new Backpointer(oldItem, totalScore);
+                        backpointersNext.getBackpointers().put(newItem, bp);
+
+                        Integer oldBestScore = bestScoresNext.get(newItem);
+                        if (oldBestScore == null || oldBestScore < totalScore) {
+                            bestScoresNext.put(newItem, totalScore);
+                        }
+                    }
+                }
+            }
+
+            if (secondOrder) {
+                bestScoresNext = pruneDominated(bestScoresNext, secondOrderBound);
+            }
+
+            if (beamWidth > 0 && bestScoresNext.size() > beamWidth) {
+                bestScoresNext = prune(bestScoresNext, beamWidth);
+            }
+
             bestScores = bestScoresNext;
             backpointers = backpointersNext;
+            previousSignature = signature;
+            previousLead = leadHere;
+
+            // if the scores only differ by a constant from those after the same note in the earlier
+            // version or the earlier occurrence in a repetition, the following notes can reuse those columns
+            ForwardColumn column = shareScores(bestScores, backpointers, previousColumns, previousPositions[pos]);
+
+            if (column == null) {
+                column = shareScores(bestScores, backpointers, columns, repeats[pos]);
+            }
+
+            columns.add(column == null ? new ForwardColumn(bestScores, 0, backpointers) : column);
+            computedColumns++;
+        }
+
+        if (bestScores == null) {
+            bestScores = columns.get(n - 1).getScores();
+        }
+
+        if (prefixes != null) {
+            prefixes.store(config, beamWidth, score, columns);
         }
 
 
@@ -151,10 +993,207 @@ public class Arrange {
             Map.Entry<Item, Integer> bestGoalItem = sortedEntries.get(sortedEntries.size() - 1);
             System.out.printf("Best arrangement has score %d.\n", bestGoalItem.getValue());
 
-            Score bestArrangedScore = extractBestScore(bestGoalItem.getKey(), backpointers, score);
+            Score bestArrangedScore = extractBestScore(bestGoalItem.getKey(), backpointers, original);
+
+            return new Arrangement(bestArrangedScore, original, bestGoalItem.getValue(), System.nanoTime()-startTime);
+        }
+    }
+
+    // Computes the best scores and backpointers for the voicings of the next note, grouping the voicings
+    // of both notes by the features of the decomposable voice leading rules. Each group of previous voicings is
+    // represented by its first voicing with the best score, and the voice leading score is computed once for each
+    // pair of groups. Among predecessors with the same total score, the first one in oldEntries is chosen, as in
+    // the backpointers of the unfactorized lattice.
+    private void scoreFactorized(List<Map.Entry<Item, Integer>> oldEntries, List<Item> voicingsHere, List<Integer> voicingScores,
+                                 Map<Item, Integer> bestScoresNext, BackpointerColumn backpointersNext, int voiceLeadingBound) {
+        Map<List<Integer>, Integer> oldGroups = new LinkedHashMap<>(); // features -> index of the representative
+
+        for (int i = 0; i < oldEntries.size(); i++) {
+            List<Integer> features = getFeatures(oldEntries.get(i).getKey().lastNotes);
+            Integer representative = oldGroups.get(features);
+
+            if (representative == null || oldEntries.get(i).getValue() > oldEntries.get(representative).getValue()) {
+                oldGroups.put(features, i);
+            }
+        }
+
+        List<Integer> representatives = new ArrayList<>(oldGroups.values());
+        representatives.sort(byScore(oldEntries));
+        Map<List<Integer>, Backpointer> bestPredecessors = new HashMap<>(); // features -> best predecessor, without the voicing score
+
+        for (int v = 0; v < voicingsHere.size() && !oldGroups.isEmpty(); v++) {
+            Item it = voicingsHere.get(v);
+            Backpointer best = bestPredecessors.computeIfAbsent(getFeatures(it.lastNotes), features -> {
+                int[] bestPredecessor = findBestPredecessor(oldEntries, representatives, voiceLeadingBound,
+                        i -> scoreVoiceLeading(oldEntries.get(i).getKey().lastNotes, it.lastNotes));
+                return new Backpointer(oldEntries.get(bestPredecessor[0]).getKey(), bestPredecessor[1]);
+            });
+
+            int totalScore = best.getScore() + voicingScores.get(v);
+            backpointersNext.getBackpointers().put(it, new Backpointer(best.getPreviousItem(), totalScore));
+            bestScoresNext.put(it, totalScore);
+        }
+    }
+
+    // Returns the index of the best predecessor among the given previous voicings, which are sorted by their
+    // scores, and the score of the transition from it, without the score of the next voicing. The scan stops as
+    // soon as the remaining voicings cannot be better even with the highest voice leading score. Among
+    // predecessors with the same score, the first one in oldEntries is chosen.
+    private int[] findBestPredecessor(List<Map.Entry<Item, Integer>> oldEntries, List<Integer> sortedIndices, int voiceLeadingBound, IntUnaryOperator voiceLeadingScore) {
+        int bestIndex = -1;
+        int bestScore = Integer.MIN_VALUE;
+
+        for (int k = 0; k < sortedIndices.size(); k++) {
+            int i = sortedIndices.get(k);
+
+            if (bestIndex >= 0 && oldEntries.get(i).getValue() + voiceLeadingBound < bestScore) {
+                skippedTransitions += sortedIndices.size() - k;
+                break;
+            }
+
+            int score = oldEntries.get(i).getValue() + voiceLeadingScore.applyAsInt(i);
 
-            return new Arrangement(bestArrangedScore, score, bestGoalItem.getValue(), System.nanoTime()-startTime);
+            if (bestIndex < 0 || score > bestScore || (score == bestScore && i < bestIndex)) {
+                bestIndex = i;
+                bestScore = score;
+            }
         }
+
+        return new int[]{bestIndex, bestScore};
+    }
+
+    // sorts indices into the entries by decreasing score, and increasing index for the same score
+    private static Comparator<Integer> byScore(List<Map.Entry<Item, Integer>> entries) {
+        return (i, j) -> {
+            int c = Integer.compare(entries.get(j).getValue(), entries.get(i).getValue());
+            return c != 0 ? c : Integer.compare(i, j);
+        };
+    }
+
+    // the highest score that the voice leading rules can assign to a transition
+    private static int getVoiceLeadingBound(Config config) {
+        int ret = 0;
+
+        for (VoiceLeadingRule rule : VOICE_LEADING_RULES) {
+            ret += Math.max(0, rule.getHighestScore(config));
+        }
+
+        return ret;
+    }
+
+    private List<Integer> getFeatures(Note[] voicing) {
+        Integer[] ret = new Integer[VOICE_LEADING_RULES.length];
+
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = ((DecomposableVoiceLeadingRule) VOICE_LEADING_RULES[i]).getFeatures(voicing, config);
+        }
+
+        return Arrays.asList(ret);
+    }
+
+    private static boolean isDecomposable() {
+        for (VoiceLeadingRule rule : VOICE_LEADING_RULES) {
+            if (!(rule instanceof DecomposableVoiceLeadingRule)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // The column for the note at position pos, copied from the column at position q of the given columns,
+    // which is for the same note. If the best scores before the two notes only differ by a constant,
+    // all scores after them differ by the same constant, and the backpointers are the same.
+    // Returns null if the column cannot be copied.
+    private static ForwardColumn copyColumn(List<ForwardColumn> columns, int pos, List<ForwardColumn> source, int q, BackpointerColumn backpointers) {
+        if (pos == 0 || q <= 0 || columns.get(pos - 1).scores != source.get(q - 1).scores) {
+            return null;
+        }
+
+        ForwardColumn sourceColumn = source.get(q);
+        int shift = sourceColumn.shift + columns.get(pos - 1).shift - source.get(q - 1).shift;
+        return new ForwardColumn(sourceColumn.scores, shift, new BackpointerColumn(backpointers, sourceColumn.backpointers.getBackpointers()));
+    }
+
+    // A column with the given scores, which shares its map of scores with the column at position q
+    // of the given columns, or null if the scores do not only differ from those in the map by a constant.
+    private static ForwardColumn shareScores(Map<Item, Integer> scores, BackpointerColumn backpointers, List<ForwardColumn> source, int q) {
+        Integer shift = q >= 0 ? getShift(scores, source.get(q).scores) : null;
+        return shift == null ? null : new ForwardColumn(source.get(q).scores, shift, backpointers);
+    }
+
+    private static boolean isSameNote(ColumnarScore score, int i, ColumnarScore other, int j) {
+        return score.getPitch(VoicePart.LEAD, i) == other.getPitch(VoicePart.LEAD, j)
+                && score.getDuration(VoicePart.LEAD, i) == other.getDuration(VoicePart.LEAD, j)
+                && Objects.equals(score.getChordAtNote(VoicePart.LEAD, i), other.getChordAtNote(VoicePart.LEAD, j));
+    }
+
+    // Adds a constant to all scores. The items are inserted in the same order
+    // as in the given map, so the two maps are iterated in the same order.
+    private static Map<Item, Integer> shift(Map<Item, Integer> scores, int shift) {
+        if (shift == 0) {
+            return scores;
+        }
+
+        Map<Item, Integer> ret = new HashMap<>();
+        for (Map.Entry<Item, Integer> entry : scores.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue() + shift);
+        }
+
+        return ret;
+    }
+
+    // Returns the constant that must be added to all the earlier scores to obtain
+    // the new scores, or null if there is no such constant.
+    private static Integer getShift(Map<Item, Integer> scores, Map<Item, Integer> earlierScores) {
+        if (scores.isEmpty() || scores.size() != earlierScores.size()) {
+            return null;
+        }
+
+        Integer ret = null;
+        for (Map.Entry<Item, Integer> entry : scores.entrySet()) {
+            Integer earlierScore = earlierScores.get(entry.getKey());
+
+            if (earlierScore == null || (ret != null && ret != entry.getValue() - earlierScore)) {
+                return null;
+            }
+
+            ret = entry.getValue() - earlierScore;
+        }
+
+        return ret;
+    }
+
+    // keep only the beamWidth items with the highest scores
+    private static Map<Item, Integer> prune(Map<Item, Integer> scores, int beamWidth) {
+        List<Map.Entry<Item, Integer>> sortedEntries = new ArrayList<>(scores.entrySet());
+        Collections.sort(sortedEntries, Comparator.comparing((Map.Entry<Item, Integer> e) -> e.getValue()).reversed());
+
+        Map<Item, Integer> ret = new HashMap<>();
+        for (Map.Entry<Item, Integer> entry : sortedEntries.subList(0, beamWidth)) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+
+        return ret;
+    }
+
+    // Discards the pairs of voicings that are worse than the best pair with the same current voicing
+    // by more than the bound. Both pairs continue in the same ways, and the second-order rules can
+    // only make a difference of the bound, so such pairs cannot be part of the best arrangement.
+    private static Map<Item, Integer> pruneDominated(Map<Item, Integer> scores, int bound) {
+        Map<Long, Integer> bestByVoicing = new HashMap<>();
+        for (Map.Entry<Item, Integer> entry : scores.entrySet()) {
+            bestByVoicing.merge(entry.getKey().key & Item.VOICING_MASK, entry.getValue(), Math::max);
+        }
+
+        Map<Item, Integer> ret = new HashMap<>();
+        for (Map.Entry<Item, Integer> entry : scores.entrySet()) {
+            if (entry.getValue() >= bestByVoicing.get(entry.getKey().key & Item.VOICING_MASK) + bound) {
+                ret.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return ret;
     }
 
     private Score extractBestScore(Item bestFinalItem, BackpointerColumn backpointers, Score originalScore) {
@@ -164,9 +1203,15 @@ public class Arrange {
         notes.add(item.lastNotes);
 
         while (backpointers != null) {
-            List<Backpointer> backpointersHere = backpointers.getBackpointers().get(item);
-            Collections.sort(backpointersHere, Comparator.comparing(Backpointer::getScore).reversed());
-            Backpointer bp = backpointersHere.get(0); // best backpointer
+            // best backpointer; the first one if there are several. The backpointers
+            // may be shared with other arrangers through the prefix cache, so they
+            // are not sorted in place.
+            Backpointer bp = null;
+            for (Backpointer candidate : backpointers.getBackpointers().get(item)) {
+                if (candidate != null && (bp == null || candidate.getScore() > bp.getScore())) {
+                    bp = candidate;
+                }
+            }
 
             if (bp == null) {
                 break;
@@ -191,7 +1236,8 @@ public class Arrange {
         return ret;
     }
 
-    private int scoreVoiceLeading(Note[] from, Note[] to) {
+    // the scoring methods are also used by the MultiProfileArranger
+    int scoreVoiceLeading(Note[] from, Note[] to) {
         int score = 0;
 
         for (VoiceLeadingRule rule : VOICE_LEADING_RULES) {
@@ -201,7 +1247,17 @@ public class Arrange {
         return score;
     }
 
-    private int scoreVoicing(Note[] voicing, Chord chord) {
+    private int scoreSecondOrderVoiceLeading(Note[] before, Note[] from, Note[] to) {
+        int score = 0;
+
+        for (SecondOrderVoiceLeadingRule rule : SECOND_ORDER_RULES) {
+            score += rule.score(before, from, to, config);
+        }
+
+        return score;
+    }
+
+    int scoreVoicing(Note[] voicing, Chord chord) {
         int score = 0;
 
         for (VoicingRule rule : VOICING_RULES) {
@@ -218,26 +1274,23 @@ public class Arrange {
         return score;
     }
 
-    // possibleNotes[time][part] = list(possible notes for that part at that time)
-    private List<List<List<Note>>> computePossibleNotes(Score score) {
-        List<List<List<Note>>> ret = new ArrayList<>();
-
-        score.foreachNoteAndChord(VoicePart.LEAD, (note, chord) -> {
-            Set<Integer> chordNotes = chord.getNotes();
-            List<List<Note>> notesAtTime = new ArrayList<>();
-            ret.add(notesAtTime);
-
-            for (int part = 0; part < 4; part++) {
-                if (part == VoicePart.LEAD) {
-                    List<Note> x = List.of(note);
-                    notesAtTime.add(x);
-                } else {
-                    notesAtTime.add(getVoicePart(part).getNotesInRange(chordNotes, note.getDuration()));
-                }
+    // possibleNotes[part] = list(possible notes for that part at the given time)
+    List<List<Note>> computePossibleNotes(ColumnarScore score, int i) {
+        Note note = score.getNote(VoicePart.LEAD, i);
+        Chord chord = score.getChordAtNote(VoicePart.LEAD, i);
+        Set<Integer> chordNotes = chord.getNotes();
+        List<List<Note>> notesAtTime = new ArrayList<>();
+
+        for (int part = 0; part < 4; part++) {
+            if (part == VoicePart.LEAD) {
+                List<Note> x = List.of(note);
+                notesAtTime.add(x);
+            } else {
+                notesAtTime.add(getVoicePart(part).getNotesInRange(chordNotes, note.getDuration()));
             }
-        });
+        }
 
-        return ret;
+        return notesAtTime;
     }
 
     private VoicePart getVoicePart(int partId) {
@@ -246,13 +1299,50 @@ public class Arrange {
 
 
 
+    /**
+     * The result of the forward pass of the Viterbi algorithm for one note:
+     * the best scores of the voicings for this note, and the backpointers
+     * for this and all earlier notes. The best scores are stored as a map
+     * plus a constant, so columns in repeated sections can share their
+     * maps; see {@link #setReuseRepeats(boolean)}. Columns are not modified
+     * after they have been computed, so they can be cached in a {@link PrefixCache}.
+     */
+    static class ForwardColumn {
+        private final Map<Item, Integer> scores;
+        private final int shift;
+        private final BackpointerColumn backpointers;
+
+        private ForwardColumn(Map<Item, Integer> scores, int shift, BackpointerColumn backpointers) {
+            this.scores = scores;
+            this.shift = shift;
+            this.backpointers = backpointers;
+        }
+
+        private Map<Item, Integer> getScores() {
+            return shift(scores, shift);
+        }
+
+        /**
+         * Returns the number of backpointers for this note.
+         *
+         * @return
+         */
+        long getBackpointerCount() {
+            return backpointers.getBackpointers().size();
+        }
+    }
+
     private static class BackpointerColumn {
         private BackpointerColumn previous;
         private ListMultimap<Item, Backpointer> backpointers;
 
         public BackpointerColumn(BackpointerColumn previous) {
+            this(previous, ArrayListMultimap.create());
+        }
+
+        public BackpointerColumn(BackpointerColumn previous, ListMultimap<Item, Backpointer> backpointers) {
             this.previous = previous;
-            backpointers = ArrayListMultimap.create();
+            this.backpointers = backpointers;
         }
 
         public BackpointerColumn getPrevious() {
@@ -291,10 +1381,43 @@ public class Arrange {
     }
 
     private static class Item {
+        // the lower 32 bits of the key are the current voicing
+        private static final long VOICING_MASK = 0xFFFFFFFFL;
+
         private Note[] lastNotes;
+        private Note[] previousNotes; // only with second-order rules, and null for the first note
+        private int voicingId; // number of the voicing in the LatticeCache; not part of equality
+        private final long key; // the MIDI numbers of all notes, packed into one byte each
+        private final int hashCode;
+
+        public Item(Note[] lastNotes, int voicingId) {
+            this(lastNotes, voicingId, null);
+        }
 
-        public Item(Note[] lastNotes) {
+        public Item(Note[] lastNotes, int voicingId, Note[] previousNotes) {
             this.lastNotes = lastNotes;
+            this.previousNotes = previousNotes;
+            this.voicingId = voicingId;
+
+            int[] x = new int[]{lastNotes[0].getAbsoluteNote(), lastNotes[1].getAbsoluteNote(), lastNotes[2].getAbsoluteNote(), lastNotes[3].getAbsoluteNote()};
+            int hash = Arrays.hashCode(x);
+            long key = pack(lastNotes);
+
+            if (previousNotes != null) {
+                hash = 31 * hash + Long.hashCode(pack(previousNotes));
+                key |= pack(previousNotes) << 32;
+            }
+
+            this.key = key;
+            this.hashCode = hash;
+        }
+
+        private static long pack(Note[] notes) {
+            long ret = 0;
+            for (int part = 0; part < 4; part++) {
+                ret |= (long) (notes[part].getAbsoluteNote() & 0xFF) << (8 * part);
+            }
+            return ret;
         }
 
         public Note[] getLastNotes() {
@@ -313,16 +1436,12 @@ public class Arrange {
             if (o == null || getClass() != o.getClass()) return false;
             Item item = (Item) o;
 
-            return lastNotes[0].getAbsoluteNote() == item.lastNotes[0].getAbsoluteNote()
-                    && lastNotes[1].getAbsoluteNote() == item.lastNotes[1].getAbsoluteNote()
-                    && lastNotes[2].getAbsoluteNote() == item.lastNotes[2].getAbsoluteNote()
-                    && lastNotes[3].getAbsoluteNote() == item.lastNotes[3].getAbsoluteNote();
+            return key == item.key && (previousNotes == null) == (item.previousNotes == null);
         }
 
         @Override
         public int hashCode() {
-            int[] x = new int[]{lastNotes[0].getAbsoluteNote(), lastNotes[1].getAbsoluteNote(), lastNotes[2].getAbsoluteNote(), lastNotes[3].getAbsoluteNote()};
-            return Arrays.hashCode(x);
+            return hashCode;
         }
     }
 
@@ -336,6 +1455,24 @@ public class Arrange {
         @Parameter(names = {"--config", "-c"}, description = "Name of the configuration file (*.yaml).")
         private String configFilename = "aaba.yaml";
 
+        @Parameter(names = {"--profile", "-p"}, description = "Configuration file (*.yaml) of a voicing profile; can be given several times. The song is then arranged for each profile, and each arrangement is written to a file whose name combines the output file and the profile.")
+        private List<String> profiles = new ArrayList<>();
+
+        @Parameter(names = "--best-key", description = "Arrange the song in all twelve keys, rank the keys, and write the arrangement in the best key.")
+        private boolean bestKey = false;
+
+        @Parameter(names = "--engine", description = "Algorithm with which the song is arranged (VITERBI, COARSE_TO_FINE, UNFACTORIZED, or LATTICE). Overrides the engine in the configuration file.")
+        private Config.ENGINE engine = null;
+
+        @Parameter(names = "--collapse-held-notes", description = "Arrange consecutive melody notes with the same pitch under the same chord as one note, with the same voicing for each of them. This is faster for chant-like songs.")
+        private boolean collapseHeldNotes = false;
+
+        @Parameter(names = "--voicing-prior", description = "Voicing prior (*.yaml) learned with the VoicingPriorLearner. Only the most frequent voicing shapes in the prior are considered, which is faster but may miss the best arrangement.")
+        private String voicingPriorFilename = null;
+
+        @Parameter(names = "--prior-recall", description = "Fraction of the voicings in the corpus of the voicing prior that the considered shapes must cover.")
+        private double priorRecall = 0.95;
+
         @Parameter(names = "--help", description = "Display usage instructions.", help = true)
         private boolean help;
 
@@ -0,0 +1,58 @@
+package de.saar.coli.arranger;
+
+/**
+ * An algorithm that computes the best arrangement of a song.
+ * The Viterbi algorithm of {@link Arrange} is the reference
+ * implementation; other engines must find arrangements with the
+ * same score, although they may choose a different arrangement
+ * if several have the best score. The engine for a run is selected
+ * with {@link Config#getEngine()}, which can be overridden on the command
+ * line and in the web server.
+ */
+public interface ArrangementEngine {
+    /**
+     * Returns the best arrangement of the song, or null if
+     * there is no valid arrangement.
+     *
+     * @param score
+     * @return
+     */
+    public Arrangement arrange(Score score);
+
+    /**
+     * Creates the engine that the given configuration selects.
+     *
+     * @param config
+     * @return
+     */
+    public static ArrangementEngine create(Config config) {
+        return create(config.getEngine(), config);
+    }
+
+    /**
+     * Creates an engine of the given kind for the given configuration.
+     *
+     * @param kind
+     * @param config
+     * @return
+     */
+    public static ArrangementEngine create(Config.ENGINE kind, Config config) {
+        switch (kind) {
+            case COARSE_TO_FINE:
+                Arrange coarseToFine = new Arrange(config);
+                coarseToFine.setCoarseToFine(true);
+                return coarseToFine;
+
+            case UNFACTORIZED:
+                Arrange unfactorized = new Arrange(config);
+                unfactorized.setFactorizeTransitions(false);
+                return unfactorized;
+
+            case LATTICE:
+                return new LatticeEngine(config);
+
+            default:
+                return new Arrange(config);
+        }
+    }
+}
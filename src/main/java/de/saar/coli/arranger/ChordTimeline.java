@@ -0,0 +1,158 @@
+package de.saar.coli.arranger;
+
+import java.util.List;
+
+/**
+ * An immutable sequence of chords with their start times, in 1/8 notes
+ * since the beginning of the score. Each chord is played from its
+ * start time until the start time of the next chord. The chord at a
+ * given time can be looked up by binary search with {@link #getChordAtTime(int)},
+ * or, for a sequence of increasing times, in amortized constant time
+ * with a {@link Cursor}.<p>
+ *
+ * The lookup methods return the same chords as {@link Score#getChordAtTime(int)}.
+ * If the chords were not added to the score in the order of their start times,
+ * they fall back to the same linear search as that method.
+ */
+public class ChordTimeline {
+    private final int[] startTimes;
+    private final Chord[] chords;
+    private final boolean sorted;
+
+    /**
+     * Creates a chord timeline from a list of start times and chords,
+     * as returned by {@link Score#getChords()}.
+     *
+     * @param chords
+     */
+    public ChordTimeline(List<Pair<Integer, Chord>> chords) {
+        this.startTimes = new int[chords.size()];
+        this.chords = new Chord[chords.size()];
+
+        boolean sorted = true;
+        for (int i = 0; i < startTimes.length; i++) {
+            startTimes[i] = chords.get(i).getLeft();
+            this.chords[i] = chords.get(i).getRight();
+
+            if (i > 0 && startTimes[i - 1] > startTimes[i]) {
+                sorted = false;
+            }
+        }
+
+        this.sorted = sorted;
+    }
+
+    /**
+     * Returns the number of chords in the timeline.
+     *
+     * @return
+     */
+    public int size() {
+        return chords.length;
+    }
+
+    /**
+     * Returns the start time of the i-th chord.
+     *
+     * @param i
+     * @return
+     */
+    public int getStartTime(int i) {
+        return startTimes[i];
+    }
+
+    /**
+     * Returns the i-th chord.
+     *
+     * @param i
+     * @return
+     */
+    public Chord getChord(int i) {
+        return chords[i];
+    }
+
+    /**
+     * Returns the chord that is played at the given time,
+     * or null if the time is before the first chord.
+     *
+     * @param time
+     * @return
+     */
+    public Chord getChordAtTime(int time) {
+        int i = indexAtTime(time);
+        return i < 0 ? null : chords[i];
+    }
+
+    /**
+     * Returns a cursor which is positioned before the first chord.
+     *
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // index of the chord at the given time, or -1 if there is none
+    private int indexAtTime(int time) {
+        if (!sorted) {
+            return linearSearch(time);
+        }
+
+        // find the last chord that starts at or before the given time
+        int low = 0;
+        int high = startTimes.length - 1;
+        int ret = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if (startTimes[mid] <= time) {
+                ret = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return ret;
+    }
+
+    private int linearSearch(int time) {
+        for (int i = 0; i < startTimes.length; i++) {
+            if (startTimes[i] <= time && (i + 1 == startTimes.length || startTimes[i + 1] > time)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * A cursor for looking up the chords at a sequence of times.
+     * If the times are increasing, the cursor only ever moves forward,
+     * so walking through a score with n notes and m chords takes time O(n+m).
+     */
+    public class Cursor {
+        private int index = -1;
+        private int lastTime = Integer.MIN_VALUE;
+
+        /**
+         * Returns the chord that is played at the given time.
+         *
+         * @param time
+         * @return
+         */
+        public Chord getChordAtTime(int time) {
+            if (!sorted || time < lastTime) {
+                index = indexAtTime(time);
+            } else {
+                while (index + 1 < startTimes.length && startTimes[index + 1] <= time) {
+                    index++;
+                }
+            }
+
+            lastTime = time;
+            return index < 0 ? null : chords[index];
+        }
+    }
+}
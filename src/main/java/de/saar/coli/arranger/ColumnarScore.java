@@ -0,0 +1,257 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable score in columnar form. Instead of a list of {@link Note}
+ * objects, each voice part is represented by three int arrays: the absolute
+ * note numbers, the durations, and the onsets (start times) of its notes,
+ * all in 1/8 notes. The chords are stored in a {@link ChordTimeline}, and
+ * the chord that is played at the onset of each note is looked up once,
+ * when the columnar score is created.<p>
+ *
+ * Use {@link #of(Score)} and {@link #toScore()} to convert between
+ * the two representations.
+ */
+public class ColumnarScore {
+    private final String title;
+    private final String composer;
+    private final String key;
+    private final int quartersPerMeasure;
+    private final String tempo;
+    private final List<String> lyrics;
+    private final ChordTimeline chords;
+    private final List<Pair<Integer, Chord>> chordList;
+
+    private final int[][] pitches = new int[4][];
+    private final int[][] durations = new int[4][];
+    private final int[][] onsets = new int[4][];
+    private final Chord[][] chordsAtNotes = new Chord[4][];
+
+    private ColumnarScore(Score score) {
+        title = score.getTitle();
+        composer = score.getComposer();
+        key = score.getKey();
+        quartersPerMeasure = score.getQuartersPerMeasure();
+        tempo = score.getTempo();
+        lyrics = Collections.unmodifiableList(new ArrayList<>(score.getLyrics()));
+        chordList = Collections.unmodifiableList(new ArrayList<>(score.getChords()));
+        chords = new ChordTimeline(chordList);
+
+        for (int part = 0; part < 4; part++) {
+            List<Note> notes = score.getPart(part);
+            int n = notes.size();
+            int time = 0;
+            ChordTimeline.Cursor cursor = chords.cursor();
+
+            pitches[part] = new int[n];
+            durations[part] = new int[n];
+            onsets[part] = new int[n];
+            chordsAtNotes[part] = new Chord[n];
+
+            for (int i = 0; i < n; i++) {
+                Note note = notes.get(i);
+                pitches[part][i] = note.getAbsoluteNote();
+                durations[part][i] = note.getDuration();
+                onsets[part][i] = time;
+                chordsAtNotes[part][i] = cursor.getChordAtTime(time);
+                time += note.getDuration();
+            }
+        }
+    }
+
+    /**
+     * Converts the given score into columnar form.
+     *
+     * @param score
+     * @return
+     */
+    public static ColumnarScore of(Score score) {
+        return new ColumnarScore(score);
+    }
+
+    /**
+     * Converts this columnar score back into a {@link Score}.
+     *
+     * @return
+     */
+    public Score toScore() {
+        Score ret = new Score(title, composer, key, quartersPerMeasure);
+        ret.setTempo(tempo);
+
+        for (int part = 0; part < 4; part++) {
+            for (int i = 0; i < pitches[part].length; i++) {
+                ret.addNote(part, getNote(part, i));
+            }
+        }
+
+        for (int i = 0; i < chords.size(); i++) {
+            ret.addChord(chords.getStartTime(i), chords.getChord(i));
+        }
+
+        for (String word : lyrics) {
+            ret.addWord(word);
+        }
+
+        return ret;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getComposer() {
+        return composer;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getQuartersPerMeasure() {
+        return quartersPerMeasure;
+    }
+
+    public String getTempo() {
+        return tempo;
+    }
+
+    /**
+     * Returns the lyrics of the song, as an unmodifiable list of words.
+     *
+     * @return
+     */
+    public List<String> getLyrics() {
+        return lyrics;
+    }
+
+    public ChordTimeline getChordTimeline() {
+        return chords;
+    }
+
+    /**
+     * Returns the chords of this score as an unmodifiable list, in the same
+     * form as {@link Score#getChords()}.
+     *
+     * @return
+     */
+    public List<Pair<Integer, Chord>> getChords() {
+        return chordList;
+    }
+
+    /**
+     * Returns the number of notes in the given part.
+     *
+     * @param part
+     * @return
+     */
+    public int countNotes(int part) {
+        return pitches[part].length;
+    }
+
+    /**
+     * Returns the absolute note number of the i-th note in the given part.
+     *
+     * @param part
+     * @param i
+     * @return
+     */
+    public int getPitch(int part, int i) {
+        return pitches[part][i];
+    }
+
+    /**
+     * Returns the duration of the i-th note in the given part, in 1/8 notes.
+     *
+     * @param part
+     * @param i
+     * @return
+     */
+    public int getDuration(int part, int i) {
+        return durations[part][i];
+    }
+
+    /**
+     * Returns the onset of the i-th note in the given part, i.e. the time
+     * in 1/8 notes since the beginning of the score at which it starts.
+     *
+     * @param part
+     * @param i
+     * @return
+     */
+    public int getOnset(int part, int i) {
+        return onsets[part][i];
+    }
+
+    /**
+     * Returns the chord that is played at the onset of the i-th note
+     * in the given part, or null if there is none.
+     *
+     * @param part
+     * @param i
+     * @return
+     */
+    public Chord getChordAtNote(int part, int i) {
+        return chordsAtNotes[part][i];
+    }
+
+    /**
+     * Returns the i-th note in the given part as a {@link Note} object.
+     *
+     * @param part
+     * @param i
+     * @return
+     */
+    public Note getNote(int part, int i) {
+        return Note.create(pitches[part][i], durations[part][i]);
+    }
+
+    /**
+     * Finds the repeated sections in the given part. For each note, the
+     * returned array contains the position of an earlier note at which the
+     * same sequence of notes starts, or -1 if there is none. Two notes are the
+     * same if they have the same pitch and duration, and the same chord is
+     * played at their onsets. A repetition starts at a note if the next
+     * minLength notes (including this one) occurred before, and continues
+     * for as long as the notes are the same as after the earlier occurrence.
+     * Within a repetition, the entries thus count up one by one.
+     *
+     * @param part
+     * @param minLength
+     * @return
+     */
+    public int[] findRepeats(int part, int minLength) {
+        int n = pitches[part].length;
+        int[] ret = new int[n];
+        Map<List<List<Object>>, Integer> firstOccurrences = new HashMap<>(); // of each sequence of minLength notes
+        List<List<Object>> notes = new ArrayList<>(n);
+
+        for (int i = 0; i < n; i++) {
+            notes.add(Arrays.asList(pitches[part][i], durations[part][i], chordsAtNotes[part][i]));
+        }
+
+        for (int i = 0; i < n; i++) {
+            ret[i] = -1;
+
+            if (i > 0 && ret[i - 1] >= 0 && notes.get(ret[i - 1] + 1).equals(notes.get(i))) {
+                ret[i] = ret[i - 1] + 1;
+            }
+
+            if (minLength > 0 && i + minLength <= n) {
+                List<List<Object>> sequence = notes.subList(i, i + minLength);
+                Integer first = firstOccurrences.putIfAbsent(sequence, i);
+
+                if (ret[i] < 0 && first != null) {
+                    ret[i] = first;
+                }
+            }
+        }
+
+        return ret;
+    }
+}
@@ -1,9 +1,11 @@
 package de.saar.coli.arranger;
 
+import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
 
 import java.io.Reader;
+import java.io.Writer;
 import java.util.*;
 
 /**
@@ -30,11 +32,41 @@ public class Config {
         ABC2SVG
     }
 
+    /**
+     * The algorithms with which a song can be arranged;
+     * see {@link ArrangementEngine}.
+     */
+    public static enum ENGINE {
+        /**
+         * The Viterbi algorithm of {@link Arrange}, which is the reference implementation.
+         */
+        VITERBI,
+
+        /**
+         * The Viterbi algorithm on a lattice that is pruned with a coarse
+         * lattice first; see {@link Arrange#setCoarseToFine(boolean)}.
+         */
+        COARSE_TO_FINE,
+
+        /**
+         * The Viterbi algorithm without grouping voicings for the voice leading
+         * rules; see {@link Arrange#setFactorizeTransitions(boolean)}.
+         */
+        UNFACTORIZED,
+
+        /**
+         * A best-path search over the complete {@link VoicingLattice}, which is slow
+         * but simple. It does not support second-order voice leading rules.
+         */
+        LATTICE
+    }
+
     private String arranger;
     private Scores scores;
     private List<VoicePart> voiceParts;
     private List<Clef> clefs;
     private ABC_DIALECT abcDialect = ABC_DIALECT.STANDARD;
+    private ENGINE engine = ENGINE.VITERBI;
 
     private static final Set<String> ALL_VOICEPARTS = new HashSet<>(List.of("Tenor", "Lead", "Baritone", "Bass"));
 
@@ -51,6 +83,67 @@ public class Config {
         return ret;
     }
 
+    /**
+     * Writes this configuration to the given writer, in the YAML format
+     * that {@link #read(Reader)} expects.
+     *
+     * @param writer
+     */
+    public void write(Writer writer) {
+        Map<String, Object> yaml = new LinkedHashMap<>();
+        yaml.put("arranger", arranger);
+
+        Map<String, Object> scoresYaml = new LinkedHashMap<>();
+        scoresYaml.put("harmonyLeaps", scores.getHarmonyLeaps());
+        scoresYaml.put("parallelOctaves", scores.getParallelOctaves());
+        scoresYaml.put("tenorCrossing", scores.getTenorCrossing());
+        scoresYaml.put("unisonNotes", scores.getUnisonNotes());
+        scoresYaml.put("wideSpread", scores.getWideSpread());
+
+        // second-order rules are inactive by default
+        if( scores.getConsecutiveLeaps() != 0 ) {
+            scoresYaml.put("consecutiveLeaps", scores.getConsecutiveLeaps());
+        }
+
+        if( scores.getUnresolvedLeaps() != 0 ) {
+            scoresYaml.put("unresolvedLeaps", scores.getUnresolvedLeaps());
+        }
+        yaml.put("scores", scoresYaml);
+
+        List<Map<String, Object>> partsYaml = new ArrayList<>();
+        for( VoicePart part : voiceParts ) {
+            Map<String, Object> partYaml = new LinkedHashMap<>();
+            partYaml.put("name", part.getName());
+            partYaml.put("bottom", noteName(part.getLowLimit()));
+            partYaml.put("top", noteName(part.getHighLimit()));
+            partsYaml.add(partYaml);
+        }
+        yaml.put("voiceParts", partsYaml);
+
+        List<String> clefsYaml = new ArrayList<>();
+        for( Clef clef : clefs ) {
+            clefsYaml.add(clef.getName());
+        }
+        yaml.put("clefs", clefsYaml);
+
+        if( abcDialect != ABC_DIALECT.STANDARD ) {
+            yaml.put("abcDialect", abcDialect.name());
+        }
+
+        if( engine != ENGINE.VITERBI ) {
+            yaml.put("engine", engine.name());
+        }
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        new Yaml(options).dump(yaml, writer);
+    }
+
+    // scientific name of the note, e.g. "C4"
+    private static String noteName(Note note) {
+        return Note.getNoteName(note.getRelativeNote()) + note.getOctave();
+    }
+
     private static List<VoicePart> sortVoiceParts(List<VoicePart> voiceParts) {
         Map<String,VoicePart> partsByName = new HashMap<>();
         for( VoicePart p : voiceParts ) {
@@ -110,12 +203,22 @@ public class Config {
         this.abcDialect = abcDialect;
     }
 
+    public ENGINE getEngine() {
+        return engine;
+    }
+
+    public void setEngine(ENGINE engine) {
+        this.engine = engine;
+    }
+
     public static class Scores {
         private int harmonyLeaps;
         private int parallelOctaves;
         private int tenorCrossing;
         private int unisonNotes;
         private int wideSpread;
+        private int consecutiveLeaps = 0;
+        private int unresolvedLeaps = 0;
 
         public int getHarmonyLeaps() {
             return harmonyLeaps;
@@ -156,5 +259,21 @@ public class Config {
         public void setWideSpread(int wideSpread) {
             this.wideSpread = wideSpread;
         }
+
+        public int getConsecutiveLeaps() {
+            return consecutiveLeaps;
+        }
+
+        public void setConsecutiveLeaps(int consecutiveLeaps) {
+            this.consecutiveLeaps = consecutiveLeaps;
+        }
+
+        public int getUnresolvedLeaps() {
+            return unresolvedLeaps;
+        }
+
+        public void setUnresolvedLeaps(int unresolvedLeaps) {
+            this.unresolvedLeaps = unresolvedLeaps;
+        }
     }
 }
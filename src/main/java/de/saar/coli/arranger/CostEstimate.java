@@ -0,0 +1,105 @@
+package de.saar.coli.arranger;
+
+import java.util.Set;
+
+/**
+ * An estimate of how much work it will be to arrange a score.
+ * The estimate is computed from the candidate notes that the
+ * {@link Arrange} class will consider for each note of the melody,
+ * without scoring any voicings. For each note of the melody,
+ * the number of candidate voicings is the product of the number of notes
+ * of the chord that the tenor, baritone, and bass can sing within their
+ * ranges. The arranger then considers a voice leading transition between
+ * each pair of candidate voicings for neighboring melody notes.
+ * Melody notes during which the chord changes are counted once for
+ * each chord, because the arranger splits them at the chord changes.
+ */
+public class CostEstimate {
+    private int noteCount;
+    private long voicings;
+    private long maxVoicingsPerNote;
+    private long transitions;
+
+    /**
+     * Estimates the cost of arranging the given score with the given configuration.
+     *
+     * @param score
+     * @param config
+     * @return
+     */
+    public static CostEstimate compute(Score score, Config config) {
+        CostEstimate ret = new CostEstimate();
+        long[] previousVoicings = new long[]{0};
+
+        score.splitAtChordChanges().foreachNoteAndChord(VoicePart.LEAD, (note, chord) -> {
+            long voicingsHere = 0;
+
+            if (chord != null) {
+                Set<Integer> chordNotes = chord.getNotes();
+                VoicePart bass = config.getVoiceParts().get(VoicePart.BASS);
+                long bassNotes = 0;
+
+                for (int absoluteNote = bass.getLowLimit().getAbsoluteNote(); absoluteNote <= bass.getHighLimit().getAbsoluteNote(); absoluteNote++) {
+                    if (chordNotes.contains(absoluteNote % 12) && chord.isAllowedBassNote(Note.create(absoluteNote, 0))) {
+                        bassNotes++;
+                    }
+                }
+
+                voicingsHere = bassNotes
+                        * config.getVoiceParts().get(VoicePart.TENOR).countNotesInRange(chordNotes)
+                        * config.getVoiceParts().get(VoicePart.BARI).countNotesInRange(chordNotes);
+            }
+
+            ret.noteCount++;
+            ret.voicings += voicingsHere;
+            ret.maxVoicingsPerNote = Math.max(ret.maxVoicingsPerNote, voicingsHere);
+            ret.transitions += previousVoicings[0] * voicingsHere;
+            previousVoicings[0] = voicingsHere;
+        });
+
+        return ret;
+    }
+
+    /**
+     * Returns the number of notes in the melody.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * Returns the total number of candidate voicings, summed over all notes of the melody.
+     *
+     * @return
+     */
+    public long getVoicings() {
+        return voicings;
+    }
+
+    /**
+     * Returns the highest number of candidate voicings for a single note of the melody.
+     *
+     * @return
+     */
+    public long getMaxVoicingsPerNote() {
+        return maxVoicingsPerNote;
+    }
+
+    /**
+     * Returns the number of voice leading transitions that the arranger
+     * will need to score. This is the dominant factor in the runtime
+     * of the arranger.
+     *
+     * @return
+     */
+    public long getTransitions() {
+        return transitions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d notes, %d voicings, %d transitions", noteCount, voicings, transitions);
+    }
+}
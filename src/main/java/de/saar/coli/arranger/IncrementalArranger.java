@@ -0,0 +1,81 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arranges successive versions of a song, e.g. while the user is editing it.
+ * The arranger remembers the columns of the Viterbi algorithm for the last
+ * version it arranged. When it is given a new version, the columns for the
+ * notes before the first edit are taken over unchanged. After the last edit,
+ * the columns of the last version are reused as soon as the best scores
+ * only differ from them by a constant, which usually happens a few notes
+ * after the edit. Thus only the edited part of the song and a few
+ * notes after it are arranged again. The arrangements are the same as
+ * those of {@link Arrange}.<p>
+ *
+ * An instance of this class is not thread-safe; use one instance per song
+ * that is being edited.
+ */
+public class IncrementalArranger {
+    private final Arrange arranger;
+    private ColumnarScore previousScore = null;
+    private List<Arrange.ForwardColumn> previousColumns = null;
+    private List<Object> previousSettings;
+
+    /**
+     * Creates an incremental arranger which arranges the songs with the given arranger.
+     * The beam width, voicing prior, and caches of the arranger may be changed between calls
+     * to {@link #arrange(Score)}; the columns of the last version are only reused
+     * if the beam width and voicing prior stay the same.
+     *
+     * @param arranger
+     */
+    public IncrementalArranger(Arrange arranger) {
+        this.arranger = arranger;
+    }
+
+    /**
+     * Returns the arranger with which the songs are arranged.
+     *
+     * @return
+     */
+    public Arrange getArranger() {
+        return arranger;
+    }
+
+    /**
+     * Arranges the next version of the song. Returns null if there
+     * is no valid arrangement.
+     *
+     * @param score
+     * @return
+     */
+    public Arrangement arrange(Score score) {
+        Score split = arranger.isSplitAtChordChanges() ? score.splitAtChordChanges() : score;
+        ColumnarScore columnarScore = ColumnarScore.of(split);
+        List<Arrange.ForwardColumn> columns = new ArrayList<>();
+        boolean reuse = previousScore != null && previousSettings.equals(arranger.getColumnSettings());
+        Arrangement ret = arranger.arrange(columnarScore, split, reuse ? previousScore : null, reuse ? previousColumns : null, columns);
+
+        if (split != score) {
+            ret = Arrange.joinSplitNotes(ret, score);
+        }
+
+        previousScore = columnarScore;
+        previousColumns = columns;
+        previousSettings = arranger.getColumnSettings();
+        return ret;
+    }
+
+    /**
+     * Returns the number of notes that were arranged again in the last
+     * call to {@link #arrange(Score)}. Notes that are split at chord
+     * changes count once for each piece into which they were split.
+     *
+     * @return
+     */
+    public int getComputedColumns() {
+        return arranger.getComputedColumns();
+    }
+}
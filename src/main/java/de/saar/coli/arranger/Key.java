@@ -144,6 +144,40 @@ public class Key {
         return keyTable.get(name);
     }
 
+    /**
+     * Returns the name of the key that is the given number of half-steps
+     * above (or, for negative numbers, below) the key with the given name.
+     * The mode of the key stays the same, so "Bb" transposed by 2 is "C",
+     * and "Am" transposed by -2 is "Gm". Returns null if there is no key
+     * with the given name.
+     *
+     * @param name
+     * @param halfsteps
+     * @return
+     */
+    public static String transposeName(String name, int halfsteps) {
+        if( name == null || ! keyTable.containsKey(name) ) {
+            return null;
+        }
+
+        boolean minor = name.endsWith("m");
+        String rootName = minor ? name.substring(0, name.length()-1) : name;
+        int root = Note.getNoteId(rootName.substring(0, 1));
+
+        if( rootName.endsWith("#") ) {
+            root++;
+        } else if( rootName.endsWith("b") ) {
+            root--;
+        }
+
+        int transposedRoot = Math.floorMod(root + halfsteps, 12);
+        return minor ? MINOR_KEY_NAMES[transposedRoot] : MAJOR_KEY_NAMES[transposedRoot];
+    }
+
+    // names of the major and minor keys on each relative note, with the fewest accidentals
+    private static final String[] MAJOR_KEY_NAMES = { "C", "Db", "D", "Eb", "E", "F", "F#", "G", "Ab", "A", "Bb", "B" };
+    private static final String[] MINOR_KEY_NAMES = { "Cm", "C#m", "Dm", "Ebm", "Em", "Fm", "F#m", "Gm", "G#m", "Am", "Bbm", "Bm" };
+
     private static final String[] BASE_NOTES;
     private static final Map<String,Key> keyTable;
 
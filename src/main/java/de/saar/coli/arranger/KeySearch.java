@@ -0,0 +1,244 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the key in which a song is arranged best. The song is transposed
+ * into each of the twelve keys, from five half-steps down to six half-steps up,
+ * and each transposed song is arranged. The arrangements are computed
+ * concurrently, each on its own virtual thread, and share a {@link LatticeCache};
+ * most voicing and voice leading scores are thus only computed once.
+ * The keys are then ranked by the score of their arrangements.<p>
+ *
+ * For each key, the search also reports which part of its range each voice
+ * part uses, so the user can see e.g. that the bass sings at the bottom
+ * of its range in the best key. The lead is not restricted to its range
+ * by the arranger, so the number of melody notes outside the lead range
+ * is reported as well.
+ */
+public class KeySearch {
+    /**
+     * Arranges a song. This makes it possible to arrange
+     * the transposed songs e.g. under admission control.
+     */
+    @FunctionalInterface
+    public static interface Arranger {
+        /**
+         * Arranges the given song, or returns null if there is no valid arrangement.
+         *
+         * @param score
+         * @return
+         * @throws Exception
+         */
+        public Arrangement arrange(Score score) throws Exception;
+    }
+
+    private final Config config;
+    private LatticeCache cache;
+    private int beamWidth = 0;
+
+    public KeySearch(Config config) {
+        this.config = config;
+        this.cache = new LatticeCache(config);
+    }
+
+    /**
+     * Sets the cache that is used for arranging the transposed songs.
+     * By default, each KeySearch object has its own cache.
+     *
+     * @param cache
+     */
+    public void setCache(LatticeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the beam width with which the transposed songs are arranged;
+     * see {@link Arrange#setBeamWidth(int)}.
+     *
+     * @param beamWidth
+     */
+    public void setBeamWidth(int beamWidth) {
+        this.beamWidth = beamWidth;
+    }
+
+    /**
+     * Arranges the song in all twelve keys and returns the results,
+     * ranked from best to worst.
+     *
+     * @param score
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public List<Result> search(Score score) throws InterruptedException, ExecutionException {
+        return search(score, transposed -> {
+            Arrange arranger = new Arrange(config);
+            arranger.setBeamWidth(beamWidth);
+            arranger.setCache(cache);
+            return arranger.arrange(transposed);
+        });
+    }
+
+    /**
+     * Arranges the song in all twelve keys with the given arranger and
+     * returns the results, ranked from best to worst. Keys for which an
+     * arrangement was found come first, ordered by decreasing score; ties are
+     * broken by the number of melody notes outside the lead range, and then by
+     * the distance from the original key. If the arranger throws an
+     * exception for one of the keys, it is passed on to the caller.
+     *
+     * @param score
+     * @param arranger
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public List<Result> search(Score score, Arranger arranger) throws InterruptedException, ExecutionException {
+        List<Future<Result>> futures = new ArrayList<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int halfsteps = -5; halfsteps <= 6; halfsteps++) {
+                Score transposed = score.transpose(halfsteps);
+                int h = halfsteps;
+                futures.add(executor.submit(() -> new Result(h, transposed, arranger.arrange(transposed), config)));
+            }
+
+            List<Result> ret = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                ret.add(future.get());
+            }
+
+            ret.sort(Comparator.comparing((Result r) -> r.getArrangement() == null)
+                    .thenComparing(Comparator.comparing(Result::getScore).reversed())
+                    .thenComparing(Result::getLeadNotesOutOfRange)
+                    .thenComparing(r -> Math.abs(r.getTransposition())));
+            return ret;
+        }
+    }
+
+    /**
+     * The arrangement of a song in one key.
+     */
+    public static class Result {
+        private final int transposition;
+        private final String key;
+        private final Arrangement arrangement;
+        private final Note[] lowestNotes = new Note[4];
+        private final Note[] highestNotes = new Note[4];
+        private final double[] rangeUsage = new double[4];
+        private int leadNotesOutOfRange = 0;
+
+        private Result(int transposition, Score transposed, Arrangement arrangement, Config config) {
+            this.transposition = transposition;
+            this.key = transposed.getKey();
+            this.arrangement = arrangement;
+
+            VoicePart lead = config.getVoiceParts().get(VoicePart.LEAD);
+            for (Note note : transposed.getPart(VoicePart.LEAD)) {
+                if (note.getAbsoluteNote() < lead.getLowLimit().getAbsoluteNote() || note.getAbsoluteNote() > lead.getHighLimit().getAbsoluteNote()) {
+                    leadNotesOutOfRange++;
+                }
+            }
+
+            for (int part = 0; part < 4; part++) {
+                List<Note> notes = arrangement == null ? transposed.getPart(part) : arrangement.getArrangement().getPart(part);
+
+                if (!notes.isEmpty()) {
+                    lowestNotes[part] = notes.stream().min(Comparator.comparing(Note::getAbsoluteNote)).get();
+                    highestNotes[part] = notes.stream().max(Comparator.comparing(Note::getAbsoluteNote)).get();
+
+                    VoicePart voicePart = config.getVoiceParts().get(part);
+                    int range = voicePart.getHighLimit().getAbsoluteNote() - voicePart.getLowLimit().getAbsoluteNote();
+                    rangeUsage[part] = range == 0 ? 1 : ((double) (highestNotes[part].getAbsoluteNote() - lowestNotes[part].getAbsoluteNote())) / range;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of half-steps by which the song was transposed.
+         *
+         * @return
+         */
+        public int getTransposition() {
+            return transposition;
+        }
+
+        /**
+         * Returns the name of the key into which the song was transposed.
+         *
+         * @return
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the arrangement in this key, or null if there is no valid arrangement.
+         *
+         * @return
+         */
+        public Arrangement getArrangement() {
+            return arrangement;
+        }
+
+        /**
+         * Returns the score of the arrangement, or Integer.MIN_VALUE
+         * if there is no valid arrangement.
+         *
+         * @return
+         */
+        public int getScore() {
+            return arrangement == null ? Integer.MIN_VALUE : arrangement.getScore();
+        }
+
+        /**
+         * Returns the lowest note of the given voice part,
+         * or null if the part has no notes.
+         *
+         * @param part
+         * @return
+         */
+        public Note getLowestNote(int part) {
+            return lowestNotes[part];
+        }
+
+        /**
+         * Returns the highest note of the given voice part,
+         * or null if the part has no notes.
+         *
+         * @param part
+         * @return
+         */
+        public Note getHighestNote(int part) {
+            return highestNotes[part];
+        }
+
+        /**
+         * Returns the distance between the lowest and highest note of the
+         * given voice part, as a fraction of the range of that part.
+         * This can be greater than 1 for the lead.
+         *
+         * @param part
+         * @return
+         */
+        public double getRangeUsage(int part) {
+            return rangeUsage[part];
+        }
+
+        /**
+         * Returns the number of melody notes that are outside the range of the lead.
+         *
+         * @return
+         */
+        public int getLeadNotesOutOfRange() {
+            return leadNotesOutOfRange;
+        }
+    }
+}
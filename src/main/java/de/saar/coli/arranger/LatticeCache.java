@@ -0,0 +1,258 @@
+package de.saar.coli.arranger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * A cache for the voicing and voice leading scores that {@link Arrange}
+ * computes, which can be reused across songs and across keys.
+ * All arranging rules only look at the intervals between notes and
+ * at the chord notes relative to the root, so the score of a voicing
+ * stays the same when the chord and all four notes are transposed by the same
+ * interval. The cache therefore stores voicings relative to the lead note:
+ * each melody note is described by its <i>signature</i>, consisting of the chord type
+ * and the interval between the chord root and the lead note, and each voicing
+ * by the intervals of the tenor, baritone, and bass from the lead note.
+ * Voice leading scores are stored in one transition matrix for each pair of
+ * signatures and interval between the two lead notes.<p>
+ *
+ * The voice ranges are not part of the cache, because they are not
+ * transposition-invariant; the arranger still only considers voicings
+ * in which all notes are within range.<p>
+ *
+ * The scores depend on the rule weights of the configuration
+ * for which the cache was created; see {@link #isCompatible(Config)}.
+ * A cache can be shared by several arrangers in different threads.
+ */
+public class LatticeCache {
+    /**
+     * The maximum number of transition matrices that a cache keeps by default.
+     */
+    public static final int DEFAULT_MAX_MATRICES = 2000;
+
+    // marks entries of transition matrices that have not been computed yet
+    static final int NOT_COMPUTED = Integer.MIN_VALUE;
+
+    private final int[] weights;
+    private final Map<Integer, Signature> signatures = new ConcurrentHashMap<>();
+    private final Map<Long, TransitionMatrix> matrices;
+    private final LongAdder computedVoicings = new LongAdder();
+    private final LongAdder computedTransitions = new LongAdder();
+
+    public LatticeCache(Config config) {
+        this(config, DEFAULT_MAX_MATRICES);
+    }
+
+    /**
+     * Creates a cache for the rule weights of the given configuration,
+     * which keeps at most the given number of transition matrices.
+     *
+     * @param config
+     * @param maxMatrices
+     */
+    public LatticeCache(Config config, int maxMatrices) {
+        weights = getWeights(config);
+        // least recently used matrices are evicted first
+        matrices = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TransitionMatrix> eldest) {
+                return size() > maxMatrices;
+            }
+        };
+    }
+
+    /**
+     * Checks whether the scores in this cache are valid for the given
+     * configuration, i.e. whether it has the same rule weights as the
+     * configuration for which the cache was created.
+     *
+     * @param config
+     * @return
+     */
+    public boolean isCompatible(Config config) {
+        return Arrays.equals(weights, getWeights(config));
+    }
+
+    /**
+     * Returns the number of voicing scores that were computed because
+     * they were not found in the cache.
+     *
+     * @return
+     */
+    public long getComputedVoicings() {
+        return computedVoicings.sum();
+    }
+
+    /**
+     * Returns the number of voice leading scores that were computed
+     * because they were not found in the cache.
+     *
+     * @return
+     */
+    public long getComputedTransitions() {
+        return computedTransitions.sum();
+    }
+
+    private static int[] getWeights(Config config) {
+        Config.Scores scores = config.getScores();
+        return new int[]{scores.getHarmonyLeaps(), scores.getParallelOctaves(), scores.getTenorCrossing(), scores.getUnisonNotes(), scores.getWideSpread()};
+    }
+
+    /**
+     * Returns the signature of the given lead note and chord.
+     *
+     * @param chord
+     * @param lead
+     * @return
+     */
+    Signature getSignature(Chord chord, Note lead) {
+        int id = chord.getType().ordinal() * 12 + Math.floorMod(lead.getAbsoluteNote() - chord.getRoot(), 12);
+        return signatures.computeIfAbsent(id, Signature::new);
+    }
+
+    /**
+     * Returns the transition matrix for voice leading from a voicing
+     * with the first signature to one with the second signature,
+     * where the lead moves by the given number of halftones.
+     *
+     * @param from
+     * @param to
+     * @param leadStep
+     * @return
+     */
+    TransitionMatrix getMatrix(Signature from, Signature to, int leadStep) {
+        long key = ((long) from.id << 32) | ((long) to.id << 16) | (leadStep & 0xffff);
+        synchronized (matrices) {
+            return matrices.computeIfAbsent(key, k -> new TransitionMatrix());
+        }
+    }
+
+    /**
+     * The voicings that were seen for one signature, with their scores.
+     * Each voicing is identified by a number, which is used as a row or
+     * column index in the transition matrices.
+     */
+    class Signature {
+        private final int id;
+        private final Map<Integer, Integer> voicingIds = new HashMap<>();
+        private int[] voicingScores = new int[16];
+
+        private Signature(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns the number of the given voicing, whose lead note is
+         * the one of the signature. If the voicing has not been seen
+         * before, its score is computed with the given function.
+         *
+         * @param voicing
+         * @param score
+         * @return
+         */
+        synchronized int getVoicingId(Note[] voicing, IntSupplier score) {
+            int lead = voicing[VoicePart.LEAD].getAbsoluteNote();
+            int intervals = 0;
+
+            for (int part = 0; part < 4; part++) {
+                if (part != VoicePart.LEAD) {
+                    // absolute notes are MIDI numbers, so the intervals fit into a byte
+                    intervals = (intervals << 8) | ((voicing[part].getAbsoluteNote() - lead) & 0xff);
+                }
+            }
+
+            Integer ret = voicingIds.get(intervals);
+
+            if (ret == null) {
+                ret = voicingIds.size();
+                voicingIds.put(intervals, ret);
+
+                if (ret >= voicingScores.length) {
+                    voicingScores = Arrays.copyOf(voicingScores, 2 * voicingScores.length);
+                }
+
+                voicingScores[ret] = score.getAsInt();
+                computedVoicings.increment();
+            }
+
+            return ret;
+        }
+
+        /**
+         * Returns the score of the voicing with the given number.
+         *
+         * @param voicingId
+         * @return
+         */
+        synchronized int getVoicingScore(int voicingId) {
+            return voicingScores[voicingId];
+        }
+    }
+
+    /**
+     * The voice leading scores between the voicings of two signatures.
+     * Each row contains the scores for the transitions from one voicing
+     * of the first signature; scores that have not been computed yet
+     * are marked as such. The rows grow as new voicings of the second
+     * signature are seen.
+     */
+    class TransitionMatrix {
+        private int[][] rows = new int[0][];
+
+        /**
+         * Returns the row for transitions from the voicing with the given
+         * number. The row has at least the given length. Scores that are
+         * missing from the row must be computed and stored with
+         * {@link #getScore(int[], int, IntSupplier)}.
+         *
+         * @param fromId
+         * @param length
+         * @return
+         */
+        synchronized int[] getRow(int fromId, int length) {
+            if (fromId >= rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(fromId + 1, 2 * rows.length));
+            }
+
+            int[] row = rows[fromId];
+
+            if (row == null || row.length < length) {
+                int oldLength = row == null ? 0 : row.length;
+                row = row == null ? new int[length] : Arrays.copyOf(row, length);
+                Arrays.fill(row, oldLength, length, NOT_COMPUTED);
+                rows[fromId] = row;
+            }
+
+            return row;
+        }
+
+        /**
+         * Returns the score in the given row for the transition to the voicing
+         * with the given number, computing it with the given function if it
+         * is not in the row yet. If another thread has replaced the row
+         * with a longer one in the meantime, the computed score is
+         * stored in the old row and will be computed again later.
+         *
+         * @param row
+         * @param toId
+         * @param score
+         * @return
+         */
+        int getScore(int[] row, int toId, IntSupplier score) {
+            int ret = row[toId];
+
+            if (ret == NOT_COMPUTED) {
+                ret = score.getAsInt();
+                row[toId] = ret;
+                computedTransitions.increment();
+            }
+
+            return ret;
+        }
+    }
+}
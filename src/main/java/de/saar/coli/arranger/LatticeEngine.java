@@ -0,0 +1,37 @@
+package de.saar.coli.arranger;
+
+import java.util.List;
+
+/**
+ * An engine that arranges a song by building the complete
+ * {@link VoicingLattice} and searching it for the best path.
+ * This is much slower than {@link Arrange}, but it is simple enough
+ * to serve as an independent check of the optimizations of the arranger.
+ * Second-order voice leading rules are not supported.
+ */
+class LatticeEngine implements ArrangementEngine {
+    private final Config config;
+
+    public LatticeEngine(Config config) {
+        if (Arrange.getSecondOrderBound(config) < 0) {
+            throw new IllegalArgumentException("The lattice engine does not support second-order voice leading rules.");
+        }
+
+        this.config = config;
+    }
+
+    @Override
+    public Arrangement arrange(Score score) {
+        long startTime = System.nanoTime();
+        Score split = score.splitAtChordChanges();
+        VoicingLattice lattice = new VoicingLattice(new Arrange(config), config, ColumnarScore.of(split));
+        List<Arrangement> best = lattice.getBestArrangements(1);
+
+        if (best.isEmpty()) {
+            return null;
+        }
+
+        Arrangement joined = Arrange.joinSplitNotes(best.get(0), score);
+        return new Arrangement(joined.getArrangement(), score, joined.getScore(), System.nanoTime() - startTime);
+    }
+}
@@ -0,0 +1,446 @@
+package de.saar.coli.arranger;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Arranges the same song for several voicing profiles at once, e.g.
+ * for a male and a female quartet. Each profile is a {@link Config} with
+ * its own voice ranges (and possibly clefs and rule weights).<p>
+ *
+ * Profiles with the same rule weights are arranged together on one
+ * <i>union lattice</i>. For each melody note, the union lattice contains
+ * each voicing that is within the ranges of at least one of the profiles,
+ * together with the set of profiles in whose ranges it is. Each voicing
+ * and each voice leading transition between two voicings is scored only
+ * once, and the score is then used for all profiles that contain both
+ * voicings. The Viterbi algorithm of {@link Arrange} is run for all
+ * profiles simultaneously, keeping the best score and backpointer for
+ * each profile and voicing in plain arrays. Large columns of the
+ * lattice are computed in parallel, and profiles with different rule
+ * weights are arranged concurrently, each on its own virtual thread.
+ * The scores are shared through a {@link LatticeCache}.<p>
+ *
+ * For each profile, the arrangement that is found has the same score as
+ * the one that {@link Arrange} finds. If there are several arrangements
+ * with the best score, the two classes may choose different ones.<p>
+ *
+ * Profiles in which second-order voice leading rules are active
+ * (see {@link Arrange}) are not part of a union lattice; they are
+ * arranged separately with {@link Arrange}.
+ */
+public class MultiProfileArranger {
+    private static final int PARALLEL_TRANSITIONS = 20000; // columns with more transitions than this are computed in parallel
+
+    private final List<Config> profiles;
+    private final List<List<Integer>> groups = new ArrayList<>(); // profiles with the same rule weights
+    private final List<LatticeCache> caches = new ArrayList<>(); // one per group
+    private final List<Integer> secondOrderProfiles = new ArrayList<>(); // arranged separately
+    private int beamWidth = 0;
+
+    public MultiProfileArranger(List<Config> profiles) {
+        this.profiles = profiles;
+
+        for (int i = 0; i < profiles.size(); i++) {
+            if (Arrange.getSecondOrderBound(profiles.get(i)) < 0) {
+                secondOrderProfiles.add(i);
+                continue;
+            }
+
+            int group = 0;
+
+            while (group < groups.size() && !caches.get(group).isCompatible(profiles.get(i))) {
+                group++;
+            }
+
+            if (group < groups.size() && groups.get(group).size() == Long.SIZE) {
+                throw new IllegalArgumentException("Cannot arrange more than " + Long.SIZE + " profiles with the same rule weights at once.");
+            }
+
+            if (group == groups.size()) {
+                groups.add(new ArrayList<>());
+                caches.add(new LatticeCache(profiles.get(i)));
+            }
+
+            groups.get(group).add(i);
+        }
+    }
+
+    /**
+     * Limits the number of voicings that are kept for each note of
+     * the melody and each profile; see {@link Arrange#setBeamWidth(int)}.
+     *
+     * @param beamWidth
+     */
+    public void setBeamWidth(int beamWidth) {
+        this.beamWidth = beamWidth;
+    }
+
+    /**
+     * Returns the cache that is used for the profile with the given index.
+     *
+     * @param profile
+     * @return
+     */
+    LatticeCache getCache(int profile) {
+        for (int group = 0; group < groups.size(); group++) {
+            if (groups.get(group).contains(profile)) {
+                return caches.get(group);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Arranges the song for all profiles. The arrangements are returned in the
+     * same order as the profiles; the entry for a profile is null if there
+     * is no valid arrangement within its ranges.
+     *
+     * @param score
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public List<Arrangement> arrange(Score score) throws InterruptedException, ExecutionException {
+        Score split = score.splitAtChordChanges(); // as in Arrange
+        ColumnarScore columns = ColumnarScore.of(split);
+        List<Future<List<Arrangement>>> futures = new ArrayList<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int group = 0; group < groups.size(); group++) {
+                List<Integer> members = groups.get(group);
+                LatticeCache cache = caches.get(group);
+                futures.add(executor.submit(() -> arrangeGroup(columns, split, members, cache)));
+            }
+
+            List<Future<Arrangement>> separateFutures = new ArrayList<>();
+            for (int profile : secondOrderProfiles) {
+                separateFutures.add(executor.submit(() -> arrangeSeparately(score, profiles.get(profile))));
+            }
+
+            Arrangement[] ret = new Arrangement[profiles.size()];
+            for (int group = 0; group < groups.size(); group++) {
+                List<Arrangement> arrangements = futures.get(group).get();
+
+                for (int k = 0; k < arrangements.size(); k++) {
+                    ret[groups.get(group).get(k)] = Arrange.joinSplitNotes(arrangements.get(k), score);
+                }
+            }
+
+            for (int k = 0; k < secondOrderProfiles.size(); k++) {
+                ret[secondOrderProfiles.get(k)] = separateFutures.get(k).get();
+            }
+
+            return Arrays.asList(ret);
+        }
+    }
+
+    private Arrangement arrangeSeparately(Score score, Config profile) {
+        Arrange arranger = new Arrange(profile);
+        arranger.setBeamWidth(beamWidth);
+        return arranger.arrange(score);
+    }
+
+    // runs the Viterbi algorithm on the union lattice of the given profiles
+    private List<Arrangement> arrangeGroup(ColumnarScore score, Score original, List<Integer> members, LatticeCache cache) {
+        long startTime = System.nanoTime();
+        int numProfiles = members.size();
+        int n = score.countNotes(VoicePart.LEAD);
+        Arrange scorer = new Arrange(profiles.get(members.get(0)));
+        Map<Chord, Map<Integer, Voicings>> voicingsByChord = new HashMap<>(); // by chord and absolute lead note
+        List<Column> lattice = new ArrayList<>(n);
+        Column previous = null;
+
+        for (int pos = 0; pos < n; pos++) {
+            Note lead = score.getNote(VoicePart.LEAD, pos);
+            Chord chord = score.getChordAtNote(VoicePart.LEAD, pos);
+            Voicings voicings = voicingsByChord.computeIfAbsent(chord, c -> new HashMap<>())
+                    .computeIfAbsent(lead.getAbsoluteNote(), x -> makeVoicings(lead, chord, members, cache, scorer));
+            Column column = new Column(lead, voicings, numProfiles);
+
+            if (previous == null) {
+                for (int i = 0; i < column.size(); i++) {
+                    for (int p = 0; p < numProfiles; p++) {
+                        if ((voicings.masks[i] & (1L << p)) != 0) {
+                            column.best[p][i] = voicings.voicingScores[i];
+                        }
+                    }
+                }
+            } else {
+                addTransitions(previous, column, cache, scorer, numProfiles);
+            }
+
+            if (beamWidth > 0) {
+                for (int p = 0; p < numProfiles; p++) {
+                    prune(column.best[p], beamWidth);
+                }
+            }
+
+            lattice.add(column);
+            previous = column;
+        }
+
+        List<Arrangement> ret = new ArrayList<>();
+        for (int p = 0; p < numProfiles; p++) {
+            ret.add(extractBestArrangement(lattice, p, profiles.get(members.get(p)), original, startTime));
+        }
+
+        return ret;
+    }
+
+    // The voicings of the given lead note that are within the ranges of at least one profile.
+    // These only depend on the chord and the lead note, so they are computed once for each
+    // combination that occurs in the song.
+    private Voicings makeVoicings(Note lead, Chord chord, List<Integer> members, LatticeCache cache, Arrange scorer) {
+        Set<Integer> chordNotes = chord.getNotes();
+        LatticeCache.Signature signature = cache.getSignature(chord, lead);
+
+        // for each part, the union of the notes that the profiles can sing, with the profiles that can sing each note
+        List<SortedMap<Integer, Long>> notesByPart = new ArrayList<>();
+        for (int part = 0; part < 4; part++) {
+            SortedMap<Integer, Long> notes = new TreeMap<>();
+
+            if (part != VoicePart.LEAD) {
+                for (int p = 0; p < members.size(); p++) {
+                    for (Note note : profiles.get(members.get(p)).getVoiceParts().get(part).getNotesInRange(chordNotes, lead.getDuration())) {
+                        notes.merge(note.getAbsoluteNote(), 1L << p, (a, b) -> a | b);
+                    }
+                }
+            }
+
+            notesByPart.add(notes);
+        }
+
+        Voicings ret = new Voicings(signature);
+
+        for (Map.Entry<Integer, Long> bs : notesByPart.get(VoicePart.BASS).entrySet()) {
+            Note bassNote = Note.create(bs.getKey(), lead.getDuration());
+
+            if (chord.isAllowedBassNote(bassNote)) {
+                for (Map.Entry<Integer, Long> br : notesByPart.get(VoicePart.BARI).entrySet()) {
+                    for (Map.Entry<Integer, Long> tn : notesByPart.get(VoicePart.TENOR).entrySet()) {
+                        long mask = bs.getValue() & br.getValue() & tn.getValue();
+
+                        if (mask != 0) {
+                            Note[] notes = new Note[]{Note.create(tn.getKey(), lead.getDuration()), lead, Note.create(br.getKey(), lead.getDuration()), bassNote};
+                            int voicingId = signature.getVoicingId(notes, () -> scorer.scoreVoicing(notes, chord));
+                            int voicingScore = signature.getVoicingScore(voicingId);
+
+                            if (voicingScore > Integer.MIN_VALUE) {
+                                ret.add(notes, voicingId, voicingScore, mask);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        ret.finish();
+        return ret;
+    }
+
+    private static void addTransitions(Column previous, Column column, LatticeCache cache, Arrange scorer, int numProfiles) {
+        Voicings from = previous.voicings;
+        Voicings to = column.voicings;
+        LatticeCache.TransitionMatrix matrix = cache.getMatrix(from.signature, to.signature, column.lead.getAbsoluteNote() - previous.lead.getAbsoluteNote());
+        int[][] rows = new int[previous.size()][];
+        int rowLength = 0;
+
+        for (int i = 0; i < column.size(); i++) {
+            rowLength = Math.max(rowLength, to.voicingIds[i] + 1);
+        }
+
+        for (int j = 0; j < previous.size(); j++) {
+            rows[j] = matrix.getRow(from.voicingIds[j], rowLength);
+        }
+
+        IntStream voicings = IntStream.range(0, column.size());
+        if ((long) column.size() * previous.size() > PARALLEL_TRANSITIONS) {
+            voicings = voicings.parallel();
+        }
+
+        // each voicing of the new column only writes its own entries of best and backpointers
+        voicings.forEach(i -> {
+            int voicingId = to.voicingIds[i];
+            long mask = to.masks[i];
+
+            // only visit the voicings of the previous column which share a profile with this one
+            for (int m = 0; m < from.distinctMasks.length; m++) {
+                long common = mask & from.distinctMasks[m];
+
+                if (common != 0) {
+                    for (int j : from.indicesByMask[m]) {
+                        int transitionScore = rows[j][voicingId];
+
+                        if (transitionScore == LatticeCache.NOT_COMPUTED) {
+                            Note[] fromNotes = from.notes.get(j);
+                            transitionScore = matrix.getScore(rows[j], voicingId, () -> scorer.scoreVoiceLeading(fromNotes, to.notes.get(i)));
+                        }
+
+                        for (int p = 0; p < numProfiles; p++) {
+                            if ((common & (1L << p)) != 0 && previous.best[p][j] != Integer.MIN_VALUE) {
+                                int total = previous.best[p][j] + transitionScore + to.voicingScores[i];
+
+                                if (column.best[p][i] == Integer.MIN_VALUE || total > column.best[p][i]) {
+                                    column.best[p][i] = total;
+                                    column.backpointers[p][i] = j;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // keep only the beamWidth voicings with the highest scores
+    private static void prune(int[] best, int beamWidth) {
+        int count = 0;
+        for (int score : best) {
+            if (score != Integer.MIN_VALUE) {
+                count++;
+            }
+        }
+
+        if (count > beamWidth) {
+            int[] sorted = Arrays.stream(best).filter(x -> x != Integer.MIN_VALUE).sorted().toArray();
+            int threshold = sorted[sorted.length - beamWidth];
+            int keepAtThreshold = beamWidth - (int) Arrays.stream(sorted).filter(x -> x > threshold).count();
+
+            for (int i = 0; i < best.length; i++) {
+                if (best[i] < threshold || (best[i] == threshold && keepAtThreshold-- <= 0)) {
+                    best[i] = Integer.MIN_VALUE;
+                }
+            }
+        }
+    }
+
+    private static Arrangement extractBestArrangement(List<Column> lattice, int profile, Config config, Score original, long startTime) {
+        if (lattice.isEmpty()) {
+            return null;
+        }
+
+        Column last = lattice.get(lattice.size() - 1);
+        int bestIndex = -1;
+
+        for (int i = 0; i < last.size(); i++) {
+            if (last.best[profile][i] != Integer.MIN_VALUE && (bestIndex < 0 || last.best[profile][i] > last.best[profile][bestIndex])) {
+                bestIndex = i;
+            }
+        }
+
+        if (bestIndex < 0) {
+            return null;
+        }
+
+        int bestScore = last.best[profile][bestIndex];
+        List<Note[]> notes = new ArrayList<>();
+        int index = bestIndex;
+
+        for (int pos = lattice.size() - 1; pos >= 0; pos--) {
+            Column column = lattice.get(pos);
+            Note[] voicing = column.voicings.notes.get(index);
+            Note[] notesHere = new Note[4];
+
+            // the voicings are shared by all notes with the same pitch and chord, so use the duration of this note
+            for (int part = 0; part < 4; part++) {
+                notesHere[part] = part == VoicePart.LEAD ? column.lead : Note.create(voicing[part].getAbsoluteNote(), column.lead.getDuration());
+            }
+
+            notes.add(notesHere);
+            index = column.backpointers[profile][index];
+        }
+
+        Collections.reverse(notes);
+
+        Score ret = original.cloneWithoutNotes();
+        ret.setComposer(config.getArranger());
+        for (Note[] notesHere : notes) {
+            for (int part = 0; part < 4; part++) {
+                ret.addNote(part, notesHere[part]);
+            }
+        }
+
+        return new Arrangement(ret, original, bestScore, System.nanoTime() - startTime);
+    }
+
+    // The voicings of one column of the union lattice, which are shared
+    // by all columns with the same chord and lead note.
+    private static class Voicings {
+        private final LatticeCache.Signature signature;
+        private final List<Note[]> notes = new ArrayList<>();
+        private final List<int[]> entries = new ArrayList<>(); // voicing id, voicing score
+        private final List<Long> maskList = new ArrayList<>();
+        private int[] voicingIds;
+        private int[] voicingScores;
+        private long[] masks;
+        private long[] distinctMasks; // the different sets of profiles of the voicings in this column
+        private int[][] indicesByMask; // the voicings for each of the distinct masks
+
+        public Voicings(LatticeCache.Signature signature) {
+            this.signature = signature;
+        }
+
+        public void add(Note[] voicing, int voicingId, int voicingScore, long mask) {
+            notes.add(voicing);
+            entries.add(new int[]{voicingId, voicingScore});
+            maskList.add(mask);
+        }
+
+        public void finish() {
+            int size = notes.size();
+            voicingIds = new int[size];
+            voicingScores = new int[size];
+            masks = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                voicingIds[i] = entries.get(i)[0];
+                voicingScores[i] = entries.get(i)[1];
+                masks[i] = maskList.get(i);
+            }
+
+            Map<Long, List<Integer>> byMask = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                byMask.computeIfAbsent(masks[i], m -> new ArrayList<>()).add(i);
+            }
+
+            distinctMasks = new long[byMask.size()];
+            indicesByMask = new int[byMask.size()][];
+            int m = 0;
+            for (Map.Entry<Long, List<Integer>> entry : byMask.entrySet()) {
+                distinctMasks[m] = entry.getKey();
+                indicesByMask[m] = entry.getValue().stream().mapToInt(x -> x).toArray();
+                m++;
+            }
+        }
+    }
+
+    // One column of the union lattice. Scores of voicings which are not
+    // (or no longer) part of the lattice for a profile are Integer.MIN_VALUE.
+    private static class Column {
+        private final Note lead;
+        private final Voicings voicings;
+        private final int[][] best;
+        private final int[][] backpointers;
+
+        public Column(Note lead, Voicings voicings, int numProfiles) {
+            this.lead = lead;
+            this.voicings = voicings;
+            best = new int[numProfiles][voicings.voicingIds.length];
+            backpointers = new int[numProfiles][voicings.voicingIds.length];
+
+            for (int p = 0; p < numProfiles; p++) {
+                Arrays.fill(best[p], Integer.MIN_VALUE);
+            }
+        }
+
+        public int size() {
+            return voicings.voicingIds.length;
+        }
+    }
+}
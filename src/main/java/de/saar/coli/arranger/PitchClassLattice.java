@@ -0,0 +1,242 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A coarse version of the lattice of {@link Arrange}, in which a voicing
+ * only specifies the pitch class of each part, and not its octave. Most
+ * voicings of a note only differ in the octaves of the tenor, baritone,
+ * and bass, so the coarse lattice is much smaller than the full one.<p>
+ *
+ * Each pitch-class voicing is scored optimistically, with the best score
+ * of any of the voicings with these pitch classes; and each transition
+ * between two pitch-class voicings is scored with the best score that
+ * a voice leading between them can have in any octaves. From the best
+ * scores of the coarse lattice before and after each note, the lattice then
+ * computes, for each (full) voicing of each note, an upper bound for
+ * the score of any arrangement that uses it. A voicing whose bound
+ * is lower than the score of some arrangement cannot be part of the
+ * best arrangement. Because the voicing itself is scored exactly, voicings
+ * in bad octaves get low bounds, even though they have the same pitch
+ * classes as good ones.<p>
+ *
+ * The transition scores are bounds for the rules {@link de.saar.coli.arranger.rules.LdHarmonyLeaps}
+ * and {@link de.saar.coli.arranger.rules.LdParallelOctaves}, plus the highest score that
+ * the second-order rules can assign, which is zero unless one of them has a bonus.
+ */
+class PitchClassLattice {
+    private final List<int[]> keys = new ArrayList<>();   // for each note, the voicings; see getKey
+    private final List<int[]> bounds = new ArrayList<>(); // for each note, the bound for each voicing
+    private final Config config;
+    private final int secondOrderBonus; // the highest score of the second-order rules for one transition
+
+    /**
+     * Builds the coarse lattice for the given score, with the voicing scores
+     * of the given arranger, and computes the bounds.
+     *
+     * @param arranger
+     * @param config
+     * @param score
+     * @param cache
+     */
+    PitchClassLattice(Arrange arranger, Config config, ColumnarScore score, LatticeCache cache) {
+        this.config = config;
+        this.secondOrderBonus = Arrange.getSecondOrderHighestScore(config);
+        int n = score.countNotes(VoicePart.LEAD);
+        List<int[]> pitchClasses = new ArrayList<>(); // for each note, the pitch-class voicings
+        List<int[]> voicingScores = new ArrayList<>(); // the best score of a voicing with these pitch classes
+        List<int[]> voicingClasses = new ArrayList<>(); // for each voicing, its pitch-class voicing
+        List<int[]> exactScores = new ArrayList<>(); // for each voicing, its score
+
+        for (int pos = 0; pos < n; pos++) {
+            List<List<Note>> notesHere = arranger.computePossibleNotes(score, pos);
+            Chord chord = score.getChordAtNote(VoicePart.LEAD, pos);
+            LatticeCache.Signature signature = cache.getSignature(chord, score.getNote(VoicePart.LEAD, pos));
+            Map<Integer, Integer> best = new LinkedHashMap<>(); // best voicing score for each pitch-class voicing
+            Map<Integer, Integer> indices = new HashMap<>();
+            List<int[]> voicings = new ArrayList<>(); // key, pitch-class voicing, score
+
+            for (Note bs : notesHere.get(VoicePart.BASS)) {
+                if (chord.isAllowedBassNote(bs)) {
+                    for (Note ld : notesHere.get(VoicePart.LEAD)) {
+                        for (Note br : notesHere.get(VoicePart.BARI)) {
+                            for (Note tn : notesHere.get(VoicePart.TENOR)) {
+                                Note[] notes = new Note[]{tn, ld, br, bs};
+                                int voicingScore = signature.getVoicingScore(signature.getVoicingId(notes, () -> arranger.scoreVoicing(notes, chord)));
+
+                                if (voicingScore > Integer.MIN_VALUE) {
+                                    int classes = getPitchClasses(notes);
+                                    best.merge(classes, voicingScore, Math::max);
+                                    indices.putIfAbsent(classes, indices.size());
+                                    voicings.add(new int[]{getKey(notes), indices.get(classes), voicingScore});
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            pitchClasses.add(best.keySet().stream().mapToInt(Integer::intValue).toArray());
+            voicingScores.add(best.values().stream().mapToInt(Integer::intValue).toArray());
+            keys.add(voicings.stream().mapToInt(v -> v[0]).toArray());
+            voicingClasses.add(voicings.stream().mapToInt(v -> v[1]).toArray());
+            exactScores.add(voicings.stream().mapToInt(v -> v[2]).toArray());
+        }
+
+        // forward[pos][k] bounds the best score of the notes up to pos, backward[pos][k] that of the notes after pos
+        long[][] forward = new long[n][];
+        long[][] backward = new long[n][];
+
+        for (int pos = 0; pos < n; pos++) {
+            int[] here = pitchClasses.get(pos);
+            forward[pos] = new long[here.length];
+
+            for (int k = 0; k < here.length; k++) {
+                long best = pos == 0 ? 0 : Long.MIN_VALUE;
+
+                for (int j = 0; pos > 0 && j < forward[pos - 1].length; j++) {
+                    if (forward[pos - 1][j] > Long.MIN_VALUE) {
+                        long transition = getTransitionBound(pitchClasses.get(pos - 1)[j], score.getPitch(VoicePart.LEAD, pos - 1), here[k], score.getPitch(VoicePart.LEAD, pos));
+                        best = Math.max(best, forward[pos - 1][j] + transition);
+                    }
+                }
+
+                forward[pos][k] = best == Long.MIN_VALUE ? best : best + voicingScores.get(pos)[k];
+            }
+        }
+
+        for (int pos = n - 1; pos >= 0; pos--) {
+            int[] here = pitchClasses.get(pos);
+            backward[pos] = new long[here.length];
+
+            for (int k = 0; k < here.length; k++) {
+                long best = pos == n - 1 ? 0 : Long.MIN_VALUE;
+
+                for (int j = 0; pos < n - 1 && j < backward[pos + 1].length; j++) {
+                    if (backward[pos + 1][j] > Long.MIN_VALUE) {
+                        long transition = getTransitionBound(here[k], score.getPitch(VoicePart.LEAD, pos), pitchClasses.get(pos + 1)[j], score.getPitch(VoicePart.LEAD, pos + 1));
+                        best = Math.max(best, transition + voicingScores.get(pos + 1)[j] + backward[pos + 1][j]);
+                    }
+                }
+
+                backward[pos][k] = best;
+            }
+        }
+
+        // the bound for a voicing replaces the best score of its pitch classes with its own score
+        for (int pos = 0; pos < n; pos++) {
+            int[] bound = new int[keys.get(pos).length];
+
+            for (int v = 0; v < bound.length; v++) {
+                int k = voicingClasses.get(pos)[v];
+                boolean reachable = forward[pos][k] > Long.MIN_VALUE && backward[pos][k] > Long.MIN_VALUE;
+                long total = forward[pos][k] - voicingScores.get(pos)[k] + exactScores.get(pos)[v] + backward[pos][k];
+                bound[v] = reachable ? (int) Math.max(Integer.MIN_VALUE + 1, total) : Integer.MIN_VALUE;
+            }
+
+            bounds.add(bound);
+        }
+    }
+
+    /**
+     * Returns a number that identifies the given voicing among the voicings
+     * of its note, i.e. the absolute notes of the tenor, baritone, and bass.
+     *
+     * @param voicing
+     * @return
+     */
+    static int getKey(Note[] voicing) {
+        return voicing[VoicePart.TENOR].getAbsoluteNote()
+                | voicing[VoicePart.BARI].getAbsoluteNote() << 8
+                | voicing[VoicePart.BASS].getAbsoluteNote() << 16;
+    }
+
+    // the pitch classes of the tenor, baritone, and bass; the lead note is the same for all voicings of a note
+    private static int getPitchClasses(Note[] voicing) {
+        return voicing[VoicePart.TENOR].getRelativeNote()
+                | voicing[VoicePart.BARI].getRelativeNote() << 4
+                | voicing[VoicePart.BASS].getRelativeNote() << 8;
+    }
+
+    /**
+     * Returns the keys of the voicings for the note at the given position
+     * whose bound is at least the given score.
+     *
+     * @param pos
+     * @param minScore
+     * @return
+     */
+    Set<Integer> getVoicingsAbove(int pos, int minScore) {
+        Set<Integer> ret = new HashSet<>();
+
+        for (int k = 0; k < keys.get(pos).length; k++) {
+            if (bounds.get(pos)[k] > Integer.MIN_VALUE && bounds.get(pos)[k] >= minScore) {
+                ret.add(keys.get(pos)[k]);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the keys of the given number of voicings with the highest bounds
+     * for the note at the given position.
+     *
+     * @param pos
+     * @param count
+     * @return
+     */
+    Set<Integer> getBestVoicings(int pos, int count) {
+        int[] sorted = bounds.get(pos).clone();
+        Arrays.sort(sorted);
+        int threshold = sorted.length <= count ? Integer.MIN_VALUE + 1 : sorted[sorted.length - count];
+        Set<Integer> ret = getVoicingsAbove(pos, threshold);
+
+        // in case of ties, keep the first ones
+        return ret.size() <= count ? ret : new HashSet<>(new ArrayList<>(ret).subList(0, count));
+    }
+
+    // The best score that a voice leading from a voicing with the first pitch classes
+    // to one with the second pitch classes can have, for any octaves of the notes.
+    private int getTransitionBound(int fromKey, int fromLead, int toKey, int toLead) {
+        Config.Scores scores = config.getScores();
+        int[] from = unpackPitchClasses(fromKey, fromLead);
+        int[] to = unpackPitchClasses(toKey, toLead);
+        int ret = secondOrderBonus; // each transition ends at most one triple of voicings
+
+        // a step between pitch classes that are more than a minor third apart
+        // is a leap in every octave
+        for (int part : new int[]{VoicePart.TENOR, VoicePart.BARI}) {
+            int distance = Math.floorMod(to[part] - from[part], 12);
+            boolean leap = Math.min(distance, 12 - distance) > 3;
+            ret += leap ? scores.getHarmonyLeaps() : Math.max(0, scores.getHarmonyLeaps());
+        }
+
+        // parallel octaves are only possible between parts with the same pitch classes
+        for (int part = 0; part < 4; part++) {
+            for (int other = part + 1; other < 4; other++) {
+                if (from[part] == from[other] && to[part] == to[other]) {
+                    ret += Math.max(0, scores.getParallelOctaves());
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static int[] unpackPitchClasses(int key, int lead) {
+        int[] ret = new int[4];
+        ret[VoicePart.TENOR] = key & 0xf;
+        ret[VoicePart.LEAD] = Math.floorMod(lead, 12);
+        ret[VoicePart.BARI] = (key >> 4) & 0xf;
+        ret[VoicePart.BASS] = (key >> 8) & 0xf;
+        return ret;
+    }
+}
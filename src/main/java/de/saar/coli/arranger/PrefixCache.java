@@ -0,0 +1,224 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache for the columns that {@link Arrange} computes in the
+ * forward pass of its Viterbi algorithm, which is shared across songs
+ * with the same beginning. This is useful when the user edits a song
+ * and arranges it again, or when many users arrange the same song:
+ * the columns for the notes before the first edit are the same as
+ * for the earlier version, and only the remaining notes need to be
+ * arranged.<p>
+ *
+ * The columns are stored in a trie. Each node of the trie stands for a
+ * sequence of melody notes, each described by its pitch, its duration,
+ * and the chord that is played at its onset, and contains the column
+ * for the last of these notes. The columns depend on the voice ranges,
+ * rule weights, and beam width of the arranger, so there is a separate
+ * trie for each combination of these.<p>
+ *
+ * The size of the cache is measured in backpointers, which make up
+ * most of the memory of a column. When the cache grows beyond its maximum
+ * size, the columns that were used least recently are evicted,
+ * together with the columns for all songs that continue them.
+ * A cache can be shared by several arrangers in different threads.
+ */
+public class PrefixCache {
+    /**
+     * The maximum number of backpointers that a cache keeps by default.
+     */
+    public static final long DEFAULT_MAX_BACKPOINTERS = 1000000;
+
+    private final long maxBackpointers;
+    private final Map<List<Integer>, Node> roots = new HashMap<>();
+    private long backpointers = 0;
+    private int columns = 0;
+    private long time = 0; // for finding the least recently used columns
+    private final LongAdder resumedColumns = new LongAdder();
+
+    public PrefixCache() {
+        this(DEFAULT_MAX_BACKPOINTERS);
+    }
+
+    /**
+     * Creates a cache which keeps at most the given number of backpointers.
+     *
+     * @param maxBackpointers
+     */
+    public PrefixCache(long maxBackpointers) {
+        this.maxBackpointers = maxBackpointers;
+    }
+
+    /**
+     * Returns the number of columns that are currently in the cache.
+     *
+     * @return
+     */
+    public synchronized int getCachedColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of backpointers that are currently in the cache.
+     *
+     * @return
+     */
+    public synchronized long getCachedBackpointers() {
+        return backpointers;
+    }
+
+    /**
+     * Returns the total number of columns that arrangers took from the
+     * cache instead of computing them.
+     *
+     * @return
+     */
+    public long getResumedColumns() {
+        return resumedColumns.sum();
+    }
+
+    /**
+     * Returns the columns for the longest beginning of the melody
+     * of the given score that is in the cache, one for each note.
+     *
+     * @param config
+     * @param beamWidth
+     * @param score
+     * @return
+     */
+    synchronized List<Arrange.ForwardColumn> lookup(Config config, int beamWidth, ColumnarScore score) {
+        List<Arrange.ForwardColumn> ret = new ArrayList<>();
+        Node node = roots.get(getFingerprint(config, beamWidth));
+        long now = ++time;
+
+        for (int pos = 0; node != null && pos < score.countNotes(VoicePart.LEAD); pos++) {
+            node = node.children.get(getNoteKey(score, pos));
+
+            if (node != null) {
+                node.lastUsed = now;
+                ret.add(node.column);
+            }
+        }
+
+        resumedColumns.add(ret.size());
+        return ret;
+    }
+
+    /**
+     * Adds the columns for the given score to the cache. There must be
+     * one column for each note of the melody. Columns that are already in
+     * the cache are kept.
+     *
+     * @param config
+     * @param beamWidth
+     * @param score
+     * @param columns
+     */
+    synchronized void store(Config config, int beamWidth, ColumnarScore score, List<Arrange.ForwardColumn> columns) {
+        Node node = roots.computeIfAbsent(getFingerprint(config, beamWidth), fp -> new Node(null, null, null, 0));
+        long now = ++time;
+
+        for (int pos = 0; pos < columns.size(); pos++) {
+            List<Object> key = getNoteKey(score, pos);
+            Node child = node.children.get(key);
+
+            if (child == null) {
+                child = new Node(node, key, columns.get(pos), pos + 1);
+                node.children.put(key, child);
+                backpointers += child.column.getBackpointerCount();
+                this.columns++;
+            }
+
+            child.lastUsed = now;
+            node = child;
+        }
+
+        if (backpointers > maxBackpointers) {
+            evict();
+        }
+    }
+
+    // Evicts the least recently used columns until the cache is at three quarters of its maximum size.
+    // Each lookup and store marks all columns on the path as used at the same time, so the children
+    // of a column were used at most as recently as the column itself. Among columns that were used
+    // at the same time, the deeper ones are evicted first, so columns are only evicted after their children.
+    private void evict() {
+        List<Node> nodes = new ArrayList<>();
+        for (Node root : roots.values()) {
+            root.collect(nodes);
+        }
+
+        nodes.sort(Comparator.comparing((Node n) -> n.lastUsed).thenComparing(n -> -n.depth));
+
+        for (Node node : nodes) {
+            if (backpointers <= maxBackpointers * 3 / 4) {
+                break;
+            }
+
+            if (node.parent != null && node.parent.children.get(node.key) == node) {
+                node.parent.children.remove(node.key);
+                node.parent = null;
+                removeSubtree(node);
+            }
+        }
+
+        roots.values().removeIf(root -> root.children.isEmpty());
+    }
+
+    private void removeSubtree(Node node) {
+        backpointers -= node.column.getBackpointerCount();
+        columns--;
+
+        for (Node child : node.children.values()) {
+            child.parent = null;
+            removeSubtree(child);
+        }
+    }
+
+    // the columns depend on the voice ranges, rule weights, and beam width
+    private static List<Integer> getFingerprint(Config config, int beamWidth) {
+        Config.Scores scores = config.getScores();
+        List<Integer> ret = new ArrayList<>(Arrays.asList(scores.getHarmonyLeaps(), scores.getParallelOctaves(), scores.getTenorCrossing(), scores.getUnisonNotes(), scores.getWideSpread(), scores.getConsecutiveLeaps(), scores.getUnresolvedLeaps(), beamWidth));
+
+        for (VoicePart part : config.getVoiceParts()) {
+            ret.add(part.getLowLimit().getAbsoluteNote());
+            ret.add(part.getHighLimit().getAbsoluteNote());
+        }
+
+        return ret;
+    }
+
+    private static List<Object> getNoteKey(ColumnarScore score, int pos) {
+        return Arrays.asList(score.getPitch(VoicePart.LEAD, pos), score.getDuration(VoicePart.LEAD, pos), score.getChordAtNote(VoicePart.LEAD, pos));
+    }
+
+    private static class Node {
+        private Node parent;
+        private final List<Object> key;
+        private final Arrange.ForwardColumn column;
+        private final int depth;
+        private final Map<List<Object>, Node> children = new HashMap<>();
+        private long lastUsed;
+
+        public Node(Node parent, List<Object> key, Arrange.ForwardColumn column, int depth) {
+            this.parent = parent;
+            this.key = key;
+            this.column = column;
+            this.depth = depth;
+        }
+
+        public void collect(List<Node> nodes) {
+            for (Node child : children.values()) {
+                nodes.add(child);
+                child.collect(nodes);
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ package de.saar.coli.arranger;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
 import java.util.function.BiConsumer;
 
 /**
@@ -169,6 +171,17 @@ public class Score {
         chords.add(new Pair<>(startTime, chord));
     }
 
+    /**
+     * Returns the chords of this score, in the order in which
+     * they were added. Each chord is paired with its start time
+     * in 1/8 notes since the beginning of the score.
+     *
+     * @return
+     */
+    public List<Pair<Integer,Chord>> getChords() {
+        return chords;
+    }
+
     /**
      * Adds a word to the end of the lyrics.
      *
@@ -230,6 +243,84 @@ public class Score {
         return ret;
     }
 
+    /**
+     * Returns a copy of this score in which all notes and chords
+     * are transposed up or down the given number of half-steps.
+     * The key is transposed as well, unless it is not one of the
+     * keys known to {@link Key}.
+     *
+     * @param halfsteps
+     * @return
+     */
+    public Score transpose(int halfsteps) {
+        String transposedKey = Key.transposeName(key, halfsteps);
+        Score ret = new Score(title, composer, transposedKey == null ? key : transposedKey, quartersPerMeasure);
+        ret.tempo = tempo;
+        ret.lyrics = new ArrayList<>(lyrics);
+
+        for (Pair<Integer, Chord> chord : chords) {
+            int root = Math.floorMod(chord.getRight().getRoot() + halfsteps, 12);
+            ret.addChord(chord.getLeft(), Chord.lookup(Note.getNoteName(root), chord.getRight().getType()));
+        }
+
+        for( int part = 0; part < 4; part++ ) {
+            for( Note note : parts[part] ) {
+                ret.addNote(part, note.transpose(halfsteps));
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns a copy of this score in which each note of the lead part
+     * during which the chord changes is split into several notes, one for
+     * each chord. This way, the harmony parts of an arrangement can move
+     * under a sustained melody note, e.g. for a swipe. Chords that are
+     * restated without changing do not split a note. The other parts
+     * are copied unchanged.
+     *
+     * @return
+     */
+    public Score splitAtChordChanges() {
+        Score ret = cloneWithoutNotes();
+        ChordTimeline timeline = new ChordTimeline(chords);
+        TreeSet<Integer> chordStartTimes = new TreeSet<>();
+        int time = 0;
+
+        for (Pair<Integer, Chord> chord : chords) {
+            chordStartTimes.add(chord.getLeft());
+        }
+
+        for (Note note : getPart(VoicePart.LEAD)) {
+            int start = time;
+            Chord chord = timeline.getChordAtTime(time);
+
+            for (int change : chordStartTimes.subSet(time + 1, time + note.getDuration())) {
+                Chord nextChord = timeline.getChordAtTime(change);
+
+                if (!Objects.equals(chord, nextChord)) {
+                    ret.addNote(VoicePart.LEAD, Note.create(note.getAbsoluteNote(), change - start));
+                    start = change;
+                    chord = nextChord;
+                }
+            }
+
+            ret.addNote(VoicePart.LEAD, Note.create(note.getAbsoluteNote(), time + note.getDuration() - start));
+            time += note.getDuration();
+        }
+
+        for (int part = 0; part < 4; part++) {
+            if (part != VoicePart.LEAD) {
+                for (Note note : parts[part]) {
+                    ret.addNote(part, note);
+                }
+            }
+        }
+
+        return ret;
+    }
+
     /**
      * Iterates over all the notes in the given part.
      * With each note, the corresponding chord is passed
@@ -239,10 +330,11 @@ public class Score {
      * @param fn
      */
     public void foreachNoteAndChord(int part, BiConsumer<Note,Chord> fn) {
+        ChordTimeline.Cursor chordCursor = new ChordTimeline(chords).cursor();
         int time = 0;
 
         for (Note note : getPart(part)) {
-            Chord chord = getChordAtTime(time);
+            Chord chord = chordCursor.getChordAtTime(time);
             fn.accept(note, chord);
             time += note.getDuration();
         }
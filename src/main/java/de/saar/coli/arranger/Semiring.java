@@ -0,0 +1,146 @@
+package de.saar.coli.arranger;
+
+/**
+ * A semiring over doubles, in which a {@link VoicingLattice} sums up
+ * its paths. The weight of a path is the product of the weights of its
+ * voicings and transitions, and the semiring sum of the weights
+ * of all paths is computed with the forward algorithm. Depending on the
+ * semiring, this is the score of the best arrangement, the logarithm of
+ * a sum of probabilities, or the number of arrangements.<p>
+ *
+ * The operations work on primitive doubles, so that the lattice
+ * does not need to box its values. The generic algorithms of the lattice
+ * call the operations through this interface; for the max-plus and counting
+ * semirings, {@link VoicingLattice#getBestScore()} and
+ * {@link VoicingLattice#countArrangements()} use specialized loops instead.
+ */
+public interface Semiring {
+    /**
+     * Max-plus: the weight of a path is its score, and the sum of
+     * the paths is the score of the best one.
+     */
+    Semiring MAX_PLUS = new MaxPlus();
+
+    /**
+     * Counting: each path has weight one, and the sum of the paths is the number
+     * of arrangements. Counts above 2^53 are not exact.
+     */
+    Semiring COUNTING = new Counting();
+
+    /**
+     * Returns the log semiring for the given temperature: the weight of a path
+     * is its score divided by the temperature, and the sum of the paths
+     * is the logarithm of the sum of their exponentiated weights. Higher temperatures
+     * spread the probabilities more evenly over the arrangements.
+     *
+     * @param temperature
+     * @return
+     */
+    static Semiring log(double temperature) {
+        return new Log(temperature);
+    }
+
+    double zero();
+
+    double one();
+
+    double plus(double a, double b);
+
+    double times(double a, double b);
+
+    /**
+     * Returns the weight of a voicing or transition with the given score.
+     *
+     * @param score
+     * @return
+     */
+    double fromScore(int score);
+
+    final class MaxPlus implements Semiring {
+        @Override
+        public double zero() {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public double one() {
+            return 0;
+        }
+
+        @Override
+        public double plus(double a, double b) {
+            return Math.max(a, b);
+        }
+
+        @Override
+        public double times(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        public double fromScore(int score) {
+            return score;
+        }
+    }
+
+    final class Counting implements Semiring {
+        @Override
+        public double zero() {
+            return 0;
+        }
+
+        @Override
+        public double one() {
+            return 1;
+        }
+
+        @Override
+        public double plus(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        public double times(double a, double b) {
+            return a * b;
+        }
+
+        @Override
+        public double fromScore(int score) {
+            return 1;
+        }
+    }
+
+    final class Log implements Semiring {
+        private final double temperature;
+
+        public Log(double temperature) {
+            this.temperature = temperature;
+        }
+
+        @Override
+        public double zero() {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public double one() {
+            return 0;
+        }
+
+        @Override
+        public double plus(double a, double b) {
+            double max = Math.max(a, b);
+            return max == Double.NEGATIVE_INFINITY ? max : max + Math.log1p(Math.exp(Math.min(a, b) - max));
+        }
+
+        @Override
+        public double times(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        public double fromScore(int score) {
+            return score / temperature;
+        }
+    }
+}
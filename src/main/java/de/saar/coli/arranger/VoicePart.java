@@ -57,6 +57,26 @@ public class VoicePart {
         return notesForPart;
     }
 
+    /**
+     * Returns the number of notes within the range of this voice part
+     * whose relative note numbers are in the given set. This is the
+     * length of the list that {@link #getNotesInRange(Set, int)} would return.
+     *
+     * @param relativeNotes
+     * @return
+     */
+    public int countNotesInRange(Set<Integer> relativeNotes) {
+        int count = 0;
+
+        for( int absoluteNote = getLowLimit().getAbsoluteNote(); absoluteNote <= getHighLimit().getAbsoluteNote(); absoluteNote++) {
+            if( relativeNotes.contains(absoluteNote%12)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
     public void setBottom(String bottom) {
         lowLimit = Note.create(bottom, 0);
     }
@@ -0,0 +1,371 @@
+package de.saar.coli.arranger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The lattice of all voicings of a score, together with the scores
+ * of the voicings and of the transitions between the voicings of consecutive
+ * notes. The paths through the lattice are the arrangements of the score.
+ * The scores are computed once, when the lattice is built; afterwards,
+ * the lattice can be analyzed in any {@link Semiring}, e.g. to compute
+ * the score of the best arrangement, the probabilities of the voicings
+ * of each note, or the number of arrangements. The lattice can also
+ * compute the k best arrangements.<p>
+ *
+ * The lattice is meant for analyzing a score. It does not use the
+ * caches and optimizations of {@link Arrange}, which is faster for
+ * finding the best arrangement. Second-order voice leading rules are
+ * not taken into account, and notes are not split at chord changes;
+ * use {@link Score#splitAtChordChanges()} before building the lattice
+ * to arrange the same notes as the arranger.
+ */
+public class VoicingLattice {
+    private final Config config;
+    private final ColumnarScore score;
+    private final List<List<Note[]>> voicings = new ArrayList<>(); // for each note, the valid voicings
+    private final List<int[]> voicingScores = new ArrayList<>();
+    private final List<int[]> transitionScores = new ArrayList<>(); // for each note, [u * voicings here + v] from voicing u of the previous note
+
+    /**
+     * Builds the lattice for the given score, with the rules
+     * and voice ranges of the given arranger.
+     *
+     * @param arranger
+     * @param config
+     * @param score
+     */
+    public VoicingLattice(Arrange arranger, Config config, ColumnarScore score) {
+        this.config = config;
+        this.score = score;
+        int n = score.countNotes(VoicePart.LEAD);
+
+        for (int pos = 0; pos < n; pos++) {
+            List<List<Note>> notesHere = arranger.computePossibleNotes(score, pos);
+            Chord chord = score.getChordAtNote(VoicePart.LEAD, pos);
+            List<Note[]> voicingsHere = new ArrayList<>();
+            List<Integer> scoresHere = new ArrayList<>();
+
+            for (Note bs : notesHere.get(VoicePart.BASS)) {
+                if (chord.isAllowedBassNote(bs)) {
+                    for (Note ld : notesHere.get(VoicePart.LEAD)) {
+                        for (Note br : notesHere.get(VoicePart.BARI)) {
+                            for (Note tn : notesHere.get(VoicePart.TENOR)) {
+                                Note[] notes = new Note[]{tn, ld, br, bs};
+                                int voicingScore = arranger.scoreVoicing(notes, chord);
+
+                                if (voicingScore > Integer.MIN_VALUE) {
+                                    voicingsHere.add(notes);
+                                    scoresHere.add(voicingScore);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            int[] transitions = new int[pos == 0 ? 0 : voicings.get(pos - 1).size() * voicingsHere.size()];
+
+            for (int u = 0; pos > 0 && u < voicings.get(pos - 1).size(); u++) {
+                for (int v = 0; v < voicingsHere.size(); v++) {
+                    transitions[u * voicingsHere.size() + v] = arranger.scoreVoiceLeading(voicings.get(pos - 1).get(u), voicingsHere.get(v));
+                }
+            }
+
+            voicings.add(voicingsHere);
+            voicingScores.add(scoresHere.stream().mapToInt(Integer::intValue).toArray());
+            transitionScores.add(transitions);
+        }
+    }
+
+    public int countNotes() {
+        return voicings.size();
+    }
+
+    /**
+     * Returns the valid voicings for the note at the given position.
+     * The values that the lattice computes for this note are in the same order.
+     *
+     * @param pos
+     * @return
+     */
+    public List<Note[]> getVoicings(int pos) {
+        return voicings.get(pos);
+    }
+
+    /**
+     * Runs the forward algorithm in the given semiring. The value for
+     * a voicing is the sum of the weights of all paths from the
+     * first note to this voicing, including the weight of the voicing.
+     *
+     * @param semiring
+     * @return
+     */
+    public double[][] forward(Semiring semiring) {
+        int n = countNotes();
+        double[][] ret = new double[n][];
+
+        for (int pos = 0; pos < n; pos++) {
+            int size = voicings.get(pos).size();
+            int[] transitions = transitionScores.get(pos);
+            ret[pos] = new double[size];
+
+            for (int v = 0; v < size; v++) {
+                double sum = pos == 0 ? semiring.one() : semiring.zero();
+
+                for (int u = 0; pos > 0 && u < ret[pos - 1].length; u++) {
+                    sum = semiring.plus(sum, semiring.times(ret[pos - 1][u], semiring.fromScore(transitions[u * size + v])));
+                }
+
+                ret[pos][v] = semiring.times(sum, semiring.fromScore(voicingScores.get(pos)[v]));
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Runs the backward algorithm in the given semiring. The value for a voicing
+     * is the sum of the weights of all paths from this voicing to the last note,
+     * excluding the weight of the voicing.
+     *
+     * @param semiring
+     * @return
+     */
+    public double[][] backward(Semiring semiring) {
+        int n = countNotes();
+        double[][] ret = new double[n][];
+
+        for (int pos = n - 1; pos >= 0; pos--) {
+            ret[pos] = new double[voicings.get(pos).size()];
+
+            for (int u = 0; u < ret[pos].length; u++) {
+                double sum = pos == n - 1 ? semiring.one() : semiring.zero();
+
+                for (int v = 0; pos < n - 1 && v < ret[pos + 1].length; v++) {
+                    double weight = semiring.times(semiring.fromScore(transitionScores.get(pos + 1)[u * ret[pos + 1].length + v]), semiring.fromScore(voicingScores.get(pos + 1)[v]));
+                    sum = semiring.plus(sum, semiring.times(weight, ret[pos + 1][v]));
+                }
+
+                ret[pos][u] = sum;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the sum of the weights of all paths through the lattice in the given semiring.
+     *
+     * @param semiring
+     * @return
+     */
+    public double getTotal(Semiring semiring) {
+        return getTotal(semiring, forward(semiring));
+    }
+
+    /**
+     * Returns the score of the best arrangement, or Integer.MIN_VALUE
+     * if there is no valid arrangement. This is the forward algorithm in the
+     * max-plus semiring, specialized to ints.
+     *
+     * @return
+     */
+    public int getBestScore() {
+        int[] previous = null;
+
+        for (int pos = 0; pos < countNotes(); pos++) {
+            int size = voicings.get(pos).size();
+            int[] transitions = transitionScores.get(pos);
+            int[] here = new int[size];
+
+            for (int v = 0; v < size; v++) {
+                int best = pos == 0 ? 0 : Integer.MIN_VALUE;
+
+                for (int u = 0; pos > 0 && u < previous.length; u++) {
+                    if (previous[u] > Integer.MIN_VALUE) {
+                        best = Math.max(best, previous[u] + transitions[u * size + v]);
+                    }
+                }
+
+                here[v] = best == Integer.MIN_VALUE ? best : best + voicingScores.get(pos)[v];
+            }
+
+            previous = here;
+        }
+
+        return previous == null ? Integer.MIN_VALUE : Arrays.stream(previous).max().orElse(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Returns the number of valid arrangements. This is the forward algorithm
+     * in the counting semiring, specialized to the case that every voicing can follow
+     * every voicing of the previous note: the count is the product of the numbers of
+     * voicings. Counts above 2^53 are not exact.
+     *
+     * @return
+     */
+    public double countArrangements() {
+        double ret = countNotes() == 0 ? 0 : 1;
+
+        for (List<Note[]> voicingsHere : voicings) {
+            ret *= voicingsHere.size();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the probability of each voicing of each note, if the probability of
+     * an arrangement is proportional to exp(score / temperature). The probabilities for
+     * each note sum to one, unless there is no valid arrangement.
+     *
+     * @param temperature
+     * @return
+     */
+    public double[][] getMarginals(double temperature) {
+        Semiring semiring = Semiring.log(temperature);
+        double[][] forward = forward(semiring);
+        double[][] backward = backward(semiring);
+        double total = getTotal(semiring, forward);
+        double[][] ret = new double[countNotes()][];
+
+        for (int pos = 0; pos < ret.length; pos++) {
+            ret[pos] = new double[forward[pos].length];
+
+            for (int v = 0; v < ret[pos].length && total > Double.NEGATIVE_INFINITY; v++) {
+                ret[pos][v] = Math.exp(forward[pos][v] + backward[pos][v] - total);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the k best arrangements, best first. This is the forward algorithm in the
+     * semiring of k-best lists, specialized to arrays of scores and backpointers.
+     * Arrangements with the same score are returned in an arbitrary but fixed order.
+     *
+     * @param k
+     * @return
+     */
+    public List<Arrangement> getBestArrangements(int k) {
+        long startTime = System.nanoTime();
+        int n = countNotes();
+        List<Arrangement> ret = new ArrayList<>();
+
+        if (n == 0) {
+            return ret;
+        }
+
+        // for each note and voicing, the k best scores of paths ending in it, and for
+        // each of them the voicing of the previous note and its rank in that voicing's list
+        int[][][] scores = new int[n][][];
+        int[][][] previousVoicings = new int[n][][];
+        int[][][] previousRanks = new int[n][][];
+
+        for (int pos = 0; pos < n; pos++) {
+            int size = voicings.get(pos).size();
+            scores[pos] = new int[size][];
+            previousVoicings[pos] = new int[size][];
+            previousRanks[pos] = new int[size][];
+
+            for (int v = 0; v < size; v++) {
+                int voicingScore = voicingScores.get(pos)[v];
+
+                if (pos == 0) {
+                    scores[pos][v] = new int[]{voicingScore};
+                    previousVoicings[pos][v] = new int[]{-1};
+                    previousRanks[pos][v] = new int[]{-1};
+                } else {
+                    List<int[]> candidates = new ArrayList<>(); // score, previous voicing, rank
+
+                    for (int u = 0; u < scores[pos - 1].length; u++) {
+                        int transition = transitionScores.get(pos)[u * size + v];
+
+                        for (int r = 0; r < scores[pos - 1][u].length; r++) {
+                            candidates.add(new int[]{scores[pos - 1][u][r] + transition + voicingScore, u, r});
+                        }
+                    }
+
+                    List<int[]> best = selectBest(candidates, k);
+                    scores[pos][v] = best.stream().mapToInt(c -> c[0]).toArray();
+                    previousVoicings[pos][v] = best.stream().mapToInt(c -> c[1]).toArray();
+                    previousRanks[pos][v] = best.stream().mapToInt(c -> c[2]).toArray();
+                }
+            }
+        }
+
+        List<int[]> finalCandidates = new ArrayList<>(); // score, voicing, rank
+        for (int v = 0; v < scores[n - 1].length; v++) {
+            for (int r = 0; r < scores[n - 1][v].length; r++) {
+                finalCandidates.add(new int[]{scores[n - 1][v][r], v, r});
+            }
+        }
+
+        Score original = score.toScore();
+
+        for (int[] candidate : selectBest(finalCandidates, k)) {
+            Note[][] path = new Note[n][];
+            int v = candidate[1];
+            int r = candidate[2];
+
+            for (int pos = n - 1; pos >= 0; pos--) {
+                path[pos] = voicings.get(pos).get(v);
+                int u = previousVoicings[pos][v][r];
+                r = previousRanks[pos][v][r];
+                v = u;
+            }
+
+            Score arrangement = original.cloneWithoutNotes();
+            arrangement.setComposer(config.getArranger());
+
+            for (Note[] notes : path) {
+                for (int part = 0; part < 4; part++) {
+                    arrangement.addNote(part, notes[part]);
+                }
+            }
+
+            ret.add(new Arrangement(arrangement, original, candidate[0], System.nanoTime() - startTime));
+        }
+
+        return ret;
+    }
+
+    private double getTotal(Semiring semiring, double[][] forward) {
+        double ret = semiring.zero();
+
+        if (forward.length > 0) {
+            for (double value : forward[forward.length - 1]) {
+                ret = semiring.plus(ret, value);
+            }
+        }
+
+        return ret;
+    }
+
+    // the k candidates with the highest scores, best first; among candidates with
+    // the same score, the ones that came first in the list are preferred
+    private static List<int[]> selectBest(List<int[]> candidates, int k) {
+        PriorityQueue<Integer> worst = new PriorityQueue<>((i, j) -> {
+            int c = Integer.compare(candidates.get(i)[0], candidates.get(j)[0]);
+            return c != 0 ? c : Integer.compare(j, i);
+        });
+
+        for (int i = 0; i < candidates.size(); i++) {
+            worst.add(i);
+            if (worst.size() > k) {
+                worst.poll();
+            }
+        }
+
+        int[][] ret = new int[worst.size()][];
+        for (int i = ret.length - 1; i >= 0; i--) {
+            ret[i] = candidates.get(worst.poll());
+        }
+
+        return new ArrayList<>(Arrays.asList(ret));
+    }
+}
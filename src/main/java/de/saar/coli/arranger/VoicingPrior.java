@@ -0,0 +1,209 @@
+package de.saar.coli.arranger;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts how often each voicing shape was used in a corpus of arrangements,
+ * separately for each chord type and interval of the lead note above the root
+ * of the chord. The shape of a voicing is the distance of the tenor, baritone,
+ * and bass from the lead, in half steps; it does not depend on the key.
+ * A prior can be learned with the {@link de.saar.coli.arranger.corpus.VoicingPriorLearner},
+ * and saved and loaded as a YAML file.<p>
+ *
+ * Most voicings that the rules allow are never used in real arrangements.
+ * An {@link Arrange} with a prior (see {@link Arrange#setVoicingPrior(VoicingPrior, double)})
+ * therefore only considers the most frequent shapes for each chord type and lead
+ * interval: just enough of them to cover the given fraction (the recall) of the
+ * voicings in the corpus. Shapes that were never seen are dropped as well, unless
+ * the corpus contains no voicing at all for the chord type and lead interval.
+ */
+public class VoicingPrior {
+    private long voicings = 0;
+    private final Map<String, Map<Integer, Map<Integer, Long>>> counts = new TreeMap<>(); // chord type -> lead interval -> shape -> count
+    private final Map<List<Object>, Set<Integer>> likelyShapes = new ConcurrentHashMap<>(); // (chord type, lead interval, recall) -> shapes
+
+    /**
+     * Records that the given voicing was used for the given chord.
+     *
+     * @param voicing
+     * @param chord
+     */
+    public void add(Note[] voicing, Chord chord) {
+        add(chord.getType().name(), getLeadInterval(voicing[VoicePart.LEAD], chord), getShape(voicing), 1);
+    }
+
+    /**
+     * Adds the counts of the other prior to this one.
+     *
+     * @param other
+     * @return this prior
+     */
+    public VoicingPrior add(VoicingPrior other) {
+        other.counts.forEach((chordType, byInterval) -> byInterval.forEach((interval, byShape) -> byShape.forEach((shape, count) -> add(chordType, interval, shape, count))));
+        return this;
+    }
+
+    private void add(String chordType, int leadInterval, int shape, long count) {
+        counts.computeIfAbsent(chordType, t -> new TreeMap<>()).computeIfAbsent(leadInterval, i -> new TreeMap<>()).merge(shape, count, Long::sum);
+        voicings += count;
+        likelyShapes.clear();
+    }
+
+    /**
+     * Returns the number of voicings that were counted.
+     *
+     * @return
+     */
+    public long getVoicings() {
+        return voicings;
+    }
+
+    /**
+     * Returns how often voicings with the same shape as the given one were
+     * used for chords of the same type, with the lead at the same interval.
+     *
+     * @param voicing
+     * @param chord
+     * @return
+     */
+    public long getCount(Note[] voicing, Chord chord) {
+        return getShapeCounts(chord, voicing[VoicePart.LEAD]).getOrDefault(getShape(voicing), 0L);
+    }
+
+    /**
+     * Returns the most frequent shapes for the given chord and lead note,
+     * which together make up at least the given fraction of the counted voicings.
+     * Returns null if no voicing was counted for the chord type and lead interval.
+     *
+     * @param chord
+     * @param lead
+     * @param recall
+     * @return
+     */
+    public Set<Integer> getLikelyShapes(Chord chord, Note lead, double recall) {
+        String chordType = chord.getType().name();
+        int interval = getLeadInterval(lead, chord);
+        Map<Integer, Long> shapeCounts = getShapeCounts(chord, lead);
+
+        if (shapeCounts.isEmpty()) {
+            return null;
+        }
+
+        return likelyShapes.computeIfAbsent(List.of(chordType, interval, recall), key -> {
+            List<Map.Entry<Integer, Long>> sorted = new ArrayList<>(shapeCounts.entrySet());
+            sorted.sort(Map.Entry.<Integer, Long>comparingByValue().reversed()); // stable, so ties stay sorted by shape
+            long total = shapeCounts.values().stream().mapToLong(Long::longValue).sum();
+            Set<Integer> ret = new HashSet<>();
+            long covered = 0;
+
+            for (Map.Entry<Integer, Long> entry : sorted) {
+                if (covered >= recall * total) {
+                    break;
+                }
+
+                ret.add(entry.getKey());
+                covered += entry.getValue();
+            }
+
+            return ret;
+        });
+    }
+
+    private Map<Integer, Long> getShapeCounts(Chord chord, Note lead) {
+        return counts.getOrDefault(chord.getType().name(), Map.of()).getOrDefault(getLeadInterval(lead, chord), Map.of());
+    }
+
+    /**
+     * Returns the shape of the given voicing, i.e. the distances of the tenor,
+     * baritone, and bass from the lead, packed into one number.
+     *
+     * @param voicing
+     * @return
+     */
+    public static int getShape(Note[] voicing) {
+        int lead = voicing[VoicePart.LEAD].getAbsoluteNote();
+        return packShape(voicing[VoicePart.TENOR].getAbsoluteNote() - lead,
+                voicing[VoicePart.BARI].getAbsoluteNote() - lead,
+                voicing[VoicePart.BASS].getAbsoluteNote() - lead);
+    }
+
+    // each distance is stored in seven bits, with an offset of 64
+    private static int packShape(int tenor, int bari, int bass) {
+        return (tenor + 64) | (bari + 64) << 7 | (bass + 64) << 14;
+    }
+
+    // "tenor,bari,bass", e.g. "4,-3,-12"
+    private static String shapeName(int shape) {
+        return ((shape & 0x7f) - 64) + "," + (((shape >> 7) & 0x7f) - 64) + "," + (((shape >> 14) & 0x7f) - 64);
+    }
+
+    private static int parseShape(String name) {
+        String[] distances = name.split(",");
+        return packShape(Integer.parseInt(distances[0].trim()), Integer.parseInt(distances[1].trim()), Integer.parseInt(distances[2].trim()));
+    }
+
+    private static int getLeadInterval(Note lead, Chord chord) {
+        return Math.floorMod(lead.getAbsoluteNote() - chord.getRoot(), 12);
+    }
+
+    /**
+     * Writes this prior to the given writer, in YAML format.
+     *
+     * @param writer
+     */
+    public void write(Writer writer) {
+        Map<String, Object> countsYaml = new LinkedHashMap<>();
+
+        counts.forEach((chordType, byInterval) -> {
+            Map<Integer, Object> intervalsYaml = new LinkedHashMap<>();
+
+            byInterval.forEach((interval, byShape) -> {
+                Map<String, Long> shapesYaml = new LinkedHashMap<>();
+                byShape.forEach((shape, count) -> shapesYaml.put(shapeName(shape), count));
+                intervalsYaml.put(interval, shapesYaml);
+            });
+
+            countsYaml.put(chordType, intervalsYaml);
+        });
+
+        Map<String, Object> yaml = new LinkedHashMap<>();
+        yaml.put("voicings", voicings);
+        yaml.put("counts", countsYaml);
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        new Yaml(options).dump(yaml, writer);
+    }
+
+    /**
+     * Reads a prior that was written with {@link #write(Writer)}.
+     *
+     * @param reader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static VoicingPrior read(Reader reader) {
+        Map<String, Object> yaml = (Map<String, Object>) new Yaml().load(reader);
+        VoicingPrior ret = new VoicingPrior();
+        Map<String, Map<Object, Map<String, Number>>> countsYaml = (Map<String, Map<Object, Map<String, Number>>>) yaml.get("counts");
+
+        if (countsYaml != null) {
+            countsYaml.forEach((chordType, byInterval) -> byInterval.forEach((interval, byShape) -> byShape.forEach((shape, count) ->
+                    ret.add(chordType, Integer.parseInt(interval.toString()), parseShape(shape), count.longValue()))));
+        }
+
+        return ret;
+    }
+}
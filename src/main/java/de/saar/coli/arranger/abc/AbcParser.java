@@ -35,15 +35,119 @@ import static de.saar.coli.arranger.Arrange.loadConfig;
  * </ul>
  */
 public class AbcParser {
+    /**
+     * Reads a score in ABC notation. Most inputs are read by the
+     * hand-written {@link AbcSubsetParser}; inputs that it does not
+     * recognize are read with the ANTLR grammar instead.
+     *
+     * @param abcReader
+     * @return
+     * @throws IOException
+     * @throws AbcParsingException
+     */
     public Score read(Reader abcReader) throws IOException, AbcParsingException {
+        String abc = Util.slurp(abcReader);
+
+        if( abc == null ) {
+            throw new IOException("Could not read ABC input.");
+        }
+
+        Score score = new AbcSubsetParser().parse(abc);
+
+        if( score != null ) {
+            return score;
+        } else {
+            return readWithGrammar(new StringReader(abc));
+        }
+    }
+
+    /**
+     * Reads a score in ABC notation, always using the ANTLR grammar.
+     *
+     * @param abcReader
+     * @return
+     * @throws IOException
+     * @throws AbcParsingException
+     */
+    public Score readWithGrammar(Reader abcReader) throws IOException, AbcParsingException {
+        return readWithGrammar(abcReader, false);
+    }
+
+    /**
+     * Reads a four-part arrangement in ABC notation. Unlike {@link #read(Reader)},
+     * this keeps the notes of all voices. The notes of each voice are added to the voice
+     * part with the same name (e.g. "V:Tn" or "V:Bass"); voices with other names
+     * are assigned to the remaining voice parts in the order Tn, Ld, Br, Bs.
+     * Only the chords of the first voice that contains chords are kept.
+     *
+     * @param abcReader
+     * @return
+     * @throws IOException
+     * @throws AbcParsingException
+     */
+    public Score readAllVoices(Reader abcReader) throws IOException, AbcParsingException {
+        String abc = Util.slurp(abcReader);
+
+        if( abc == null ) {
+            throw new IOException("Could not read ABC input.");
+        }
+
+        Score score = new AbcSubsetParser().parseAllVoices(abc);
+
+        if( score != null ) {
+            return score;
+        } else {
+            return readWithGrammar(new StringReader(abc), true);
+        }
+    }
+
+    private Score readWithGrammar(Reader abcReader, boolean allVoices) throws IOException {
         AbcNotationLexer lexer = new AbcNotationLexer(CharStreams.fromReader(abcReader));
         AbcNotationParser parser = new AbcNotationParser(new CommonTokenStream(lexer));
 
-        AbcParseTreeVisitor visitor = new AbcParseTreeVisitor();
+        AbcParseTreeVisitor visitor = new AbcParseTreeVisitor(allVoices);
         ParseTreeWalker.DEFAULT.walk(visitor, parser.tune());
         return visitor.score;
     }
 
+    /**
+     * Splits a file with several tunes in ABC notation into the individual tunes.
+     * Each tune starts with an "X:" line. Everything before the first
+     * "X:" line is the file header; as in the ABC standard, it applies
+     * to all tunes and is therefore copied to the start of each tune.
+     * If the file contains no "X:" line at all, it is returned as a single tune.
+     *
+     * @param abc
+     * @return
+     */
+    public static List<String> splitTunes(String abc) {
+        List<String> ret = new ArrayList<>();
+        StringBuilder fileHeader = new StringBuilder();
+        StringBuilder tune = null;
+
+        for( String line : abc.split("\\r?\\n", -1) ) {
+            if( line.startsWith("X:") ) {
+                if( tune != null ) {
+                    ret.add(tune.toString());
+                }
+
+                tune = new StringBuilder(fileHeader);
+            }
+
+            StringBuilder buf = (tune == null) ? fileHeader : tune;
+            buf.append(line);
+            buf.append("\n");
+        }
+
+        if( tune != null ) {
+            ret.add(tune.toString());
+        } else if( ! fileHeader.toString().trim().isEmpty() ) {
+            ret.add(fileHeader.toString());
+        }
+
+        return ret;
+    }
+
     public static class AbcParsingException extends Exception {
         public AbcParsingException() {
         }
@@ -72,8 +176,18 @@ public class AbcParser {
         private List<Note> leadPart = null;
         private int defaultNoteLength = 0; // in eighths
 
+        // only used when all voices are read
+        private final VoiceAssignment voices;  // null if only the last voice is read
+        private int currentPart = VoicePart.LEAD;
+        private final int[] partTimes = new int[5]; // partTimes[part+1] = time at the end of the part so far
+        private Integer chordPart = null;
+
         // TODO: read words - also need to implement this in grammar
 
+        public AbcParseTreeVisitor(boolean allVoices) {
+            voices = allVoices ? new VoiceAssignment() : null;
+        }
+
         @Override
         public void enterVoiceInfo(AbcNotationParser.VoiceInfoContext ctx) {
             leadPart = null;
@@ -81,8 +195,27 @@ public class AbcParser {
 
         @Override
         public void exitVoiceInfo(AbcNotationParser.VoiceInfoContext ctx) {
-            leadPart = score.getPart(1);
-            leadPart.clear();
+            if( voices == null ) {
+                leadPart = score.getPart(1);
+                leadPart.clear();
+            } else {
+                // despite its name, leadPart is the part of the current voice
+                partTimes[currentPart+1] = timeInEighths;
+                currentPart = voices.getPart(ctx.text == null ? "" : ctx.text.getText());
+                timeInEighths = partTimes[currentPart+1];
+                leadPart = currentPart < 0 ? new ArrayList<>() : score.getPart(currentPart);
+            }
+        }
+
+        // When all voices are read, only the chords of the first voice that has chords are kept.
+        private boolean keepChords() {
+            if( voices == null ) {
+                return true;
+            } else if( chordPart == null ) {
+                chordPart = currentPart;
+            }
+
+            return chordPart == currentPart;
         }
 
         @Override
@@ -197,7 +330,7 @@ public class AbcParser {
 
                 if (chord == null) {
                     throw new RuntimeException(String.format("Unknown chord '%s' at time %d.\n", chordStr, timeInEighths));
-                } else {
+                } else if( keepChords() ) {
                     score.addChord(timeInEighths, chord);
                 }
             }
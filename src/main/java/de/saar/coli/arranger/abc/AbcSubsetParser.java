@@ -0,0 +1,627 @@
+package de.saar.coli.arranger.abc;
+
+import de.saar.coli.arranger.*;
+
+/**
+ * A hand-written parser for the subset of ABC notation that AABA
+ * reads in practice: the X, T, C, K, Q, M, L, and N fields, V: lines,
+ * notes with accidentals, octave marks, integer lengths and ties,
+ * chords, rests, slurs, simple barlines, and w: lines. It reads the
+ * ABC text in a single pass, without building tokens or a parse tree.<p>
+ *
+ * For every input that this parser accepts, it returns the same
+ * {@link Score} as the grammar-based parser in {@link AbcParser},
+ * including the peculiarities of the latter (e.g., a V: line discards
+ * the notes read so far, but not the chords and lyrics). If the input
+ * contains anything that this parser does not recognize, or that the
+ * grammar-based parser would treat as a syntax error, {@link #parse(String)}
+ * returns null, and the caller should use the grammar-based parser instead.
+ */
+public class AbcSubsetParser {
+    private static final int EXPECT_IDENTIFIER = 0;
+    private static final int EXPECT_TITLE = 1;
+    private static final int TITLES = 2;
+    private static final int HEADER_FIELDS = 3;
+    private static final int EXPECT_VOICE = 4;
+    private static final int BODY = 5;
+    private static final int AFTER_BODY = 6;
+
+    // kinds of lines in the tune body
+    static final int INVALID_LINE = -1;
+    static final int BLANK_LINE = 0;
+    static final int SKIPPED_LINE = 1;
+    static final int VOICE_LINE = 2;
+    static final int WORDS_LINE = 3;
+    static final int MUSIC_LINE = 4;
+
+    private String abc;
+    private Score score;
+    private int[] accidentals;       // accidentals[letter - 'A'] for uppercase note letters in the current key
+    private int defaultNoteLength;   // in eighths
+    private int timeInEighths;
+
+    // only used when all voices are read
+    private VoiceAssignment voices;  // null if only the last voice is read
+    private int currentPart;         // -1 for ignored voices
+    private int[] partTimes;         // partTimes[part + 1] = time at the end of the part so far
+    private int chordPart;           // the part whose chords are kept, or NO_PART
+
+    private static final int NO_PART = Integer.MIN_VALUE;
+
+    /**
+     * Parses the given ABC text. Returns null if the text is outside
+     * of the subset of ABC notation that this parser supports.
+     *
+     * @param abc
+     * @return
+     */
+    public Score parse(String abc) {
+        return parse(abc, false);
+    }
+
+    /**
+     * Parses a four-part arrangement. Unlike {@link #parse(String)}, the notes of
+     * each voice are kept, and added to the voice part that is determined by the
+     * voice ID (see {@link VoiceAssignment}). The time is counted separately for each
+     * voice, and only the chords of the first voice that has any chords are kept.
+     * Returns null if the text is outside of the subset of ABC notation that this
+     * parser supports.
+     *
+     * @param abc
+     * @return
+     */
+    public Score parseAllVoices(String abc) {
+        return parse(abc, true);
+    }
+
+    private Score parse(String abc, boolean allVoices) {
+        this.abc = abc;
+        score = new Score("", "", "", 4);
+        accidentals = accidentalsForKey(Key.lookup("C"));
+        defaultNoteLength = 0;
+        timeInEighths = 0;
+        voices = allVoices ? new VoiceAssignment() : null;
+        currentPart = VoicePart.LEAD;
+        partTimes = new int[5];
+        chordPart = NO_PART;
+
+        try {
+            return parseLines() ? score : null;
+        } catch (RuntimeException e) {
+            // Let the grammar-based parser decide how to report the problem.
+            return null;
+        }
+    }
+
+    private boolean parseLines() {
+        int state = EXPECT_IDENTIFIER;
+        int lineStart = 0;
+        int length = abc.length();
+
+        while (lineStart < length) {
+            int newline = abc.indexOf('\n', lineStart);
+            boolean hasNewline = newline >= 0;
+            int lineEnd = hasNewline ? newline : length;
+            int nextLineStart = hasNewline ? newline + 1 : length;
+
+            if (lineEnd > lineStart && abc.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            if (state == BODY || state == AFTER_BODY) {
+                int kind = parseBodyLine(lineStart, lineEnd, hasNewline);
+
+                if (state == AFTER_BODY) {
+                    // a blank line ends the tune; it may only be followed by blank lines and comments
+                    if (kind != BLANK_LINE && kind != SKIPPED_LINE) {
+                        return false;
+                    }
+                } else if (kind == INVALID_LINE) {
+                    return false;
+                } else if (kind == BLANK_LINE) {
+                    state = AFTER_BODY;
+                } else if (kind == VOICE_LINE) {
+                    if (voices != null) {
+                        switchVoice(lineStart + 2, lineEnd);
+                    } else {
+                        // like the grammar-based parser, only keep the notes of the last voice
+                        score.getPart(VoicePart.LEAD).clear();
+                    }
+                }
+
+                lineStart = nextLineStart;
+                continue;
+            }
+
+            if (isBlank(lineStart, lineEnd)) {
+                return false;
+            }
+
+            char first = abc.charAt(lineStart);
+            boolean isField = lineEnd - lineStart >= 2 && abc.charAt(lineStart + 1) == ':';
+            int valueStart = lineStart + 2;
+
+            if (!hasNewline || (first != '%' && !isField)) {
+                // header lines must end with a line break, and there is no music before the first V: line
+                return false;
+            } else if (first == '%' || isUnsupportedField(first)) {
+                // comments and unsupported fields are skipped
+            } else if (state == EXPECT_IDENTIFIER) {
+                if (first != 'X' || !isDigits(valueStart, lineEnd)) {
+                    return false;
+                }
+                state = EXPECT_TITLE;
+            } else if (state == EXPECT_TITLE || state == TITLES || state == HEADER_FIELDS) {
+                // X: is followed by one or more T:, then any other header fields, then K:
+                if (first == 'T') {
+                    if (state == HEADER_FIELDS || !parseStringField(first, valueStart, lineEnd)) {
+                        return false;
+                    }
+                    state = TITLES;
+                } else if (state == EXPECT_TITLE) {
+                    return false;
+                } else if (first == 'K') {
+                    if (!parseStringField(first, valueStart, lineEnd)) {
+                        return false;
+                    }
+                    state = EXPECT_VOICE;
+                } else {
+                    if (!parseHeaderField(first, valueStart, lineEnd)) {
+                        return false;
+                    }
+                    state = HEADER_FIELDS;
+                }
+            } else if (state == EXPECT_VOICE && voices != null && first != 'V') {
+                // in four-part arrangements, such as the ones that AABA writes,
+                // fields like Q: may also come after the K: field
+                if (!parseHeaderField(first, valueStart, lineEnd)) {
+                    return false;
+                }
+            } else if (first == 'V' && valueStart < lineEnd) {
+                state = BODY;
+
+                if (voices != null) {
+                    switchVoice(valueStart, lineEnd);
+                }
+            } else {
+                return false;
+            }
+
+            lineStart = nextLineStart;
+        }
+
+        return state == BODY || state == AFTER_BODY;
+    }
+
+    /**
+     * Parses a single line of the tune body, i.e. a line after the first V: line,
+     * with or without its line break. The notes, chords, and lyrics of the line are added
+     * to the given score, with chord times relative to the start of the line. The key
+     * and default note length are those of the header that was read by the last call
+     * to {@link #parse(String)}.
+     *
+     * @param line
+     * @param fragment
+     * @return the kind of the line, or INVALID_LINE if the line is outside the supported subset
+     */
+    int parseBodyLine(String line, Score fragment) {
+        abc = line;
+        score = fragment;
+        timeInEighths = 0;
+
+        boolean hasNewline = line.endsWith("\n");
+        int lineEnd = hasNewline ? line.length() - 1 : line.length();
+
+        if (lineEnd > 0 && line.charAt(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+
+        try {
+            return parseBodyLine(0, lineEnd, hasNewline);
+        } catch (RuntimeException e) {
+            return INVALID_LINE;
+        }
+    }
+
+    /**
+     * Returns the duration of the notes that were read by the last call
+     * to {@link #parseBodyLine(String, Score)}, in eighths.
+     *
+     * @return
+     */
+    int getTimeInEighths() {
+        return timeInEighths;
+    }
+
+    private int parseBodyLine(int lineStart, int lineEnd, boolean hasNewline) {
+        if (isBlank(lineStart, lineEnd)) {
+            return BLANK_LINE;
+        }
+
+        char first = abc.charAt(lineStart);
+        boolean isField = lineEnd - lineStart >= 2 && abc.charAt(lineStart + 1) == ':';
+        int valueStart = lineStart + 2;
+
+        if (first != '%' && !isField) {
+            return parseMusic(lineStart, lineEnd) ? MUSIC_LINE : INVALID_LINE;
+        } else if (!hasNewline) {
+            // all other lines must end with a line break
+            return INVALID_LINE;
+        } else if (first == '%' || isUnsupportedField(first)) {
+            // comments and unsupported fields are skipped
+            return SKIPPED_LINE;
+        } else if (valueStart == lineEnd) {
+            // V: and w: lines must not be empty
+            return INVALID_LINE;
+        } else if (first == 'V') {
+            return VOICE_LINE;
+        } else if (first == 'w') {
+            for (String word : abc.substring(valueStart, lineEnd).trim().split("\\s+")) {
+                score.addWord(word);
+            }
+            return WORDS_LINE;
+        } else {
+            return INVALID_LINE;
+        }
+    }
+
+    // M, L, N, Q, C
+    private boolean parseHeaderField(char field, int start, int end) {
+        switch (field) {
+            case 'M': {
+                int slash = abc.indexOf('/', start);
+                if (slash < 0 || slash >= end || !isDigits(start, slash) || !isDigits(slash + 1, end)) {
+                    return false;
+                }
+
+                int numerator = Integer.parseInt(abc.substring(start, slash));
+                int denominator = Integer.parseInt(abc.substring(slash + 1, end));
+                score.setQuartersPerMeasure((numerator * 4) / denominator);
+
+                if (defaultNoteLength == 0) {
+                    if (((double) numerator) / denominator < 0.75) {
+                        setDefaultNoteLength(1, 16);
+                    } else {
+                        setDefaultNoteLength(1, 8);
+                    }
+                }
+                return true;
+            }
+
+            case 'L': {
+                start = skipSpaces(start, end);
+                int fractionEnd = start;
+                while (fractionEnd < end && abc.charAt(fractionEnd) != ' ' && abc.charAt(fractionEnd) != '\t') {
+                    fractionEnd++;
+                }
+                if (skipSpaces(fractionEnd, end) != end) {
+                    return false;
+                }
+
+                int slash = abc.indexOf('/', start);
+                if (slash < 0 || slash >= fractionEnd || !isDigits(start, slash) || !isDigits(slash + 1, fractionEnd)) {
+                    return false;
+                }
+
+                setDefaultNoteLength(Integer.parseInt(abc.substring(start, slash)), Integer.parseInt(abc.substring(slash + 1, fractionEnd)));
+                return true;
+            }
+
+            case 'Q':
+                if (!isTempo(start, end)) {
+                    return false;
+                }
+                score.setTempo(abc.substring(start, end).trim());
+                return true;
+
+            case 'N':
+            case 'C':
+                return parseStringField(field, start, end);
+
+            default:
+                return false;
+        }
+    }
+
+    // T, C, K, N
+    private boolean parseStringField(char field, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (!isStringChar(abc.charAt(i))) {
+                return false;
+            }
+        }
+
+        String value = abc.substring(start, end).trim();
+
+        switch (field) {
+            case 'T':
+                score.setTitle(value);
+                break;
+            case 'C':
+                score.setComposer(value);
+                break;
+            case 'K':
+                score.setKey(value);
+                accidentals = accidentalsForKey(Key.lookup(value));
+                break;
+        }
+
+        return true;
+    }
+
+    // Either an integer, or one or more fractions followed by "=" and an integer,
+    // with optional spaces between them.
+    private boolean isTempo(int start, int end) {
+        int i = skipSpaces(start, end);
+        int digitsEnd = skipDigits(i, end);
+
+        if (digitsEnd > i && skipSpaces(digitsEnd, end) == end) {
+            return true;
+        }
+
+        boolean sawFraction = false;
+        while (i < end && abc.charAt(i) != '=') {
+            int numeratorEnd = skipDigits(i, end);
+            if (numeratorEnd == i || numeratorEnd == end || abc.charAt(numeratorEnd) != '/') {
+                return false;
+            }
+
+            int denominatorEnd = skipDigits(numeratorEnd + 1, end);
+            if (denominatorEnd == numeratorEnd + 1) {
+                return false;
+            }
+
+            sawFraction = true;
+            i = skipSpaces(denominatorEnd, end);
+        }
+
+        if (!sawFraction || i == end) {
+            return false;
+        }
+
+        i = skipSpaces(i + 1, end);
+        digitsEnd = skipDigits(i, end);
+        return digitsEnd > i && skipSpaces(digitsEnd, end) == end;
+    }
+
+    /*
+     * A line of music consists of one or more bars, each of which consists
+     * of one or more notes, chords, rests, or slur marks, followed by a barline.
+     * The line must end directly after a barline.
+     */
+    private boolean parseMusic(int start, int end) {
+        int i = start;
+        boolean barHasExpression = false;
+        boolean endsWithBarline = false;
+
+        while (i < end) {
+            int afterSpaces = skipSpaces(i, end);
+            if (afterSpaces == end) {
+                // trailing whitespace
+                return false;
+            }
+            i = afterSpaces;
+
+            char c = abc.charAt(i);
+            endsWithBarline = false;
+
+            if (c == '|' || c == ':') {
+                if (!barHasExpression) {
+                    return false;
+                }
+
+                char next = i + 1 < end ? abc.charAt(i + 1) : 0;
+                if (c == ':' && next != '|' && next != ':') {
+                    return false;
+                }
+
+                i += (next == '|' || next == ']' || next == ':') ? 2 : 1;
+                barHasExpression = false;
+                endsWithBarline = true;
+            } else if (c == '"') {
+                int close = abc.indexOf('"', i + 1);
+                if (close < 0 || close >= end || close == i + 1) {
+                    return false;
+                }
+
+                for (int j = i + 1; j < close; j++) {
+                    if (!isStringChar(abc.charAt(j))) {
+                        return false;
+                    }
+                }
+
+                String chordStr = abc.substring(i + 1, close);
+                Chord chord = Chord.lookup(chordStr);
+
+                if (chord == null) {
+                    return false;
+                }
+
+                if (keepChords()) {
+                    score.addChord(timeInEighths, chord);
+                }
+                i = close + 1;
+                barHasExpression = true;
+            } else if (c == 'z' || c == 'x') {
+                // rests are currently ignored, and do not take up time
+                int digitsEnd = skipDigits(i + 1, end);
+                if (digitsEnd == i + 1 || (digitsEnd < end && abc.charAt(digitsEnd) == '/')) {
+                    return false;
+                }
+
+                i = digitsEnd;
+                barHasExpression = true;
+            } else if (c == '(') {
+                if (i + 1 < end && Character.isDigit(abc.charAt(i + 1))) {
+                    // tuplets
+                    return false;
+                }
+
+                i++;
+                barHasExpression = true;
+            } else if (c == ')') {
+                i++;
+                barHasExpression = true;
+            } else {
+                i = parseNote(i, end);
+                if (i < 0) {
+                    return false;
+                }
+                barHasExpression = true;
+            }
+        }
+
+        return endsWithBarline;
+    }
+
+    // Returns the position after the note, or -1 if there is no valid note at position i.
+    private int parseNote(int i, int end) {
+        char accidental = 0;
+
+        // only the first of several accidentals counts
+        while (i < end && isAccidental(abc.charAt(i))) {
+            if (accidental == 0) {
+                accidental = abc.charAt(i);
+            }
+            i++;
+        }
+
+        if (i == end) {
+            return -1;
+        }
+
+        char letter = abc.charAt(i);
+        boolean uppercase = letter >= 'A' && letter <= 'G';
+
+        if (!uppercase && !(letter >= 'a' && letter <= 'g')) {
+            return -1;
+        }
+
+        i++;
+        if (i < end && abc.charAt(i) == ':') {
+            // "C:" etc. would be read as a header field
+            return -1;
+        }
+
+        // note letters are interpreted in the current key; like the grammar-based
+        // parser, we only look up the key's accidentals for uppercase letters
+        int accidentalOffset = uppercase ? accidentals[letter - 'A'] : 0;
+        switch (accidental) {
+            case '^': accidentalOffset = +1; break;
+            case '_': accidentalOffset = -1; break;
+            case '=': accidentalOffset = 0; break;
+        }
+
+        int octave = uppercase ? 4 : 5;
+        while (i < end && (abc.charAt(i) == '\'' || abc.charAt(i) == ',')) {
+            octave += abc.charAt(i) == '\'' ? 1 : -1;
+            i++;
+        }
+
+        int duration = defaultNoteLength;
+        int digitsEnd = skipDigits(i, end);
+        if (digitsEnd > i) {
+            if (digitsEnd - i > 9) {
+                return -1;
+            }
+            duration = Integer.parseInt(abc.substring(i, digitsEnd));
+            i = digitsEnd;
+        }
+
+        if (i < end && abc.charAt(i) == '/') {
+            return -1;
+        }
+
+        if (i < end && abc.charAt(i) == '-') {
+            // ties are currently ignored
+            i++;
+        }
+
+        int relativeNote = Note.getNoteId(String.valueOf(Character.toUpperCase(letter)));
+        if (currentPart >= 0) {
+            score.addNote(currentPart, Note.create(relativeNote, octave, duration).add(accidentalOffset));
+        }
+        timeInEighths += duration;
+
+        return i;
+    }
+
+    private void switchVoice(int start, int end) {
+        partTimes[currentPart + 1] = timeInEighths;
+        currentPart = voices.getPart(abc.substring(start, end));
+        timeInEighths = partTimes[currentPart + 1];
+    }
+
+    // When all voices are read, only the chords of the first voice that has chords are kept.
+    private boolean keepChords() {
+        if (voices == null) {
+            return true;
+        } else if (chordPart == NO_PART) {
+            chordPart = currentPart;
+        }
+
+        return chordPart == currentPart;
+    }
+
+    private void setDefaultNoteLength(int numerator, int denominator) {
+        int eighthsInDenominator = 8/denominator; // hopefully the denominator is a divisor of 8
+        defaultNoteLength = numerator * eighthsInDenominator;
+    }
+
+    private static int[] accidentalsForKey(Key key) {
+        int[] ret = new int['G' - 'A' + 1];
+
+        for (char letter = 'A'; letter <= 'G'; letter++) {
+            ret[letter - 'A'] = key.getAccidentalForNote(String.valueOf(letter));
+        }
+
+        return ret;
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(abc.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isDigits(int start, int end) {
+        return end > start && skipDigits(start, end) == end;
+    }
+
+    private int skipDigits(int i, int end) {
+        while (i < end && abc.charAt(i) >= '0' && abc.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipSpaces(int i, int end) {
+        while (i < end && (abc.charAt(i) == ' ' || abc.charAt(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isAccidental(char c) {
+        return c == '^' || c == '_' || c == '=';
+    }
+
+    // fields which the lexer skips entirely
+    private static boolean isUnsupportedField(char c) {
+        return "ABDFGHImOPRrSsUWZ".indexOf(c) >= 0;
+    }
+
+    // characters which may appear in strings (header fields and chords)
+    private static boolean isStringChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "ÄÖÜäöü \t-_;,/.$!?=&()|".indexOf(c) >= 0;
+    }
+}
@@ -48,9 +48,11 @@ public class AbcWriter {
         bindings.put("tempo", score.getTempo());
 
         Key key = Key.lookup(score.getKey());
+        ChordTimeline chords = new ChordTimeline(score.getChords());
 
         for (int i = 0; i < 4; i++) {
             List<Note> part = score.getPart(i);
+            ChordTimeline.Cursor chordCursor = chords.cursor();
             StringBuilder buf = new StringBuilder();
             int timeSinceStart = 0; // in 1/8 notes
             int timeInMeasure = 0;
@@ -61,7 +63,7 @@ public class AbcWriter {
                 if( i <= 1 && config.getAbcDialect() == Config.ABC_DIALECT.ABC2SVG ) {
                     note = note.transpose(12);
                 }
-                Chord currentChord = score.getChordAtTime(timeSinceStart);
+                Chord currentChord = chordCursor.getChordAtTime(timeSinceStart);
 
                 buf.append(" ");
                 buf.append(abcNote(note, key, currentChord));
@@ -103,17 +105,49 @@ public class AbcWriter {
     }
 
     private String abcNote(Note note, Key key, Chord currentChord) {
-        String n = null;
         StringBuilder buf = new StringBuilder();
         Key chordKey = currentChord == null ? null : currentChord.getKey();
+        String n = spellRelativeNote(note.getRelativeNote(), key, chordKey);
+
+        if (note.getOctave() >= 5) {
+            buf.append(n.toLowerCase());
+            for (int i = 5; i < note.getOctave(); i++) {
+                buf.append("'");
+            }
+        } else {
+            buf.append(n.toUpperCase());
+            for (int i = 4; i > note.getOctave(); i--) {
+                buf.append(",");
+            }
+        }
+
+        buf.append(Integer.toString(note.getDuration())); // ASSPT:  duration in 1/8 notes
+        return buf.toString();
+    }
+
+    /**
+     * Spells the given relative note in ABC notation, as it should appear
+     * in a score in the given key while the chord with the given key
+     * (or null, if there is no chord) is played. The result consists of
+     * an optional ABC accidental followed by an uppercase note name,
+     * e.g. "^F" or "B".
+     *
+     * @param relativeNote
+     * @param key
+     * @param chordKey
+     * @return
+     */
+    static String spellRelativeNote(int relativeNote, Key key, Key chordKey) {
+        String n = null;
+        Note note = Note.create(relativeNote, 4, 0);
 
         // get note name with accidentals, in standard spelling
-        if (key.getNotesInKey().contains(note.getRelativeNote())) {
+        if (key.getNotesInKey().contains(relativeNote)) {
             // note exists in key, use spelling from key;
             // in ABC notation, this means that note is spelled unmodified
-            int baseNote = key.getBaseNote(note.getRelativeNote());
+            int baseNote = key.getBaseNote(relativeNote);
             n = Note.getNoteName(baseNote);
-        } else if (chordKey != null && chordKey.getNotesInKey().contains(note.getRelativeNote())) {
+        } else if (chordKey != null && chordKey.getNotesInKey().contains(relativeNote)) {
             // note exists in key of current chord, use chord key's accidental
             // (only if chord is available in score)
             n = note.getNoteName(chordKey, true);
@@ -137,21 +171,7 @@ public class AbcWriter {
         }
 
         assert n.length() <= 2; // no _Gb or such
-
-        if (note.getOctave() >= 5) {
-            buf.append(n.toLowerCase());
-            for (int i = 5; i < note.getOctave(); i++) {
-                buf.append("'");
-            }
-        } else {
-            buf.append(n.toUpperCase());
-            for (int i = 4; i > note.getOctave(); i--) {
-                buf.append(",");
-            }
-        }
-
-        buf.append(Integer.toString(note.getDuration())); // ASSPT:  duration in 1/8 notes
-        return buf.toString();
+        return n;
     }
 
     private ResourceLocator.Builder makeResourceLocator() {
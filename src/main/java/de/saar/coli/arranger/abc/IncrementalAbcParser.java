@@ -0,0 +1,289 @@
+package de.saar.coli.arranger.abc;
+
+import de.saar.coli.arranger.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parser for ABC notation which remembers the text it parsed last,
+ * and re-parses only the lines that changed when it is given an edited
+ * version of that text. This is useful when the user is editing a
+ * tune interactively, because the cost of parsing after each edit
+ * is then proportional to the size of the edit, and not to the
+ * size of the tune.<p>
+ *
+ * The parser keeps a {@link Score} fragment for each line of the
+ * tune body (everything after the first V: line), with the notes,
+ * chords, and lyrics of that line. The chords in a fragment are
+ * stored relative to the start of the line; when the score is put
+ * together, they are shifted by the total duration of all lines
+ * before it. An edit that touches the header, or a text which is
+ * outside the subset of ABC notation supported by {@link AbcSubsetParser},
+ * makes this class fall back to parsing the whole text; in the latter
+ * case with the ANTLR grammar in {@link AbcParser}.<p>
+ *
+ * The scores returned by this class are the same as those of {@link AbcParser#read(java.io.Reader)}.
+ * An instance of this class is not thread-safe; use one instance per document.
+ */
+public class IncrementalAbcParser {
+    private final AbcSubsetParser lineParser = new AbcSubsetParser();
+    private List<String> headerLines; // null if the previous text was not parsed incrementally
+    private Score header;
+    private final List<Line> body = new ArrayList<>();
+    private int reparsedLines;
+
+    /**
+     * Parses the given ABC text from scratch, and remembers it as the
+     * starting point for subsequent calls to {@link #update(String)}.
+     *
+     * @param abc
+     * @return
+     * @throws IOException
+     * @throws AbcParser.AbcParsingException
+     */
+    public Score parse(String abc) throws IOException, AbcParser.AbcParsingException {
+        List<String> lines = splitLines(abc);
+        int firstBodyLine = findFirstBodyLine(lines);
+
+        headerLines = null;
+        body.clear();
+        reparsedLines = lines.size();
+
+        if (firstBodyLine >= 0) {
+            header = lineParser.parse(String.join("", lines.subList(0, firstBodyLine)));
+
+            if (header != null) {
+                headerLines = new ArrayList<>(lines.subList(0, firstBodyLine));
+
+                for (int i = firstBodyLine; i < lines.size(); i++) {
+                    body.add(parseLine(lines.get(i)));
+                }
+
+                Score ret = assemble();
+                if (ret != null) {
+                    return ret;
+                }
+            }
+        }
+
+        // outside the supported subset
+        headerLines = null;
+        body.clear();
+        return new AbcParser().readWithGrammar(new StringReader(abc));
+    }
+
+    /**
+     * Parses an edited version of the text that was parsed last.
+     * Only the lines between the longest common prefix and the longest
+     * common suffix of the old and new text are parsed again.
+     *
+     * @param abc
+     * @return
+     * @throws IOException
+     * @throws AbcParser.AbcParsingException
+     */
+    public Score update(String abc) throws IOException, AbcParser.AbcParsingException {
+        if (headerLines == null) {
+            return parse(abc);
+        }
+
+        List<String> lines = splitLines(abc);
+        int oldSize = headerLines.size() + body.size();
+        int prefix = 0;
+        int suffix = 0;
+
+        while (prefix < oldSize && prefix < lines.size() && oldLine(prefix).equals(lines.get(prefix))) {
+            prefix++;
+        }
+
+        while (suffix < oldSize - prefix && suffix < lines.size() - prefix
+                && oldLine(oldSize - suffix - 1).equals(lines.get(lines.size() - suffix - 1))) {
+            suffix++;
+        }
+
+        return edit(prefix, oldSize - prefix - suffix, lines.subList(prefix, lines.size() - suffix));
+    }
+
+    /**
+     * Replaces some lines of the text that was parsed last, and parses the result.
+     * The lines firstLine, ..., firstLine + removedLines - 1 (counting from zero)
+     * are replaced by the given lines. Each new line must end with a line
+     * break, except if it is the last line of the text.
+     *
+     * @param firstLine
+     * @param removedLines
+     * @param newLines
+     * @return
+     * @throws IOException
+     * @throws AbcParser.AbcParsingException
+     */
+    public Score edit(int firstLine, int removedLines, List<String> newLines) throws IOException, AbcParser.AbcParsingException {
+        if (headerLines == null || firstLine < headerLines.size()) {
+            // the header determines how all other lines are read
+            return parse(replaceLines(firstLine, removedLines, newLines));
+        }
+
+        int bodyIndex = firstLine - headerLines.size();
+        List<Line> replacement = new ArrayList<>(newLines.size());
+
+        for (String line : newLines) {
+            replacement.add(parseLine(line));
+        }
+
+        List<Line> removed = body.subList(bodyIndex, bodyIndex + removedLines);
+        removed.clear();
+        body.addAll(bodyIndex, replacement);
+        reparsedLines = newLines.size();
+
+        Score ret = assemble();
+
+        if (ret != null) {
+            return ret;
+        } else {
+            return parse(getText());
+        }
+    }
+
+    /**
+     * Returns the number of lines that were parsed by the last call
+     * to {@link #parse(String)}, {@link #update(String)}, or
+     * {@link #edit(int, int, List)}.
+     *
+     * @return
+     */
+    public int getReparsedLineCount() {
+        return reparsedLines;
+    }
+
+    /**
+     * Returns the text that was parsed last.
+     *
+     * @return
+     */
+    public String getText() {
+        StringBuilder buf = new StringBuilder();
+
+        for (String line : headerLines) {
+            buf.append(line);
+        }
+
+        for (Line line : body) {
+            buf.append(line.text);
+        }
+
+        return buf.toString();
+    }
+
+    private String replaceLines(int firstLine, int removedLines, List<String> newLines) {
+        List<String> lines = splitLines(getText());
+        lines.subList(firstLine, firstLine + removedLines).clear();
+        lines.addAll(firstLine, newLines);
+        return String.join("", lines);
+    }
+
+    private String oldLine(int i) {
+        if (i < headerLines.size()) {
+            return headerLines.get(i);
+        } else {
+            return body.get(i - headerLines.size()).text;
+        }
+    }
+
+    private Line parseLine(String text) {
+        Score fragment = new Score();
+        int kind = lineParser.parseBodyLine(text, fragment);
+        return new Line(text, kind, fragment, lineParser.getTimeInEighths());
+    }
+
+    // Puts the score together from the header and the body lines.
+    // Returns null if the body lines do not form a valid tune body.
+    private Score assemble() {
+        int lastVoiceLine = -1;
+        int firstBlankLine = body.size();
+
+        for (int i = 0; i < body.size(); i++) {
+            int kind = body.get(i).kind;
+
+            if (i > firstBlankLine) {
+                // a blank line ends the tune; it may only be followed by blank lines and comments
+                if (kind != AbcSubsetParser.BLANK_LINE && kind != AbcSubsetParser.SKIPPED_LINE) {
+                    return null;
+                }
+            } else if (kind == AbcSubsetParser.INVALID_LINE) {
+                return null;
+            } else if (kind == AbcSubsetParser.BLANK_LINE) {
+                firstBlankLine = i;
+            } else if (kind == AbcSubsetParser.VOICE_LINE) {
+                lastVoiceLine = i;
+            }
+        }
+
+        Score ret = new Score(header.getTitle(), header.getComposer(), header.getKey(), header.getQuartersPerMeasure());
+        ret.setTempo(header.getTempo());
+        int timeInEighths = 0;
+
+        for (int i = 0; i < firstBlankLine; i++) {
+            Score fragment = body.get(i).fragment;
+
+            for (Pair<Integer, Chord> chord : fragment.getChords()) {
+                ret.addChord(timeInEighths + chord.getLeft(), chord.getRight());
+            }
+
+            // like the grammar-based parser, only keep the notes of the last voice
+            if (i > lastVoiceLine) {
+                ret.getPart(VoicePart.LEAD).addAll(fragment.getPart(VoicePart.LEAD));
+            }
+
+            for (String word : fragment.getLyrics()) {
+                ret.addWord(word);
+            }
+
+            timeInEighths += body.get(i).duration;
+        }
+
+        return ret;
+    }
+
+    // The header consists of all lines up to and including the first V: line.
+    private static int findFirstBodyLine(List<String> lines) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("V:")) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    // Splits the text into lines, each including its line break.
+    private static List<String> splitLines(String abc) {
+        List<String> ret = new ArrayList<>();
+        int lineStart = 0;
+
+        while (lineStart < abc.length()) {
+            int newline = abc.indexOf('\n', lineStart);
+            int nextLineStart = newline < 0 ? abc.length() : newline + 1;
+            ret.add(abc.substring(lineStart, nextLineStart));
+            lineStart = nextLineStart;
+        }
+
+        return ret;
+    }
+
+    private static class Line {
+        private final String text;
+        private final int kind;
+        private final Score fragment;
+        private final int duration;
+
+        public Line(String text, int kind, Score fragment, int duration) {
+            this.text = text;
+            this.kind = kind;
+            this.fragment = fragment;
+            this.duration = duration;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package de.saar.coli.arranger.abc;
+
+import de.saar.coli.arranger.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A class for writing a score in ABC notation, without going
+ * through the template engine. The output is exactly the same as that of
+ * {@link AbcWriter} for both {@link Config.ABC_DIALECT}s, but the ABC
+ * code is written to the writer directly.<p>
+ *
+ * Note names are looked up in spelling tables which are computed once per
+ * (score key, chord key) combination and then shared by all instances
+ * of this class. The writer reads the score in {@link ColumnarScore} form,
+ * in which the chord for each note has already been looked up.
+ */
+public class StreamingAbcWriter {
+    private static final Object NO_CHORD = new Object();
+    private static final Map<Key, Map<Object, AtomicReferenceArray<String[]>>> SPELLINGS = new ConcurrentHashMap<>();
+
+    private final Config config;
+
+    public StreamingAbcWriter(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Writes the score to the given writer in ABC notation.
+     *
+     * @param score
+     * @param writer
+     * @throws IOException - if an I/O error occurred
+     */
+    public void write(Score score, Writer writer) throws IOException {
+        write(ColumnarScore.of(score), writer);
+    }
+
+    /**
+     * Writes a score in columnar form to the given writer in ABC notation.
+     *
+     * @param score
+     * @param writer
+     * @throws IOException - if an I/O error occurred
+     */
+    public void write(ColumnarScore score, Writer writer) throws IOException {
+        boolean abc2svg = config.getAbcDialect() == Config.ABC_DIALECT.ABC2SVG;
+        String tempo = score.getTempo();
+        String clefspec0 = config.getClefs().get(0).getClefSpec();
+        String clefspec1 = config.getClefs().get(1).getClefSpec();
+        String snm = abc2svg ? "" : "  snm=\"\"";
+
+        writer.write("%abc-2.1\nX:1\nT:");
+        writer.write(str(score.getTitle()));
+        writer.write("\nC:");
+        writer.write(str(score.getComposer()));
+        writer.write("\nM:");
+        writer.write(Integer.toString(score.getQuartersPerMeasure()));
+        writer.write("/4\nL:1/8\nK:");
+        writer.write(str(score.getKey()));
+
+        if (abc2svg) {
+            writer.write("\n");
+            if (tempo != null) {
+                writer.write("Q:");
+                writer.write(tempo);
+            }
+        } else if (tempo != null) {
+            writer.write("\nQ:");
+            writer.write(tempo);
+        }
+
+        writer.write("\n");
+        writeVoiceDeclaration("Tn", clefspec0, snm, writer);
+        writeVoiceDeclaration("Ld", clefspec0, snm, writer);
+        writeVoiceDeclaration("Br", clefspec1, snm, writer);
+        writeVoiceDeclaration("Bs", clefspec1, snm, writer);
+        writer.write("%%score (Tn Ld) (Br Bs)\n");
+
+        Key key = Key.lookup(score.getKey());
+
+        for (int i = 0; i < 4; i++) {
+            writer.write("V:");
+            writer.write(VoicePart.PART_NAMES[i]);
+            writer.write("\n  ");
+            writePart(score, i, key, abc2svg && i <= 1, writer);
+            writer.write("\n");
+
+            if (i == VoicePart.LEAD) {
+                writer.write("w: ");
+                writeLyrics(score.getLyrics(), writer);
+                writer.write("\n");
+            }
+        }
+
+        writer.write("\n");
+        writer.flush();
+    }
+
+    /**
+     * Returns the score in ABC notation, as a string.
+     *
+     * @param score
+     * @return
+     * @throws IOException
+     */
+    public String asString(Score score) throws IOException {
+        return asString(ColumnarScore.of(score));
+    }
+
+    /**
+     * Returns a score in columnar form in ABC notation, as a string.
+     *
+     * @param score
+     * @return
+     * @throws IOException
+     */
+    public String asString(ColumnarScore score) throws IOException {
+        StringWriter w = new StringWriter();
+        write(score, w);
+        return w.toString();
+    }
+
+    private static void writeVoiceDeclaration(String partName, String clefspec, String snm, Writer writer) throws IOException {
+        writer.write("V:");
+        writer.write(partName);
+        writer.write(" ");
+        writer.write(clefspec);
+        writer.write(" name=\"");
+        writer.write(partName);
+        writer.write("\"");
+        writer.write(snm);
+        writer.write("\n");
+    }
+
+    private static void writeLyrics(List<String> lyrics, Writer writer) throws IOException {
+        for (int i = 0; i < lyrics.size(); i++) {
+            if (i > 0) {
+                writer.write(" ");
+            }
+            writer.write(lyrics.get(i));
+        }
+    }
+
+    private static void writePart(ColumnarScore score, int part, Key key, boolean transposeOctave, Writer writer) throws IOException {
+        int eighthsPerMeasure = score.getQuartersPerMeasure() * 2;
+        int timeInMeasure = 0;
+
+        Chord currentChord = null;
+        AtomicReferenceArray<String[]> spellings = null;
+
+        for (int i = 0; i < score.countNotes(part); i++) {
+            Chord chord = score.getChordAtNote(part, i);
+            int pitch = score.getPitch(part, i);
+            int duration = score.getDuration(part, i);
+
+            if (spellings == null || chord != currentChord) {
+                currentChord = chord;
+                spellings = getSpellings(key, chord == null ? null : chord.getKey());
+            }
+
+            // ABC2SVG does not respect the built-in transposition of the upper clef,
+            // so we have to do it by hand.
+            int octave = pitch / 12 - 1;
+            if (transposeOctave) {
+                octave++;
+            }
+
+            writer.write(" ");
+
+            if (octave >= 5) {
+                writer.write(spell(spellings, pitch % 12, true, key, chord));
+                for (int j = 5; j < octave; j++) {
+                    writer.write("'");
+                }
+            } else {
+                writer.write(spell(spellings, pitch % 12, false, key, chord));
+                for (int j = 4; j > octave; j--) {
+                    writer.write(",");
+                }
+            }
+
+            writer.write(Integer.toString(duration)); // ASSPT:  duration in 1/8 notes
+
+            timeInMeasure += duration;
+            if (timeInMeasure >= eighthsPerMeasure) {
+                writer.write(" |");
+                timeInMeasure = 0;
+            }
+        }
+
+        writer.write("]");
+    }
+
+    // spellings[relativeNote] = { uppercase spelling, lowercase spelling }
+    private static AtomicReferenceArray<String[]> getSpellings(Key key, Key chordKey) {
+        Map<Object, AtomicReferenceArray<String[]>> spellingsForKey = SPELLINGS.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+        return spellingsForKey.computeIfAbsent(chordKey == null ? NO_CHORD : chordKey, k -> new AtomicReferenceArray<>(12));
+    }
+
+    private static String spell(AtomicReferenceArray<String[]> spellings, int relativeNote, boolean lowercase, Key key, Chord chord) {
+        // Entries are filled in lazily, because spelling a note can fail for
+        // combinations of note and key that never occur in a real score.
+        // The cache is shared between threads, so the entries are published
+        // through an AtomicReferenceArray; threads that race compute the same spelling.
+        String[] spelling = spellings.get(relativeNote);
+
+        if (spelling == null) {
+            String n = AbcWriter.spellRelativeNote(relativeNote, key, chord == null ? null : chord.getKey());
+            spelling = new String[]{n.toUpperCase(), n.toLowerCase()};
+            spellings.set(relativeNote, spelling);
+        }
+
+        return spelling[lowercase ? 1 : 0];
+    }
+
+    private static String str(String value) {
+        return value == null ? "" : value;
+    }
+}
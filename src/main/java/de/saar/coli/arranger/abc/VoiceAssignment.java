@@ -0,0 +1,69 @@
+package de.saar.coli.arranger.abc;
+
+import de.saar.coli.arranger.VoicePart;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which voice part the notes of an ABC voice belong to, when
+ * a four-part arrangement is read. A voice whose ID is the name of a
+ * voice part (e.g. "V:Tn", "V:Lead", "V:bass") is assigned to that part.
+ * All other voices are assigned to the parts that are still free,
+ * in the order Tn, Ld, Br, Bs in which they are first mentioned; so "V:1"
+ * to "V:4" are read as Tn, Ld, Br, and Bs. Voices beyond the fourth are ignored.
+ */
+class VoiceAssignment {
+    private static final Map<String, Integer> PART_NAMES = new HashMap<>();
+
+    static {
+        for (String name : new String[]{"tn", "t", "ten", "tenor"}) {
+            PART_NAMES.put(name, VoicePart.TENOR);
+        }
+        for (String name : new String[]{"ld", "l", "lead", "melody"}) {
+            PART_NAMES.put(name, VoicePart.LEAD);
+        }
+        for (String name : new String[]{"br", "bar", "bari", "baritone"}) {
+            PART_NAMES.put(name, VoicePart.BARI);
+        }
+        for (String name : new String[]{"bs", "b", "bass"}) {
+            PART_NAMES.put(name, VoicePart.BASS);
+        }
+    }
+
+    private final Map<String, Integer> partsById = new HashMap<>();
+    private final boolean[] used = new boolean[4];
+
+    /**
+     * Returns the voice part for the V: line with the given value
+     * (everything after "V:"), or -1 if the voice should be ignored.
+     *
+     * @param voiceLine
+     * @return
+     */
+    int getPart(String voiceLine) {
+        String id = voiceLine.trim().split("\\s+")[0].toLowerCase();
+        Integer part = partsById.get(id);
+
+        if (part == null) {
+            part = PART_NAMES.get(id);
+
+            if (part == null) {
+                part = -1;
+                for (int i = 0; i < 4; i++) {
+                    if (!used[i]) {
+                        part = i;
+                        break;
+                    }
+                }
+            }
+
+            partsById.put(id, part);
+            if (part >= 0) {
+                used[part] = true;
+            }
+        }
+
+        return part;
+    }
+}
@@ -0,0 +1,254 @@
+package de.saar.coli.arranger.binary;
+
+import de.saar.coli.arranger.*;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The binary file format for scores and arrangements. A file
+ * starts with the four bytes "AABA" and a version number (a big-endian int).
+ * This is followed by a sequence of records. Each record consists of
+ * a {@link RecordType} code (one byte), the length of its payload
+ * in bytes (a big-endian int), and the payload.<p>
+ *
+ * Within the payload, all integers are written as variable-length
+ * quantities of seven bits per byte, and signed integers are zigzag-encoded
+ * before that. Strings are written as their length in UTF-8 bytes plus one
+ * (zero for null), followed by the bytes. A score consists of its title,
+ * composer, key, and tempo, the time signature, the lyrics, the chords,
+ * and the four voice parts. Chords are written as their start time
+ * (as the difference to the previous chord) and name. Each voice part is
+ * written as its number of notes, followed by the pitch (as the difference
+ * to the previous note) and the duration of each note. An arrangement
+ * consists of the original score, the arranged score, the score of the
+ * arrangement, and the runtime of the arranger in nanoseconds.
+ */
+class BinaryFormat {
+    static final byte[] MAGIC = "AABA".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 4;
+    static final int RECORD_HEADER_LENGTH = 5;
+
+    private static final Map<String, Chord> CHORDS = new ConcurrentHashMap<>();
+
+    /**
+     * Checks the file header at the current position of the buffer
+     * and moves the position past it.
+     *
+     * @param buf
+     * @throws IOException - if the buffer does not start with a valid header
+     */
+    static void checkHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_LENGTH) {
+            throw new IOException("Not a binary AABA file.");
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary AABA file.");
+        }
+
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version %d of the binary AABA format (expected %d).", version, VERSION));
+        }
+    }
+
+    static void encodeScore(Score score, Encoder out) {
+        out.writeString(score.getTitle());
+        out.writeString(score.getComposer());
+        out.writeString(score.getKey());
+        out.writeString(score.getTempo());
+        out.writeVarInt(score.getQuartersPerMeasure());
+
+        List<String> lyrics = score.getLyrics();
+        out.writeVarInt(lyrics.size());
+        for (String word : lyrics) {
+            out.writeString(word);
+        }
+
+        List<Pair<Integer, Chord>> chords = score.getChords();
+        int previousTime = 0;
+        out.writeVarInt(chords.size());
+        for (Pair<Integer, Chord> chord : chords) {
+            out.writeSignedVarInt(chord.getLeft() - previousTime);
+            out.writeString(chord.getRight().toString());
+            previousTime = chord.getLeft();
+        }
+
+        for (int part = 0; part < 4; part++) {
+            List<Note> notes = score.getPart(part);
+            int previousPitch = 0;
+            out.writeVarInt(notes.size());
+            for (Note note : notes) {
+                out.writeSignedVarInt(note.getAbsoluteNote() - previousPitch);
+                out.writeVarInt(note.getDuration());
+                previousPitch = note.getAbsoluteNote();
+            }
+        }
+    }
+
+    static void encodeArrangement(Arrangement arrangement, Encoder out) {
+        encodeScore(arrangement.getOriginal(), out);
+        encodeScore(arrangement.getArrangement(), out);
+        out.writeSignedVarInt(arrangement.getScore());
+        out.writeVarLong(arrangement.getRuntimeNs());
+    }
+
+    static Score decodeScore(ByteBuffer in) throws IOException {
+        try {
+            Score ret = new Score(readString(in), readString(in), readString(in), 4);
+            ret.setTempo(readString(in));
+            ret.setQuartersPerMeasure(readVarInt(in));
+
+            int numWords = readVarInt(in);
+            for (int i = 0; i < numWords; i++) {
+                ret.addWord(readString(in));
+            }
+
+            int numChords = readVarInt(in);
+            int time = 0;
+            for (int i = 0; i < numChords; i++) {
+                time += readSignedVarInt(in);
+                ret.addChord(time, lookupChord(readString(in)));
+            }
+
+            for (int part = 0; part < 4; part++) {
+                int numNotes = readVarInt(in);
+                int pitch = 0;
+                for (int i = 0; i < numNotes; i++) {
+                    pitch += readSignedVarInt(in);
+                    ret.addNote(part, Note.create(pitch, readVarInt(in)));
+                }
+            }
+
+            return ret;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated score record.", e);
+        }
+    }
+
+    static Arrangement decodeArrangement(ByteBuffer in) throws IOException {
+        Score original = decodeScore(in);
+        Score arrangement = decodeScore(in);
+
+        try {
+            int score = readSignedVarInt(in);
+            long runtimeNs = readVarLong(in);
+            return new Arrangement(arrangement, original, score, runtimeNs);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated arrangement record.", e);
+        }
+    }
+
+    // Chord objects are immutable, so they can be shared between scores.
+    private static Chord lookupChord(String name) {
+        return CHORDS.computeIfAbsent(name, Chord::lookup);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarInt(in) - 1;
+
+        if (length < 0) {
+            return null;
+        } else if (in.hasArray()) {
+            String ret = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return ret;
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        return (int) readVarLong(in);
+    }
+
+    private static int readSignedVarInt(ByteBuffer in) {
+        int zigzag = readVarInt(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long ret = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            ret |= (long) (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+    }
+
+    /**
+     * A growable byte array for encoding a record.
+     */
+    static class Encoder {
+        private byte[] buf = new byte[256];
+        private int length = 0;
+
+        void reset() {
+            length = 0;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xffffffffL);
+        }
+
+        void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+
+            writeByte((int) value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length + 1);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buf, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            buf[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(2 * buf.length, length + additional));
+            }
+        }
+    }
+}
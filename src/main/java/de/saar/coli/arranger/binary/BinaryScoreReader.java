@@ -0,0 +1,118 @@
+package de.saar.coli.arranger.binary;
+
+import de.saar.coli.arranger.Arrangement;
+import de.saar.coli.arranger.Score;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads scores and arrangements sequentially from a stream in the binary
+ * format described in {@link BinaryFormat}. Use {@link #nextType()} to
+ * find out what kind of record comes next, and then {@link #readScore()}
+ * or {@link #readArrangement()} to read it.
+ */
+public class BinaryScoreReader implements Closeable {
+    private final DataInputStream in;
+    private RecordType nextType = null;
+    private byte[] payload = new byte[256];
+
+    /**
+     * Creates a reader for the given stream, and checks the file header.
+     *
+     * @param in
+     * @throws IOException - if the stream does not start with a valid header
+     */
+    public BinaryScoreReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+
+        byte[] header = new byte[BinaryFormat.HEADER_LENGTH];
+        try {
+            this.in.readFully(header);
+        } catch (EOFException e) {
+            throw new IOException("Not a binary AABA file.", e);
+        }
+
+        BinaryFormat.checkHeader(ByteBuffer.wrap(header));
+    }
+
+    /**
+     * Returns the type of the next record, or null if the end
+     * of the stream has been reached.
+     *
+     * @return
+     * @throws IOException
+     */
+    public RecordType nextType() throws IOException {
+        if (nextType == null) {
+            int code = in.read();
+
+            if (code < 0) {
+                return null;
+            }
+
+            nextType = RecordType.fromCode((byte) code);
+
+            if (nextType == null) {
+                throw new IOException("Unknown record type " + code);
+            }
+        }
+
+        return nextType;
+    }
+
+    /**
+     * Reads the next record, which must be a score. Returns
+     * null if the end of the stream has been reached.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Score readScore() throws IOException {
+        ByteBuffer buf = readRecord(RecordType.SCORE);
+        return buf == null ? null : BinaryFormat.decodeScore(buf);
+    }
+
+    /**
+     * Reads the next record, which must be an arrangement. Returns
+     * null if the end of the stream has been reached.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Arrangement readArrangement() throws IOException {
+        ByteBuffer buf = readRecord(RecordType.ARRANGEMENT);
+        return buf == null ? null : BinaryFormat.decodeArrangement(buf);
+    }
+
+    private ByteBuffer readRecord(RecordType expectedType) throws IOException {
+        RecordType type = nextType();
+
+        if (type == null) {
+            return null;
+        } else if (type != expectedType) {
+            throw new IOException(String.format("Expected a record of type %s, but found %s.", expectedType, type));
+        }
+
+        nextType = null;
+
+        try {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid record length " + length);
+            } else if (length > payload.length) {
+                payload = new byte[length];
+            }
+
+            in.readFully(payload, 0, length);
+            return ByteBuffer.wrap(payload, 0, length);
+        } catch (EOFException e) {
+            throw new IOException("Truncated record.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,71 @@
+package de.saar.coli.arranger.binary;
+
+import de.saar.coli.arranger.Arrangement;
+import de.saar.coli.arranger.Score;
+
+import java.io.*;
+
+/**
+ * Writes scores and arrangements to a stream in the binary format
+ * described in {@link BinaryFormat}. Records are written one after
+ * the other, so a file can be written incrementally, e.g. while
+ * arranging the tunes of a corpus.<p>
+ *
+ * The resulting files can be read sequentially with a {@link BinaryScoreReader},
+ * or with random access through a {@link MappedCorpus}.
+ */
+public class BinaryScoreWriter implements Closeable {
+    private final DataOutputStream out;
+    private final BinaryFormat.Encoder encoder = new BinaryFormat.Encoder();
+
+    /**
+     * Creates a writer for the given stream, and writes the file header.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public BinaryScoreWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.write(BinaryFormat.MAGIC);
+        this.out.writeInt(BinaryFormat.VERSION);
+    }
+
+    /**
+     * Writes a score.
+     *
+     * @param score
+     * @throws IOException
+     */
+    public void write(Score score) throws IOException {
+        encoder.reset();
+        BinaryFormat.encodeScore(score, encoder);
+        writeRecord(RecordType.SCORE);
+    }
+
+    /**
+     * Writes an arrangement, together with its original score.
+     *
+     * @param arrangement
+     * @throws IOException
+     */
+    public void write(Arrangement arrangement) throws IOException {
+        encoder.reset();
+        BinaryFormat.encodeArrangement(arrangement, encoder);
+        writeRecord(RecordType.ARRANGEMENT);
+    }
+
+    private void writeRecord(RecordType type) throws IOException {
+        out.writeByte(type.getCode());
+        out.writeInt(encoder.length());
+        out.write(encoder.bytes(), 0, encoder.length());
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
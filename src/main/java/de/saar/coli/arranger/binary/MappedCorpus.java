@@ -0,0 +1,141 @@
+package de.saar.coli.arranger.binary;
+
+import de.saar.coli.arranger.Arrangement;
+import de.saar.coli.arranger.Score;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Random access to the records of a file in the binary format described
+ * in {@link BinaryFormat}. The file is mapped into memory, and opening it
+ * only reads the header of each record to find out where the record starts.
+ * The records themselves are decoded when they are requested, so
+ * opening a large corpus is fast, and only the tunes that are actually
+ * used are ever decoded.<p>
+ *
+ * Records can be read concurrently from several threads.
+ * Files must be smaller than 2 GB.
+ */
+public class MappedCorpus {
+    private final MappedByteBuffer buf;
+    private int[] offsets = new int[1024];     // offset of the payload of each record
+    private byte[] types = new byte[1024];
+    private int size = 0;
+
+    /**
+     * Maps the given file into memory and indexes its records.
+     *
+     * @param file
+     * @throws IOException - if the file could not be read or is not a valid binary AABA file
+     */
+    public MappedCorpus(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Binary AABA files must be smaller than 2 GB: " + file);
+            }
+
+            // the mapping remains valid after the channel is closed
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        BinaryFormat.checkHeader(buf);
+        int position = BinaryFormat.HEADER_LENGTH;
+
+        while (position < buf.limit()) {
+            if (buf.limit() - position < BinaryFormat.RECORD_HEADER_LENGTH) {
+                throw new IOException("Truncated record header at offset " + position);
+            }
+
+            byte type = buf.get(position);
+            int length = buf.getInt(position + 1);
+
+            if (RecordType.fromCode(type) == null) {
+                throw new IOException("Unknown record type " + type + " at offset " + position);
+            } else if (length < 0 || length > buf.limit() - position - BinaryFormat.RECORD_HEADER_LENGTH) {
+                throw new IOException("Truncated record at offset " + position);
+            }
+
+            add(type, position + BinaryFormat.RECORD_HEADER_LENGTH);
+            position += BinaryFormat.RECORD_HEADER_LENGTH + length;
+        }
+    }
+
+    private void add(byte type, int offset) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * size);
+            types = Arrays.copyOf(types, 2 * size);
+        }
+
+        offsets[size] = offset;
+        types[size] = type;
+        size++;
+    }
+
+    /**
+     * Returns the number of records in the file.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the type of the i-th record.
+     *
+     * @param i
+     * @return
+     */
+    public RecordType getType(int i) {
+        checkIndex(i);
+        return RecordType.fromCode(types[i]);
+    }
+
+    /**
+     * Decodes the i-th record, which must be a score.
+     *
+     * @param i
+     * @return
+     * @throws IOException
+     */
+    public Score getScore(int i) throws IOException {
+        return BinaryFormat.decodeScore(record(i, RecordType.SCORE));
+    }
+
+    /**
+     * Decodes the i-th record, which must be an arrangement.
+     *
+     * @param i
+     * @return
+     * @throws IOException
+     */
+    public Arrangement getArrangement(int i) throws IOException {
+        return BinaryFormat.decodeArrangement(record(i, RecordType.ARRANGEMENT));
+    }
+
+    private ByteBuffer record(int i, RecordType expectedType) throws IOException {
+        RecordType type = getType(i);
+
+        if (type != expectedType) {
+            throw new IOException(String.format("Record %d has type %s, not %s.", i, type, expectedType));
+        }
+
+        // each caller gets its own position, so records can be decoded concurrently
+        ByteBuffer ret = buf.duplicate();
+        ret.limit(i + 1 < size ? offsets[i + 1] - BinaryFormat.RECORD_HEADER_LENGTH : buf.limit());
+        ret.position(offsets[i]);
+        return ret;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Record " + i + " of " + size);
+        }
+    }
+}
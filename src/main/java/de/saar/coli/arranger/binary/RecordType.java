@@ -0,0 +1,29 @@
+package de.saar.coli.arranger.binary;
+
+/**
+ * The kinds of records in a binary score file.
+ */
+public enum RecordType {
+    SCORE(1),
+    ARRANGEMENT(2);
+
+    private final byte code;
+
+    RecordType(int code) {
+        this.code = (byte) code;
+    }
+
+    byte getCode() {
+        return code;
+    }
+
+    static RecordType fromCode(byte code) {
+        for (RecordType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+}
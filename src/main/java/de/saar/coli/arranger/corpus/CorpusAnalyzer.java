@@ -0,0 +1,263 @@
+package de.saar.coli.arranger.corpus;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import de.saar.coli.arranger.*;
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.rules.VoiceLeadingRule;
+import de.saar.coli.arranger.rules.VoicingRule;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Computes {@link RuleStatistics} over a corpus of four-part arrangements
+ * in ABC notation. Each arrangement is read with {@link AbcParser#readAllVoices(Reader)}
+ * and cut into slices at every time at which a note starts in any of the parts.
+ * Each slice in which all four parts are singing is a voicing; each pair of
+ * neighboring voicings is a voice leading transition. The voicing rules
+ * are applied to each voicing that has a chord, and the voice leading rules
+ * to each transition. The tunes of the corpus are analyzed in parallel.<p>
+ *
+ * To count how often a rule fires, the rules are run with a configuration in
+ * which all rule weights are 1. Rests are ignored by the ABC parser, so
+ * arrangements with rests in some of the parts may be misaligned.
+ */
+public class CorpusAnalyzer {
+    private final Config unitConfig;
+    private final List<VoicingRule> voicingRules = Arrange.getVoicingRules();
+    private final List<VoiceLeadingRule> voiceLeadingRules = Arrange.getVoiceLeadingRules();
+
+    public CorpusAnalyzer() {
+        Config.Scores unitScores = new Config.Scores();
+        unitScores.setHarmonyLeaps(1);
+        unitScores.setParallelOctaves(1);
+        unitScores.setTenorCrossing(1);
+        unitScores.setUnisonNotes(1);
+        unitScores.setWideSpread(1);
+
+        unitConfig = new Config();
+        unitConfig.setScores(unitScores);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Args arguments = new Args();
+        JCommander jc = JCommander.newBuilder().addObject(arguments).build();
+        jc.parse(args);
+
+        if (arguments.help) {
+            jc.usage();
+            System.exit(0);
+        }
+
+        List<Path> files = findAbcFiles(arguments.inputs);
+        System.out.printf("Analyzing %d files on %d threads ...\n", files.size(), arguments.threads);
+        long start = System.nanoTime();
+        RuleStatistics stats = new CorpusAnalyzer().analyzeFiles(files, arguments.threads);
+        System.out.printf("Analyzed %d tunes in %d ms (%d could not be read).\n", stats.getTunes(), (System.nanoTime() - start) / 1000000, stats.getFailedTunes());
+
+        try (Writer w = Files.newBufferedWriter(Paths.get(arguments.outputFilename), StandardCharsets.UTF_8)) {
+            stats.write(w);
+        }
+
+        System.out.printf("Wrote statistics to: %s\n", arguments.outputFilename);
+    }
+
+    /**
+     * Analyzes all tunes in the given ABC files, using the given number of threads.
+     *
+     * @param files
+     * @param threads
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public RuleStatistics analyzeFiles(List<Path> files, int threads) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            List<String> tunes = pool.submit(() -> files.parallelStream()
+                    .flatMap(file -> readTunes(file).stream())
+                    .collect(Collectors.toList())).get();
+
+            return pool.submit(() -> tunes.parallelStream()
+                    .collect(RuleStatistics::new, (stats, tune) -> stats.add(analyzeTune(tune)), RuleStatistics::add)).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // all *.abc files in the given files and directories
+    static List<Path> findAbcFiles(List<String> names) throws IOException {
+        List<Path> files = new ArrayList<>();
+
+        for (String name : names) {
+            try (Stream<Path> paths = Files.walk(Paths.get(name))) {
+                paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".abc")).forEach(files::add);
+            }
+        }
+
+        return files;
+    }
+
+    static List<String> readTunes(Path file) {
+        try {
+            return AbcParser.splitTunes(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Analyzes a single tune in ABC notation.
+     *
+     * @param abc
+     * @return
+     */
+    public RuleStatistics analyzeTune(String abc) {
+        RuleStatistics ret = new RuleStatistics();
+        Score score;
+
+        try {
+            score = new AbcParser().readAllVoices(new StringReader(abc));
+        } catch (Exception e) {
+            ret.countTune(false);
+            return ret;
+        }
+
+        analyze(score, ret);
+        return ret;
+    }
+
+    /**
+     * Analyzes a four-part arrangement, and adds the counts to the given statistics.
+     *
+     * @param score
+     * @param stats
+     */
+    public void analyze(Score score, RuleStatistics stats) {
+        Note[][] previous = new Note[1][];
+
+        boolean complete = forEachSlice(score, (voicing, chord) -> {
+            if (voicing != null) {
+                String chordType = chord == null ? RuleStatistics.NO_CHORD : chord.getType().name();
+
+                if (chord != null) {
+                    stats.countVoicing(chordType);
+                    for (VoicingRule rule : voicingRules) {
+                        stats.countFirings(ruleName(rule), chordType, firings(rule.score(voicing, chord, unitConfig)));
+                    }
+                }
+
+                if (previous[0] != null) {
+                    stats.countTransition(chordType);
+                    for (VoiceLeadingRule rule : voiceLeadingRules) {
+                        stats.countFirings(ruleName(rule), chordType, firings(rule.score(previous[0], voicing, unitConfig)));
+                    }
+                }
+            }
+
+            previous[0] = voicing;
+        });
+
+        stats.countTune(complete);
+    }
+
+    /**
+     * Cuts a four-part arrangement into slices at every time at which a note
+     * starts in any of the parts, and passes each slice to the consumer, in order:
+     * the notes of the four parts, or null if some part is not singing; and the chord
+     * at that time, or null if there is none. Returns false without calling
+     * the consumer if one of the parts has no notes at all.
+     *
+     * @param score
+     * @param consumer
+     * @return
+     */
+    public static boolean forEachSlice(Score score, BiConsumer<Note[], Chord> consumer) {
+        ColumnarScore columns = ColumnarScore.of(score);
+
+        for (int part = 0; part < 4; part++) {
+            if (columns.countNotes(part) == 0) {
+                return false;
+            }
+        }
+
+        ChordTimeline.Cursor chords = columns.getChordTimeline().cursor();
+        int[] noteIndex = new int[4];
+
+        for (int time : getOnsets(columns)) {
+            Note[] voicing = new Note[4];
+
+            for (int part = 0; part < 4; part++) {
+                int i = noteIndex[part];
+                while (i + 1 < columns.countNotes(part) && columns.getOnset(part, i + 1) <= time) {
+                    i++;
+                }
+                noteIndex[part] = i;
+
+                if (columns.getOnset(part, i) <= time && time < columns.getOnset(part, i) + columns.getDuration(part, i)) {
+                    voicing[part] = columns.getNote(part, i);
+                } else {
+                    // this part is not singing
+                    voicing = null;
+                    break;
+                }
+            }
+
+            consumer.accept(voicing, chords.getChordAtTime(time));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the name under which the firings of the rule are counted.
+     *
+     * @param rule
+     * @return
+     */
+    public static String ruleName(Object rule) {
+        return rule.getClass().getSimpleName();
+    }
+
+    // With unit weights, a rule returns the number of times it fired,
+    // or Integer.MIN_VALUE if it forbids the voicing.
+    private static long firings(int ruleScore) {
+        return ruleScore == Integer.MIN_VALUE ? 1 : ruleScore;
+    }
+
+    // the sorted times at which a note starts in any of the parts
+    private static int[] getOnsets(ColumnarScore columns) {
+        return IntStream.range(0, 4)
+                .flatMap(part -> IntStream.range(0, columns.countNotes(part)).map(i -> columns.getOnset(part, i)))
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    public static class Args {
+        @Parameter(description = "ABC files or directories containing four-part arrangements (*.abc).", required = true)
+        private List<String> inputs = new ArrayList<>();
+
+        @Parameter(names = {"--output", "-o"}, description = "Name of the output file (*.yaml).")
+        private String outputFilename = "rule-statistics.yaml";
+
+        @Parameter(names = {"--threads", "-j"}, description = "Number of threads.")
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = "--help", description = "Display usage instructions.", help = true)
+        private boolean help;
+    }
+}
@@ -0,0 +1,334 @@
+package de.saar.coli.arranger.corpus;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import de.saar.coli.arranger.*;
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.rules.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Learns the rule weights in {@link Config.Scores} from a corpus of
+ * reference arrangements, using the averaged structured perceptron.
+ * In each epoch, the lead and chords of each reference arrangement are
+ * arranged with {@link Arrange} under the current weights. Whenever
+ * the rules fire a different number of times in the arrangement that
+ * was found than in the reference arrangement (as counted by the
+ * {@link CorpusAnalyzer}), the weights are moved towards the counts
+ * of the reference arrangement. The trained weights are the average
+ * of the weights after each epoch. If all songs are arranged like
+ * their reference arrangements in some epoch, training stops early
+ * and the current weights are returned, because they would stay
+ * the same in all later epochs.<p>
+ *
+ * The songs are arranged in parallel. For this reason, all songs in an
+ * epoch are arranged with the same weights, and the weights are updated
+ * once at the end of the epoch with the average of the updates for the
+ * individual songs. Because the arranger needs integer weights, it is
+ * given the current weights rounded to the nearest integer.
+ */
+public class PerceptronTrainer {
+    private static final int NUM_WEIGHTS = 5;
+
+    // the rules whose weights are learned, in the order in which they are stored in the weight vectors
+    private static final String[] WEIGHTED_RULES = {
+            LdHarmonyLeaps.class.getSimpleName(),
+            LdParallelOctaves.class.getSimpleName(),
+            VoTenorCrossing.class.getSimpleName(),
+            VoUnisonNotes.class.getSimpleName(),
+            VoWideSpread.class.getSimpleName()
+    };
+
+    private final CorpusAnalyzer analyzer = new CorpusAnalyzer();
+    private int epochs = 10;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double learningRate = 1;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Args arguments = new Args();
+        JCommander jc = JCommander.newBuilder().addObject(arguments).build();
+        jc.parse(args);
+
+        if (arguments.help) {
+            jc.usage();
+            System.exit(0);
+        }
+
+        Config initialConfig = Arrange.loadConfig(arguments.configFilename);
+
+        PerceptronTrainer trainer = new PerceptronTrainer();
+        trainer.setEpochs(arguments.epochs);
+        trainer.setThreads(arguments.threads);
+        trainer.setLearningRate(arguments.learningRate);
+
+        List<Score> references = new ArrayList<>();
+        for (Path file : CorpusAnalyzer.findAbcFiles(arguments.inputs)) {
+            for (String tune : CorpusAnalyzer.readTunes(file)) {
+                try {
+                    references.add(new AbcParser().readAllVoices(new StringReader(tune)));
+                } catch (Exception e) {
+                    System.out.printf("Skipping a tune in %s that could not be read.\n", file);
+                }
+            }
+        }
+
+        System.out.printf("Training on %d reference arrangements for %d epochs, on %d threads ...\n", references.size(), arguments.epochs, arguments.threads);
+        Config trained = trainer.train(references, initialConfig);
+
+        try (Writer w = Files.newBufferedWriter(Paths.get(arguments.outputFilename), StandardCharsets.UTF_8)) {
+            trained.write(w);
+        }
+
+        System.out.printf("Wrote trained configuration to: %s\n", arguments.outputFilename);
+    }
+
+    /**
+     * Sets the number of passes over the training data.
+     *
+     * @param epochs
+     */
+    public void setEpochs(int epochs) {
+        this.epochs = epochs;
+    }
+
+    /**
+     * Sets the number of threads on which the songs are arranged.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the factor by which the weight updates are multiplied.
+     *
+     * @param learningRate
+     */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * Learns rule weights from the given reference arrangements. The
+     * voice parts, clefs etc. of the returned configuration are those
+     * of the initial configuration, and its weights are the trained
+     * weights, rounded to the nearest integer. Reference arrangements
+     * which do not have four parts, or no chord at the first note of
+     * the lead, are ignored.
+     *
+     * @param references
+     * @param initialConfig
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public Config train(List<Score> references, Config initialConfig) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            List<Example> examples = pool.submit(() -> references.parallelStream()
+                    .map(this::makeExample)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())).get();
+
+            double[] weights = getWeights(initialConfig.getScores());
+            double[] weightSums = new double[NUM_WEIGHTS];
+            int epochsDone = 0;
+
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                Config config = withWeights(initialConfig, weights);
+                EpochResult result = pool.submit(() -> examples.parallelStream()
+                        .collect(EpochResult::new, (res, example) -> res.add(example, decode(example, config)), EpochResult::add)).get();
+
+                for (int i = 0; i < NUM_WEIGHTS; i++) {
+                    weights[i] += learningRate * result.update[i] / examples.size();
+                    weightSums[i] += weights[i];
+                }
+
+                epochsDone++;
+                System.out.printf("Epoch %d: %d of %d songs arranged differently from the reference (%d without arrangement).\n",
+                        epoch + 1, result.mistakes, examples.size(), result.failed);
+
+                if (result.mistakes == 0) {
+                    // the weights would not change in any later epoch
+                    return withWeights(initialConfig, weights);
+                }
+            }
+
+            if (epochsDone > 0) {
+                for (int i = 0; i < NUM_WEIGHTS; i++) {
+                    weights[i] = weightSums[i] / epochsDone;
+                }
+            }
+
+            return withWeights(initialConfig, weights);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns how often each rule whose weight is learned fires in the given
+     * arrangement, in the same order as the weights in {@link #getWeights(Config.Scores)}.
+     * Returns null if the arrangement does not have four parts.
+     *
+     * @param arrangement
+     * @return
+     */
+    public long[] countFeatures(Score arrangement) {
+        RuleStatistics stats = new RuleStatistics();
+        analyzer.analyze(arrangement, stats);
+
+        if (stats.getTunes() == 0) {
+            return null;
+        }
+
+        long[] ret = new long[NUM_WEIGHTS];
+        for (int i = 0; i < NUM_WEIGHTS; i++) {
+            ret[i] = stats.getFirings().getOrDefault(WEIGHTED_RULES[i], Map.of()).values().stream().mapToLong(x -> x).sum();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the weights in the given scores as a vector, in the order
+     * harmonyLeaps, parallelOctaves, tenorCrossing, unisonNotes, wideSpread.
+     *
+     * @param scores
+     * @return
+     */
+    public static double[] getWeights(Config.Scores scores) {
+        return new double[]{
+                scores.getHarmonyLeaps(),
+                scores.getParallelOctaves(),
+                scores.getTenorCrossing(),
+                scores.getUnisonNotes(),
+                scores.getWideSpread()
+        };
+    }
+
+    // a copy of the configuration with the given weights, rounded to integers;
+    // the weights of the rules that are not trained are copied unchanged
+    private static Config withWeights(Config config, double[] weights) {
+        Config.Scores initial = config.getScores();
+        Config.Scores scores = new Config.Scores();
+        scores.setHarmonyLeaps((int) Math.round(weights[0]));
+        scores.setParallelOctaves((int) Math.round(weights[1]));
+        scores.setTenorCrossing((int) Math.round(weights[2]));
+        scores.setUnisonNotes((int) Math.round(weights[3]));
+        scores.setWideSpread((int) Math.round(weights[4]));
+        scores.setConsecutiveLeaps(initial.getConsecutiveLeaps());
+        scores.setUnresolvedLeaps(initial.getUnresolvedLeaps());
+
+        Config ret = new Config();
+        ret.setArranger(config.getArranger());
+        ret.setVoiceParts(config.getVoiceParts());
+        ret.setClefs(config.getClefs());
+        ret.setAbcDialect(config.getAbcDialect());
+        ret.setEngine(config.getEngine());
+        ret.setScores(scores);
+        return ret;
+    }
+
+    private Example makeExample(Score reference) {
+        long[] features = countFeatures(reference);
+        if (features == null) {
+            return null;
+        }
+
+        Score melody = reference.cloneWithoutNotes();
+        for (Note note : reference.getPart(VoicePart.LEAD)) {
+            melody.addNote(VoicePart.LEAD, note);
+        }
+
+        ColumnarScore columns = ColumnarScore.of(melody);
+        if (columns.getChordAtNote(VoicePart.LEAD, 0) == null) {
+            return null;
+        }
+
+        return new Example(columns, features);
+    }
+
+    // the feature counts of the best arrangement under the given configuration, or null if there is none
+    private long[] decode(Example example, Config config) {
+        Arrangement arrangement = new Arrange(config).arrange(example.melody);
+        return arrangement == null ? null : countFeatures(arrangement.getArrangement());
+    }
+
+    private static class Example {
+        private final ColumnarScore melody;
+        private final long[] features;
+
+        public Example(ColumnarScore melody, long[] features) {
+            this.melody = melody;
+            this.features = features;
+        }
+    }
+
+    private static class EpochResult {
+        private final double[] update = new double[NUM_WEIGHTS];
+        private int mistakes = 0;
+        private int failed = 0;
+
+        public void add(Example example, long[] predicted) {
+            if (predicted == null) {
+                failed++;
+            } else if (!Arrays.equals(example.features, predicted)) {
+                mistakes++;
+
+                for (int i = 0; i < NUM_WEIGHTS; i++) {
+                    update[i] += example.features[i] - predicted[i];
+                }
+            }
+        }
+
+        public void add(EpochResult other) {
+            mistakes += other.mistakes;
+            failed += other.failed;
+
+            for (int i = 0; i < NUM_WEIGHTS; i++) {
+                update[i] += other.update[i];
+            }
+        }
+    }
+
+    public static class Args {
+        @Parameter(description = "ABC files or directories containing four-part reference arrangements (*.abc).", required = true)
+        private List<String> inputs = new ArrayList<>();
+
+        @Parameter(names = {"--config", "-c"}, description = "Configuration file with the initial weights (*.yaml).")
+        private String configFilename = "aaba.yaml";
+
+        @Parameter(names = {"--output", "-o"}, description = "Name of the output configuration file (*.yaml).")
+        private String outputFilename = "trained.yaml";
+
+        @Parameter(names = {"--epochs", "-e"}, description = "Number of passes over the training data.")
+        private int epochs = 10;
+
+        @Parameter(names = {"--learning-rate", "-r"}, description = "Factor by which the weight updates are multiplied.")
+        private double learningRate = 1;
+
+        @Parameter(names = {"--threads", "-j"}, description = "Number of threads.")
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = "--help", description = "Display usage instructions.", help = true)
+        private boolean help;
+    }
+}
@@ -0,0 +1,221 @@
+package de.saar.coli.arranger.corpus;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts how often the voicing and voice leading rules fire in a corpus
+ * of arrangements, separately for each chord type. For each chord type,
+ * we count the number of voicings and the number of voice leading transitions
+ * (into a voicing of that chord type) that were examined; and for each rule and
+ * chord type, the number of times the rule fired. A rule that forbids a voicing
+ * fires once; other rules fire as often as they would apply their penalty.
+ * The firing frequency of a rule is the number of times it fired, divided by
+ * the number of voicings or transitions it was applied to.<p>
+ *
+ * Statistics for different parts of a corpus can be computed independently
+ * and combined with {@link #add(RuleStatistics)}. They can be saved and loaded
+ * as YAML files.
+ */
+public class RuleStatistics {
+    /**
+     * The chord type under which voice leading transitions into
+     * notes without a chord symbol are counted.
+     */
+    public static final String NO_CHORD = "NONE";
+
+    private long tunes = 0;
+    private long failedTunes = 0;
+    private final Map<String, Long> voicings = new TreeMap<>();
+    private final Map<String, Long> transitions = new TreeMap<>();
+    private final Map<String, Map<String, Long>> firings = new TreeMap<>();
+
+    /**
+     * Records that a tune was analyzed.
+     *
+     * @param successful - false if the tune could not be read or was not a four-part arrangement
+     */
+    public void countTune(boolean successful) {
+        if (successful) {
+            tunes++;
+        } else {
+            failedTunes++;
+        }
+    }
+
+    /**
+     * Records that a voicing of the given chord type was examined.
+     *
+     * @param chordType
+     */
+    public void countVoicing(String chordType) {
+        voicings.merge(chordType, 1L, Long::sum);
+    }
+
+    /**
+     * Records that a voice leading transition into the given chord type was examined.
+     *
+     * @param chordType
+     */
+    public void countTransition(String chordType) {
+        transitions.merge(chordType, 1L, Long::sum);
+    }
+
+    /**
+     * Records that the given rule fired the given number of times
+     * for a voicing or transition of the given chord type.
+     *
+     * @param rule
+     * @param chordType
+     * @param count
+     */
+    public void countFirings(String rule, String chordType, long count) {
+        firings.computeIfAbsent(rule, r -> new TreeMap<>()).merge(chordType, count, Long::sum);
+    }
+
+    /**
+     * Adds the counts of the other statistics to these.
+     *
+     * @param other
+     * @return these statistics
+     */
+    public RuleStatistics add(RuleStatistics other) {
+        tunes += other.tunes;
+        failedTunes += other.failedTunes;
+        other.voicings.forEach((chordType, count) -> voicings.merge(chordType, count, Long::sum));
+        other.transitions.forEach((chordType, count) -> transitions.merge(chordType, count, Long::sum));
+        other.firings.forEach((rule, counts) -> counts.forEach((chordType, count) -> countFirings(rule, chordType, count)));
+        return this;
+    }
+
+    /**
+     * Returns the number of tunes that were analyzed successfully.
+     *
+     * @return
+     */
+    public long getTunes() {
+        return tunes;
+    }
+
+    /**
+     * Returns the number of tunes that could not be analyzed.
+     *
+     * @return
+     */
+    public long getFailedTunes() {
+        return failedTunes;
+    }
+
+    /**
+     * Returns the number of voicings per chord type.
+     *
+     * @return
+     */
+    public Map<String, Long> getVoicings() {
+        return voicings;
+    }
+
+    /**
+     * Returns the number of voice leading transitions per chord type.
+     *
+     * @return
+     */
+    public Map<String, Long> getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Returns the number of firings for each rule and chord type.
+     *
+     * @return
+     */
+    public Map<String, Map<String, Long>> getFirings() {
+        return firings;
+    }
+
+    /**
+     * Returns the number of times the given rule fired for the given chord type.
+     *
+     * @param rule
+     * @param chordType
+     * @return
+     */
+    public long getFirings(String rule, String chordType) {
+        return firings.getOrDefault(rule, Map.of()).getOrDefault(chordType, 0L);
+    }
+
+    /**
+     * Returns the number of firings of the given rule for the given chord type,
+     * divided by the number of voicings (for voicing rules) or transitions
+     * (for voice leading rules) of that chord type. Returns zero if no
+     * voicings or transitions of the chord type were seen.
+     *
+     * @param rule
+     * @param chordType
+     * @param voiceLeading
+     * @return
+     */
+    public double getFrequency(String rule, String chordType, boolean voiceLeading) {
+        long total = (voiceLeading ? transitions : voicings).getOrDefault(chordType, 0L);
+        return total == 0 ? 0 : ((double) getFirings(rule, chordType)) / total;
+    }
+
+    /**
+     * Writes these statistics to the given writer, in YAML format.
+     *
+     * @param writer
+     */
+    public void write(Writer writer) {
+        Map<String, Object> yaml = new LinkedHashMap<>();
+        yaml.put("tunes", tunes);
+        yaml.put("failedTunes", failedTunes);
+        yaml.put("voicings", voicings);
+        yaml.put("transitions", transitions);
+        yaml.put("firings", firings);
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        new Yaml(options).dump(yaml, writer);
+    }
+
+    /**
+     * Reads statistics that were written with {@link #write(Writer)}.
+     *
+     * @param reader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static RuleStatistics read(Reader reader) {
+        Map<String, Object> yaml = (Map<String, Object>) new Yaml().load(reader);
+        RuleStatistics ret = new RuleStatistics();
+
+        ret.tunes = ((Number) yaml.getOrDefault("tunes", 0)).longValue();
+        ret.failedTunes = ((Number) yaml.getOrDefault("failedTunes", 0)).longValue();
+        readCounts((Map<String, Object>) yaml.get("voicings"), ret.voicings);
+        readCounts((Map<String, Object>) yaml.get("transitions"), ret.transitions);
+
+        Map<String, Object> firings = (Map<String, Object>) yaml.get("firings");
+        if (firings != null) {
+            for (Map.Entry<String, Object> entry : firings.entrySet()) {
+                readCounts((Map<String, Object>) entry.getValue(), ret.firings.computeIfAbsent(entry.getKey(), r -> new TreeMap<>()));
+            }
+        }
+
+        return ret;
+    }
+
+    // YAML reads small numbers as Integer and large ones as Long or BigInteger
+    private static void readCounts(Map<String, Object> yaml, Map<String, Long> counts) {
+        if (yaml != null) {
+            for (Map.Entry<String, Object> entry : yaml.entrySet()) {
+                counts.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package de.saar.coli.arranger.corpus;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import de.saar.coli.arranger.*;
+import de.saar.coli.arranger.abc.AbcParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Learns a {@link VoicingPrior} from a corpus of songs in ABC notation.
+ * By default, the songs are four-part arrangements, e.g. reference charts,
+ * which are cut into voicings like in the {@link CorpusAnalyzer}. With --arrange,
+ * the songs are melodies with chords, and the prior is learned from the
+ * arrangements that AABA computes for them.<p>
+ *
+ * With --evaluate, the learner does not learn a prior, but measures an existing
+ * one on a corpus of melodies: each song is arranged with and without the prior,
+ * and the learner reports how many of the candidate voicings the prior dropped,
+ * and for how many songs the arrangement with the prior is worse than the best one.
+ */
+public class VoicingPriorLearner {
+    public static void main(String[] args) throws IOException {
+        Args arguments = new Args();
+        JCommander jc = JCommander.newBuilder().addObject(arguments).build();
+        jc.parse(args);
+
+        if (arguments.help) {
+            jc.usage();
+            System.exit(0);
+        }
+
+        Config config = Arrange.loadConfig(arguments.configFilename);
+        List<String> tunes = new ArrayList<>();
+        for (Path file : CorpusAnalyzer.findAbcFiles(arguments.inputs)) {
+            tunes.addAll(CorpusAnalyzer.readTunes(file));
+        }
+
+        if (arguments.priorFilename != null) {
+            VoicingPrior prior;
+            try (Reader r = Files.newBufferedReader(Paths.get(arguments.priorFilename), StandardCharsets.UTF_8)) {
+                prior = VoicingPrior.read(r);
+            }
+
+            Evaluation evaluation = evaluate(readMelodies(tunes), config, prior, arguments.recall);
+            System.out.println(evaluation);
+            return;
+        }
+
+        VoicingPrior prior = arguments.arrange ? learnFromMelodies(readMelodies(tunes), config) : learnFromArrangements(tunes);
+        System.out.printf("Counted %d voicings in %d tunes.\n", prior.getVoicings(), tunes.size());
+
+        try (Writer w = Files.newBufferedWriter(Paths.get(arguments.outputFilename), StandardCharsets.UTF_8)) {
+            prior.write(w);
+        }
+
+        System.out.printf("Wrote voicing prior to: %s\n", arguments.outputFilename);
+    }
+
+    /**
+     * Learns a prior from the given four-part arrangements in ABC notation.
+     * Tunes that cannot be read are skipped.
+     *
+     * @param tunes
+     * @return
+     */
+    public static VoicingPrior learnFromArrangements(List<String> tunes) {
+        VoicingPrior ret = new VoicingPrior();
+
+        for (String tune : tunes) {
+            try {
+                Score score = new AbcParser().readAllVoices(new StringReader(tune));
+                learn(score, ret);
+            } catch (Exception e) {
+                // skip unreadable tunes, like the CorpusAnalyzer
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Learns a prior from the arrangements that AABA computes for the given songs.
+     *
+     * @param songs
+     * @param config
+     * @return
+     */
+    public static VoicingPrior learnFromMelodies(List<Score> songs, Config config) {
+        VoicingPrior ret = new VoicingPrior();
+
+        for (Score song : songs) {
+            Arrangement arrangement = new Arrange(config).arrange(song);
+
+            if (arrangement != null) {
+                learn(arrangement.getArrangement(), ret);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Adds the voicings of the given four-part arrangement to the prior.
+     * Voicings without a chord are not counted.
+     *
+     * @param arrangement
+     * @param prior
+     */
+    public static void learn(Score arrangement, VoicingPrior prior) {
+        CorpusAnalyzer.forEachSlice(arrangement, (voicing, chord) -> {
+            if (voicing != null && chord != null) {
+                prior.add(voicing, chord);
+            }
+        });
+    }
+
+    /**
+     * Arranges each song with and without the prior, and compares the arrangements.
+     *
+     * @param songs
+     * @param config
+     * @param prior
+     * @param recall
+     * @return
+     */
+    public static Evaluation evaluate(List<Score> songs, Config config, VoicingPrior prior, double recall) {
+        Evaluation ret = new Evaluation();
+        ret.recall = recall;
+
+        for (Score song : songs) {
+            Arrangement exact = new Arrange(config).arrange(song);
+            Arrange arranger = new Arrange(config);
+            arranger.setVoicingPrior(prior, recall);
+            Arrangement pruned = arranger.arrange(song);
+
+            ret.songs++;
+            ret.candidateVoicings += CostEstimate.compute(song, config).getVoicings();
+            ret.prunedVoicings += arranger.getPrunedVoicings();
+
+            if (exact != null && (pruned == null || pruned.getScore() < exact.getScore())) {
+                ret.prunedOptima++;
+            }
+        }
+
+        return ret;
+    }
+
+    private static List<Score> readMelodies(List<String> tunes) {
+        List<Score> ret = new ArrayList<>();
+
+        for (String tune : tunes) {
+            try {
+                ret.add(new AbcParser().read(new StringReader(tune)));
+            } catch (Exception e) {
+                // skip unreadable tunes
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * The result of {@link #evaluate(List, Config, VoicingPrior, double)}.
+     */
+    public static class Evaluation {
+        private double recall;
+        private int songs = 0;
+        private long candidateVoicings = 0;
+        private long prunedVoicings = 0;
+        private int prunedOptima = 0;
+
+        public int getSongs() {
+            return songs;
+        }
+
+        /**
+         * Returns the number of voicings that the arranger would consider
+         * for the songs without the prior; see {@link CostEstimate#getVoicings()}.
+         *
+         * @return
+         */
+        public long getCandidateVoicings() {
+            return candidateVoicings;
+        }
+
+        /**
+         * Returns the number of voicings that the prior dropped.
+         *
+         * @return
+         */
+        public long getPrunedVoicings() {
+            return prunedVoicings;
+        }
+
+        /**
+         * Returns the number of songs for which the arrangement with the prior
+         * has a lower score than the best arrangement, or none was found.
+         *
+         * @return
+         */
+        public int getPrunedOptima() {
+            return prunedOptima;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Recall %.2f: dropped %d of %d candidate voicings (%.1f%%); the best arrangement was lost for %d of %d songs.",
+                    recall, prunedVoicings, candidateVoicings, candidateVoicings == 0 ? 0 : 100.0 * prunedVoicings / candidateVoicings, prunedOptima, songs);
+        }
+    }
+
+    public static class Args {
+        @Parameter(description = "ABC files or directories containing the songs (*.abc).", required = true)
+        private List<String> inputs = new ArrayList<>();
+
+        @Parameter(names = {"--output", "-o"}, description = "Name of the output file (*.yaml).")
+        private String outputFilename = "voicing-prior.yaml";
+
+        @Parameter(names = {"--config", "-c"}, description = "Name of the configuration file (*.yaml) with which the songs are arranged.")
+        private String configFilename = "aaba.yaml";
+
+        @Parameter(names = "--arrange", description = "The songs are melodies with chords; learn the prior from their arrangements.")
+        private boolean arrange = false;
+
+        @Parameter(names = "--evaluate", description = "Voicing prior (*.yaml) to evaluate on the songs, which are melodies with chords, instead of learning one.")
+        private String priorFilename = null;
+
+        @Parameter(names = "--recall", description = "Fraction of the voicings in the corpus that the most frequent shapes must cover when evaluating a prior.")
+        private double recall = 0.95;
+
+        @Parameter(names = "--help", description = "Display usage instructions.", help = true)
+        private boolean help;
+    }
+}
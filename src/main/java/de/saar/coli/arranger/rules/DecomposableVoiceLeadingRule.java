@@ -0,0 +1,24 @@
+package de.saar.coli.arranger.rules;
+
+import de.saar.coli.arranger.Config;
+import de.saar.coli.arranger.Note;
+
+/**
+ * A voice leading rule whose score only depends on a few features of
+ * the two voicings, e.g. the notes of some of the parts. Many voicings
+ * of a note share the same features, so the arranger can group the voicings
+ * of two consecutive notes by their features and score each pair of groups
+ * only once, instead of each pair of voicings.
+ */
+public interface DecomposableVoiceLeadingRule extends VoiceLeadingRule {
+    /**
+     * Returns the features of the given voicing on which the score depends.
+     * The rule must assign the same score to any two transitions
+     * whose voicings have the same features under the given configuration.
+     *
+     * @param voicing
+     * @param config
+     * @return
+     */
+    public int getFeatures(Note[] voicing, Config config);
+}
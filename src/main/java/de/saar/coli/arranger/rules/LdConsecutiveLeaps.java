@@ -0,0 +1,37 @@
+package de.saar.coli.arranger.rules;
+
+import de.saar.coli.arranger.Config;
+import de.saar.coli.arranger.Note;
+
+import static de.saar.coli.arranger.VoicePart.BARI;
+import static de.saar.coli.arranger.VoicePart.TENOR;
+
+/**
+ * Penalizes two consecutive leaps of more than a minor third in the
+ * Tn or Br part. The penalty is determined by the configuration
+ * parameter "consecutiveLeaps".
+ */
+public class LdConsecutiveLeaps implements SecondOrderVoiceLeadingRule {
+    @Override
+    public int score(Note[] before, Note[] from, Note[] to, Config config) {
+        int score = 0;
+
+        for (int part : new int[]{TENOR, BARI}) {
+            if (before[part].getAbsoluteDistance(from[part]) > 3 && from[part].getAbsoluteDistance(to[part]) > 3) {
+                score += config.getScores().getConsecutiveLeaps();
+            }
+        }
+
+        return score;
+    }
+
+    @Override
+    public int getLowestScore(Config config) {
+        return 2 * Math.min(0, config.getScores().getConsecutiveLeaps());
+    }
+
+    @Override
+    public int getHighestScore(Config config) {
+        return 2 * Math.max(0, config.getScores().getConsecutiveLeaps());
+    }
+}
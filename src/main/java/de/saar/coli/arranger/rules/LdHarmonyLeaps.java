@@ -11,7 +11,7 @@ import static de.saar.coli.arranger.VoicePart.TENOR;
  * The penalty is determined by the configuration parameter "harmonyLeaps".
  *
  */
-public class LdHarmonyLeaps implements VoiceLeadingRule {
+public class LdHarmonyLeaps implements DecomposableVoiceLeadingRule {
     @Override
     public int score(Note[] from, Note[] to, Config config) {
         int score = 0;
@@ -27,4 +27,19 @@ public class LdHarmonyLeaps implements VoiceLeadingRule {
 
         return score;
     }
+
+    @Override
+    public int getHighestScore(Config config) {
+        return 2 * Math.max(0, config.getScores().getHarmonyLeaps());
+    }
+
+    @Override
+    public int getFeatures(Note[] voicing, Config config) {
+        if (config.getScores().getHarmonyLeaps() == 0) {
+            return 0;
+        }
+
+        // the score only depends on the Tn and Br notes
+        return voicing[TENOR].getAbsoluteNote() | voicing[BARI].getAbsoluteNote() << 8;
+    }
 }
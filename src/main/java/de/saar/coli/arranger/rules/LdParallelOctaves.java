@@ -8,7 +8,7 @@ import de.saar.coli.arranger.Note;
  * is determined by the config parameter "parallelOctaves".
  *
  */
-public class LdParallelOctaves implements VoiceLeadingRule {
+public class LdParallelOctaves implements DecomposableVoiceLeadingRule {
     @Override
     public int score(Note[] from, Note[] to, Config config) {
         int score = 0;
@@ -26,4 +26,32 @@ public class LdParallelOctaves implements VoiceLeadingRule {
 
         return score;
     }
+
+    @Override
+    public int getHighestScore(Config config) {
+        return 6 * Math.max(0, config.getScores().getParallelOctaves());
+    }
+
+    @Override
+    public int getFeatures(Note[] voicing, Config config) {
+        if (config.getScores().getParallelOctaves() == 0) {
+            return 0;
+        }
+
+        // the score only depends on which pairs of parts are an octave apart
+        int ret = 0;
+        int bit = 1;
+
+        for (int part = 0; part < 4; part++) {
+            for (int other = part + 1; other < 4; other++) {
+                if (voicing[part].getAbsoluteDistance(voicing[other]) == 12) {
+                    ret |= bit;
+                }
+
+                bit <<= 1;
+            }
+        }
+
+        return ret;
+    }
 }
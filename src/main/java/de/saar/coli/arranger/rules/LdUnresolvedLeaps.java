@@ -0,0 +1,42 @@
+package de.saar.coli.arranger.rules;
+
+import de.saar.coli.arranger.Config;
+import de.saar.coli.arranger.Note;
+
+import static de.saar.coli.arranger.VoicePart.BARI;
+import static de.saar.coli.arranger.VoicePart.TENOR;
+
+/**
+ * Penalizes leaps of more than a minor third in the Tn or Br part
+ * that are not resolved by a step (a half or whole tone) in the
+ * opposite direction. The penalty is determined by the configuration
+ * parameter "unresolvedLeaps".
+ */
+public class LdUnresolvedLeaps implements SecondOrderVoiceLeadingRule {
+    @Override
+    public int score(Note[] before, Note[] from, Note[] to, Config config) {
+        int score = 0;
+
+        for (int part : new int[]{TENOR, BARI}) {
+            int leap = from[part].getAbsoluteNote() - before[part].getAbsoluteNote();
+            int next = to[part].getAbsoluteNote() - from[part].getAbsoluteNote();
+            boolean resolved = Math.abs(next) <= 2 && next != 0 && (next > 0) != (leap > 0);
+
+            if (Math.abs(leap) > 3 && !resolved) {
+                score += config.getScores().getUnresolvedLeaps();
+            }
+        }
+
+        return score;
+    }
+
+    @Override
+    public int getLowestScore(Config config) {
+        return 2 * Math.min(0, config.getScores().getUnresolvedLeaps());
+    }
+
+    @Override
+    public int getHighestScore(Config config) {
+        return 2 * Math.max(0, config.getScores().getUnresolvedLeaps());
+    }
+}
@@ -0,0 +1,35 @@
+package de.saar.coli.arranger.rules;
+
+import de.saar.coli.arranger.Config;
+import de.saar.coli.arranger.Note;
+
+/**
+ * A voice leading rule that looks at three consecutive voicings instead
+ * of two, e.g. to penalize two leaps in a row. The arranger then needs to
+ * keep track of pairs of consecutive voicings, which makes arranging
+ * slower; it therefore only does this if at least one such rule is active.
+ * The weight of a second-order rule is usually a penalty, but it can
+ * also be a bonus.
+ */
+public interface SecondOrderVoiceLeadingRule {
+    public int score(Note[] before, Note[] from, Note[] to, Config config);
+
+    /**
+     * Returns the lowest score that the rule can assign to three voicings
+     * under the given configuration.
+     *
+     * @param config
+     * @return
+     */
+    public int getLowestScore(Config config);
+
+    /**
+     * Returns the highest score that the rule can assign to three voicings
+     * under the given configuration. The rule is active if its lowest and
+     * highest scores are different.
+     *
+     * @param config
+     * @return
+     */
+    public int getHighestScore(Config config);
+}
@@ -5,4 +5,14 @@ import de.saar.coli.arranger.Note;
 
 public interface VoiceLeadingRule {
     public int score(Note[] from, Note[] to, Config config);
+
+    /**
+     * Returns an upper bound for the score that the rule can assign to
+     * two voicings under the given configuration. This is zero if the rule
+     * only assigns penalties.
+     *
+     * @param config
+     * @return
+     */
+    public int getHighestScore(Config config);
 }
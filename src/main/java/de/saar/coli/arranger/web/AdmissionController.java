@@ -0,0 +1,142 @@
+package de.saar.coli.arranger.web;
+
+import de.saar.coli.arranger.CostEstimate;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether the server should arrange a song, based on a
+ * {@link CostEstimate} that is computed before arranging starts.
+ * Songs whose estimated number of voice leading transitions is within
+ * the budget are arranged exactly. Larger songs are arranged approximately,
+ * with a beam width that keeps the work within the budget. Songs with
+ * too many candidate voicings are rejected.<p>
+ *
+ * In addition, the controller limits the number of songs that are arranged
+ * at the same time. Further requests wait for a free slot, and are
+ * rejected if none becomes available within a timeout.<p>
+ *
+ * The budgets can be set through environment variables:
+ * AABA_MAX_EXACT_TRANSITIONS, AABA_MAX_VOICINGS, AABA_MAX_CONCURRENT_ARRANGEMENTS,
+ * and AABA_QUEUE_TIMEOUT_MS.
+ */
+public class AdmissionController {
+    /**
+     * How a song is arranged.
+     */
+    public static enum Decision {
+        /**
+         * The song is arranged exactly.
+         */
+        EXACT,
+
+        /**
+         * The song is arranged with a limited beam width, see {@link #getBeamWidth(CostEstimate)}.
+         */
+        APPROXIMATE,
+
+        /**
+         * The song is not arranged at all.
+         */
+        REJECT
+    }
+
+    private final long maxExactTransitions;
+    private final long maxVoicings;
+    private final long queueTimeoutMs;
+    private final Semaphore slots;
+
+    /**
+     * Creates an admission controller with the given budgets.
+     *
+     * @param maxExactTransitions songs with at most this many transitions are arranged exactly
+     * @param maxVoicings songs with more candidate voicings than this are rejected
+     * @param maxConcurrent the maximum number of songs that are arranged at the same time
+     * @param queueTimeoutMs how long a request waits for a free slot before it is rejected
+     */
+    public AdmissionController(long maxExactTransitions, long maxVoicings, int maxConcurrent, long queueTimeoutMs) {
+        this.maxExactTransitions = maxExactTransitions;
+        this.maxVoicings = maxVoicings;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Creates an admission controller whose budgets are read from
+     * environment variables. Variables that are not set default to
+     * budgets under which typical songs are arranged exactly.
+     *
+     * @return
+     */
+    public static AdmissionController fromEnvironment() {
+        return new AdmissionController(
+                getenv("AABA_MAX_EXACT_TRANSITIONS", 5000000),
+                getenv("AABA_MAX_VOICINGS", 200000),
+                (int) getenv("AABA_MAX_CONCURRENT_ARRANGEMENTS", Runtime.getRuntime().availableProcessors()),
+                getenv("AABA_QUEUE_TIMEOUT_MS", 10000));
+    }
+
+    private static long getenv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Decides how a song with the given cost estimate should be arranged.
+     *
+     * @param estimate
+     * @return
+     */
+    public Decision decide(CostEstimate estimate) {
+        if (estimate.getVoicings() > maxVoicings) {
+            return Decision.REJECT;
+        } else if (estimate.getTransitions() > maxExactTransitions) {
+            return Decision.APPROXIMATE;
+        } else {
+            return Decision.EXACT;
+        }
+    }
+
+    /**
+     * Returns the beam width with which a song with the given cost
+     * estimate should be arranged (see {@link de.saar.coli.arranger.Arrange#setBeamWidth(int)}).
+     * This is zero for songs that are arranged exactly. For songs that are
+     * arranged approximately, the beam width is chosen such that the
+     * number of transitions stays within the budget.
+     *
+     * @param estimate
+     * @return
+     */
+    public int getBeamWidth(CostEstimate estimate) {
+        if (decide(estimate) != Decision.APPROXIMATE) {
+            return 0;
+        } else {
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxExactTransitions / Math.max(1, estimate.getVoicings())));
+        }
+    }
+
+    /**
+     * Waits until fewer than the maximum number of songs are being arranged.
+     * Every successful call must be followed by a call to {@link #release()}.
+     *
+     * @throws AdmissionRejectedException if no slot became available within the timeout
+     */
+    public void acquire() throws AdmissionRejectedException {
+        try {
+            if (!slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new AdmissionRejectedException("The server is too busy right now. Please try again in a minute.", 503);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AdmissionRejectedException("The request was interrupted while waiting.", 503);
+        }
+    }
+
+    /**
+     * Frees the slot that was taken by {@link #acquire()}.
+     */
+    public void release() {
+        slots.release();
+    }
+}
@@ -0,0 +1,25 @@
+package de.saar.coli.arranger.web;
+
+/**
+ * An exception which signals that the server refused to arrange a song,
+ * either because the song is too expensive to arrange or because the
+ * server is too busy.
+ *
+ */
+public class AdmissionRejectedException extends Exception {
+    private final int status;
+
+    public AdmissionRejectedException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Returns the HTTP status code with which the request should be answered.
+     *
+     * @return
+     */
+    public int getStatus() {
+        return status;
+    }
+}
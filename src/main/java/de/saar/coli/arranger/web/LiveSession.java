@@ -0,0 +1,104 @@
+package de.saar.coli.arranger.web;
+
+import de.saar.coli.arranger.IncrementalArranger;
+import de.saar.coli.arranger.abc.IncrementalAbcParser;
+import io.javalin.websocket.WsContext;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The state of a live arranging session on the /live WebSocket.
+ * The session remembers the ABC text that the user edited last,
+ * parsed with an {@link IncrementalAbcParser}, and the lattice of its
+ * arrangement, in an {@link IncrementalArranger}. Each edit thus only
+ * re-parses the changed lines and re-arranges the changed notes.<p>
+ *
+ * Edits that arrive while an earlier edit is still being arranged are
+ * not queued up: only the most recent text is arranged next, by the same
+ * worker thread. Thus at most one thread arranges a session at a time, and
+ * no thread waits for another one to finish arranging.
+ */
+class LiveSession {
+    private final WsContext context;
+    private final IncrementalAbcParser parser = new IncrementalAbcParser();
+    private final IncrementalArranger arranger;
+    private final ReentrantLock lock = new ReentrantLock(); // not synchronized, which would pin virtual threads
+    private String pendingAbc = null;
+    private boolean arranging = false;
+    private volatile long lastActive;
+
+    public LiveSession(WsContext context, IncrementalArranger arranger) {
+        this.context = context;
+        this.arranger = arranger;
+        touch();
+    }
+
+    public WsContext getContext() {
+        return context;
+    }
+
+    public IncrementalAbcParser getParser() {
+        return parser;
+    }
+
+    public IncrementalArranger getArranger() {
+        return arranger;
+    }
+
+    /**
+     * Records that the user edited the song, replacing earlier edits
+     * that have not been arranged yet. Returns true if no worker is
+     * arranging the session; the caller must then start one, which
+     * calls {@link #takePendingAbc()} until it returns null.
+     *
+     * @param abc
+     * @return
+     */
+    public boolean setPendingAbc(String abc) {
+        lock.lock();
+        try {
+            pendingAbc = abc;
+            touch();
+
+            if (arranging) {
+                return false;
+            }
+
+            arranging = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most recent text that has not been arranged yet.
+     * Returns null if there is none, in which case the worker
+     * must stop; the next edit will start a new one.
+     *
+     * @return
+     */
+    public String takePendingAbc() {
+        lock.lock();
+        try {
+            String ret = pendingAbc;
+            pendingAbc = null;
+
+            if (ret == null) {
+                arranging = false;
+            }
+
+            return ret;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void touch() {
+        lastActive = System.currentTimeMillis();
+    }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+}
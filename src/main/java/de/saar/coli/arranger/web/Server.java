@@ -6,14 +6,30 @@ import au.com.codeka.carrot.Configuration;
 import au.com.codeka.carrot.bindings.MapBindings;
 import au.com.codeka.carrot.resource.MemoryResourceLocator;
 import au.com.codeka.carrot.resource.ResourceLocator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import de.saar.coli.arranger.*;
 import de.saar.coli.arranger.abc.AbcParser;
-import de.saar.coli.arranger.abc.AbcWriter;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsMessageContext;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static de.saar.coli.arranger.Arrange.loadConfig;
 import static de.saar.coli.arranger.Util.slurp;
@@ -24,26 +40,93 @@ import static de.saar.coli.arranger.Util.slurp;
  * on the website.<p>
  *
  * The server runs on port 7000 by default. If you set the environment  variable PORT
- * to some other number, the server will listen on that port instead.
+ * to some other number, the server will listen on that port instead.<p>
+ *
+ * The landing page and the arrangement of the default song are rendered once, when
+ * the server starts, and are then served from memory. Scripts and stylesheets are
+ * served precompressed under content-hashed names (see {@link StaticAssets}).<p>
+ *
+ * Before a song is arranged, the server estimates the cost of arranging it.
+ * An {@link AdmissionController} then decides whether the song is arranged exactly,
+ * approximately, or not at all. The estimate is shown on the website and sent
+ * in the X-AABA-Estimated-Transitions response header.<p>
+ *
+ * Several songs can be arranged in a single request by posting them to /batch,
+ * either as one ABC file with several tunes or as a JSON array of strings
+ * (with content type application/json). The songs are arranged concurrently,
+ * each on its own virtual thread, and the results are streamed back as
+ * newline-delimited JSON objects in the order in which they are completed.<p>
+ *
+ * Posting a song to /keys arranges it in all twelve keys and returns the
+ * keys ranked by the scores of their arrangements (see {@link KeySearch}).<p>
+ *
+ * All songs are arranged with a shared {@link LatticeCache}, so arranging
+ * a song again in a different key reuses most voicing and voice leading scores.
+ * They also share a {@link PrefixCache}, so if a song begins like one that
+ * was arranged before, e.g. because the user edited the end of the song,
+ * only the notes after the common beginning are arranged.<p>
+ *
+ * The page also connects to the /live WebSocket, to which it sends the song
+ * whenever the user pauses while editing it. The server keeps a {@link LiveSession}
+ * for each connection, which re-parses and re-arranges only the edited part of the
+ * song, and sends the arrangement back. Sessions that have been idle for
+ * ten minutes are closed.<p>
+ *
+ * The environment variable AABA_ENGINE selects the {@link ArrangementEngine}
+ * with which songs that are posted to / are arranged, e.g. COARSE_TO_FINE.
+ * Only engines that are based on {@link Arrange} are allowed, because the
+ * beam widths of the admission control only apply to them; the live sessions
+ * always use the Viterbi algorithm, because they reuse its columns.
  */
 public class Server {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final long LIVE_SESSION_TIMEOUT_MS = 10 * 60 * 1000;
+
     private final Config config;
     private final CarrotEngine engine;
-    private final AbcWriter abcw;
+    private final StreamingAbcWriter abcw;
+    private final StaticAssets assets;
+    private final AdmissionController admission;
+    private final LatticeCache latticeCache;
+    private final PrefixCache prefixCache;
+    private final Map<String, LiveSession> liveSessions = new ConcurrentHashMap<>();
+    private final String defaultAbc;
+    private final String indexHtml;
+    private final String defaultArrangementHtml;
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         Server x = new Server();
         x.run();
     }
 
-    public Server() throws FileNotFoundException {
+    public Server() throws IOException {
         config = loadConfig(null);
         config.setAbcDialect(Config.ABC_DIALECT.ABC2SVG);
-        abcw = new AbcWriter(config);
+
+        if( System.getenv("AABA_ENGINE") != null ) {
+            config.setEngine(Config.ENGINE.valueOf(System.getenv("AABA_ENGINE")));
+
+            // other engines would ignore the beam width of approximate songs, and could run out of time and memory
+            if( ! (ArrangementEngine.create(config) instanceof Arrange) ) {
+                throw new IllegalArgumentException("AABA_ENGINE " + config.getEngine() + " is not supported by the server, because it does not limit the beam width.");
+            }
+        }
+        abcw = new StreamingAbcWriter(config);
+        assets = new StaticAssets("/static", "music.min.css", "abc-ui-1.0.0.min.js");
+        admission = AdmissionController.fromEnvironment();
+        latticeCache = new LatticeCache(config);
+        prefixCache = new PrefixCache();
 
         engine = new CarrotEngine(new Configuration.Builder()
                 .setResourceLocator(makeResourceLocator())
                 .build());
+
+        defaultAbc = slurp("/down_our_way.abc");
+
+        AabaForm form = new AabaForm();
+        form.setInput_abc(defaultAbc);
+        indexHtml = renderIndex(Map.of("form", form));
+        defaultArrangementHtml = renderDefaultArrangement();
     }
 
     public void run() throws FileNotFoundException {
@@ -61,26 +144,70 @@ public class Server {
             getIndex(ctx);
         });
 
+        app.get(StaticAssets.PATH + ":name", ctx -> {
+            assets.serve(ctx);
+        });
+
         app.post("/", ctx -> {
             postIndex(ctx);
         });
+
+        app.post("/batch", ctx -> {
+            postBatch(ctx);
+        });
+
+        app.post("/keys", ctx -> {
+            postKeys(ctx);
+        });
+
+        app.ws("/live", ws -> {
+            ws.onMessage(ctx -> {
+                onLiveMessage(ctx);
+            });
+
+            ws.onClose(ctx -> {
+                liveSessions.remove(ctx.getSessionId());
+            });
+        });
+
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live-session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleAtFixedRate(this::evictIdleLiveSessions, 1, 1, TimeUnit.MINUTES);
     }
 
     public void getIndex(Context ctx) {
-        AabaForm form = new AabaForm();
-        form.setInput_abc(Util.slurp(new InputStreamReader(getClass().getResourceAsStream("/down_our_way.abc"))));
-        ctx.html(renderIndex(Map.of("form", form)));
+        ctx.html(indexHtml);
     }
 
     public void postIndex(Context ctx) {
         try(AabaForm form =  AabaForm.parse(ctx)) {
+            CostEstimate estimate = null;
+
             try {
                 if( "".equals(form.input_abc())) {
                     ctx.html(renderIndex(Map.of("form", form, "error", "Please enter a song in ABC notation.")));
+                } else if( defaultArrangementHtml != null && isDefaultSong(form.input_abc()) ) {
+                    ctx.html(defaultArrangementHtml);
                 } else {
-                    Arrangement arrangement = arrange(form.input_abc());
-                    ctx.html(renderIndex(Map.of("abc", abcw.asString(arrangement.getArrangement()), "form", form, "original_abc", form.input_abc(), "meta", arrangement)));
+                    Score score = new AbcParser().read(new StringReader(form.input_abc()));
+                    estimate = CostEstimate.compute(score, config);
+                    ctx.header("X-AABA-Estimated-Transitions", Long.toString(estimate.getTransitions()));
+
+                    AdmissionController.Decision decision = admission.decide(estimate);
+                    Arrangement arrangement = arrange(score, estimate);
+
+                    Map<String,Object> parameters = new HashMap<>(Map.of("abc", abcw.asString(arrangement.getArrangement()), "form", form, "original_abc", form.input_abc(), "meta", arrangement, "estimate", estimate));
+                    if( decision == AdmissionController.Decision.APPROXIMATE ) {
+                        parameters.put("approximate", true);
+                    }
+                    ctx.html(renderIndex(parameters));
                 }
+            } catch (AdmissionRejectedException e) {
+                ctx.status(e.getStatus());
+                ctx.html(renderIndex(Map.of("form", form, "original_abc", form.input_abc(), "error", e.getMessage(), "estimate", estimate)));
             } catch (IOException e) {
                 // This should never happen, we are not doing any I/O.
             } catch (AbcParser.AbcParsingException e) {
@@ -100,19 +227,317 @@ public class Server {
         } 
     }
 
+    /**
+     * Arranges all songs in the body of the request and streams the results
+     * back as newline-delimited JSON. Each line is an object with the field
+     * "index" (the position of the song in the request) and either the fields
+     * "title", "abc", "score", "runtimeMs", "estimatedTransitions", and "approximate",
+     * or the field "error".<p>
+     *
+     * All songs are arranged concurrently on virtual threads; the
+     * {@link AdmissionController} limits how many of them (together with
+     * the songs from all other requests) are arranged at the same time.
+     *
+     * @param ctx
+     * @throws IOException
+     */
+    public void postBatch(Context ctx) throws IOException {
+        List<String> tunes;
+
+        if( ctx.contentType() != null && ctx.contentType().startsWith("application/json") ) {
+            try {
+                tunes = Arrays.asList(JSON.readValue(ctx.body(), String[].class));
+            } catch (IOException e) {
+                ctx.status(400);
+                ctx.result("Expected a JSON array of strings: " + e.getMessage());
+                return;
+            }
+        } else {
+            tunes = AbcParser.splitTunes(ctx.body());
+        }
+
+        ctx.res.setContentType("application/x-ndjson");
+        ctx.res.setCharacterEncoding("UTF-8");
+        OutputStream out = ctx.res.getOutputStream();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Map<String,Object>> results = new ExecutorCompletionService<>(executor);
+
+            for( int i = 0; i < tunes.size(); i++ ) {
+                int index = i;
+                results.submit(() -> arrangeForBatch(index, tunes.get(index)));
+            }
+
+            for( int i = 0; i < tunes.size(); i++ ) {
+                Map<String,Object> result = results.take().get();
+                out.write(JSON.writeValueAsBytes(result));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // arrangeForBatch catches all exceptions itself
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Arranges the song in the body of the request in all twelve keys
+     * (see {@link KeySearch}) and returns the keys as a JSON array, ranked
+     * from best to worst. Each entry is an object with the fields "key",
+     * "transposition", "score", "abc", "leadNotesOutOfRange", and "parts";
+     * the latter maps each voice part to its "lowest" and "highest" note
+     * and its "rangeUsage". For keys without a valid arrangement,
+     * "score" and "abc" are null.<p>
+     *
+     * Each key is arranged under the control of the {@link AdmissionController},
+     * like a song in a batch request.
+     *
+     * @param ctx
+     * @throws IOException
+     */
+    public void postKeys(Context ctx) throws IOException {
+        try {
+            Score score = new AbcParser().read(new StringReader(ctx.body()));
+            List<KeySearch.Result> results = new KeySearch(config).search(score, transposed -> {
+                try {
+                    return arrange(transposed, CostEstimate.compute(transposed, config));
+                } catch (NoValidArrangementException e) {
+                    return null;
+                }
+            });
+
+            List<Map<String,Object>> ret = new ArrayList<>();
+            for( KeySearch.Result result : results ) {
+                ret.add(keyResultToJson(result));
+            }
+
+            ctx.contentType("application/json");
+            ctx.result(JSON.writeValueAsString(ret));
+        } catch (AbcParser.AbcParsingException e) {
+            ctx.status(400);
+            ctx.result("ABC syntax error: " + e.getMessage());
+        } catch (ExecutionException e) {
+            if( e.getCause() instanceof AdmissionRejectedException ) {
+                ctx.status(((AdmissionRejectedException) e.getCause()).getStatus());
+                ctx.result(e.getCause().getMessage());
+            } else {
+                e.printStackTrace();
+                ctx.status(500);
+                ctx.result("Unexpected error: " + e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives an edited version of the song on the /live WebSocket. The song is
+     * arranged on a virtual thread, and the result is sent back as a JSON object
+     * with the fields "title", "abc", "score", "runtimeMs", "estimatedTransitions",
+     * "approximate", "notes", "arrangedNotes" (the number of notes that were
+     * arranged again), and "reparsedLines"; or with the field "error".
+     *
+     * @param ctx
+     */
+    public void onLiveMessage(WsMessageContext ctx) {
+        LiveSession session = liveSessions.computeIfAbsent(ctx.getSessionId(), id -> makeLiveSession(ctx));
+
+        if( session.setPendingAbc(ctx.message()) ) {
+            Thread.startVirtualThread(() -> arrangeLive(session));
+        }
+    }
+
+    private LiveSession makeLiveSession(WsContext ctx) {
+        Arrange arranger = new Arrange(config);
+        arranger.setCache(latticeCache);
+        arranger.setPrefixCache(prefixCache);
+        return new LiveSession(ctx, new IncrementalArranger(arranger));
+    }
+
+    // Arranges the most recent edit of the session. If another edit arrives in
+    // the meantime, it is arranged next, and all edits in between are skipped.
+    // Only one worker runs per session (see LiveSession#setPendingAbc), so the
+    // arranger is never shared, and the worker holds no lock while it waits for admission.
+    private void arrangeLive(LiveSession session) {
+        for( String abc = session.takePendingAbc(); abc != null; abc = session.takePendingAbc() ) {
+            Map<String,Object> ret = new LinkedHashMap<>();
+
+            try {
+                Score score = session.getParser().update(abc);
+                CostEstimate estimate = CostEstimate.compute(score, config);
+                Arrangement arrangement;
+
+                int beamWidth = admit(estimate);
+                try {
+                    session.getArranger().getArranger().setBeamWidth(beamWidth);
+                    arrangement = session.getArranger().arrange(score);
+                } finally {
+                    admission.release();
+                }
+
+                if( arrangement == null ) {
+                    throw new NoValidArrangementException();
+                }
+
+                ret.put("title", score.getTitle());
+                ret.put("abc", abcw.asString(arrangement.getArrangement()));
+                ret.put("score", arrangement.getScore());
+                ret.put("runtimeMs", arrangement.getRuntimeNs() / 1000000);
+                ret.put("estimatedTransitions", estimate.getTransitions());
+                ret.put("approximate", admission.decide(estimate) == AdmissionController.Decision.APPROXIMATE);
+                ret.put("notes", score.getPart(VoicePart.LEAD).size());
+                ret.put("arrangedNotes", session.getArranger().getComputedColumns());
+                ret.put("reparsedLines", session.getParser().getReparsedLineCount());
+            } catch (AbcParser.AbcParsingException e) {
+                ret.put("error", "ABC syntax error: " + e.getMessage());
+            } catch (NoValidArrangementException e) {
+                ret.put("error", "Could not find a valid arrangement.");
+            } catch (AdmissionRejectedException e) {
+                ret.put("error", e.getMessage());
+            } catch (Throwable e) {
+                // catch-all
+                e.printStackTrace();
+                ret.put("error", "Unexpected error: " + e);
+            }
+
+            try {
+                session.getContext().send(JSON.writeValueAsString(ret));
+            } catch (IOException | RuntimeException e) {
+                // e.g. because the user closed the page in the meantime
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void evictIdleLiveSessions() {
+        long now = System.currentTimeMillis();
+
+        for( Map.Entry<String, LiveSession> entry : liveSessions.entrySet() ) {
+            if( now - entry.getValue().getLastActive() > LIVE_SESSION_TIMEOUT_MS ) {
+                liveSessions.remove(entry.getKey());
+                entry.getValue().getContext().session.close(1000, "Session was idle for too long.");
+            }
+        }
+    }
+
+    private Map<String,Object> keyResultToJson(KeySearch.Result result) throws IOException {
+        Map<String,Object> ret = new LinkedHashMap<>();
+        ret.put("key", result.getKey());
+        ret.put("transposition", result.getTransposition());
+        ret.put("score", result.getArrangement() == null ? null : result.getScore());
+        ret.put("abc", result.getArrangement() == null ? null : abcw.asString(result.getArrangement().getArrangement()));
+        ret.put("leadNotesOutOfRange", result.getLeadNotesOutOfRange());
+
+        Map<String,Object> parts = new LinkedHashMap<>();
+        for( int part = 0; part < 4; part++ ) {
+            Map<String,Object> partJson = new LinkedHashMap<>();
+            partJson.put("lowest", noteName(result.getLowestNote(part)));
+            partJson.put("highest", noteName(result.getHighestNote(part)));
+            partJson.put("rangeUsage", result.getRangeUsage(part));
+            parts.put(VoicePart.PART_NAMES[part], partJson);
+        }
+        ret.put("parts", parts);
+
+        return ret;
+    }
+
+    // scientific name of the note, e.g. "C4"
+    private static String noteName(Note note) {
+        return note == null ? null : Note.getNoteName(note.getRelativeNote()) + note.getOctave();
+    }
+
+    private Map<String,Object> arrangeForBatch(int index, String abc) {
+        Map<String,Object> ret = new LinkedHashMap<>();
+        ret.put("index", index);
+
+        try {
+            Score score = new AbcParser().read(new StringReader(abc));
+            CostEstimate estimate = CostEstimate.compute(score, config);
+            Arrangement arrangement = arrange(score, estimate);
+
+            ret.put("title", score.getTitle());
+            ret.put("abc", abcw.asString(arrangement.getArrangement()));
+            ret.put("score", arrangement.getScore());
+            ret.put("runtimeMs", arrangement.getRuntimeNs() / 1000000);
+            ret.put("estimatedTransitions", estimate.getTransitions());
+            ret.put("approximate", admission.decide(estimate) == AdmissionController.Decision.APPROXIMATE);
+        } catch (AbcParser.AbcParsingException e) {
+            ret.put("error", "ABC syntax error: " + e.getMessage());
+        } catch (NoValidArrangementException e) {
+            ret.put("error", "Could not find a valid arrangement.");
+        } catch (AdmissionRejectedException e) {
+            ret.put("error", e.getMessage());
+        } catch (Throwable e) {
+            // catch-all
+            e.printStackTrace();
+            ret.put("error", "Unexpected error: " + e);
+        }
+
+        return ret;
+    }
+
+    private String renderDefaultArrangement() {
+        AabaForm form = new AabaForm();
+        form.setInput_abc(defaultAbc.trim());
+
+        try {
+            Score score = new AbcParser().read(new StringReader(form.input_abc()));
+            Arrangement arrangement = arrange(score, 0);
+            return renderIndex(Map.of("abc", abcw.asString(arrangement.getArrangement()), "form", form, "original_abc", form.input_abc(), "meta", arrangement));
+        } catch (Exception e) {
+            // not fatal; the default song will then be arranged like any other song
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Browsers submit the contents of a textarea with \r\n line breaks.
+    private boolean isDefaultSong(String abc) {
+        return defaultAbc.trim().equals(abc.replace("\r\n", "\n"));
+    }
+
     private String renderIndex(Map<String,Object> parameters) {
+        Map<String,Object> parametersWithAssets = new HashMap<>(parameters);
+        parametersWithAssets.put("css_url", assets.getUrl("music.min.css"));
+        parametersWithAssets.put("js_url", assets.getUrl("abc-ui-1.0.0.min.js"));
+
         try {
-            return engine.process("index.html", new MapBindings(parameters));
+            return engine.process("index.html", new MapBindings(parametersWithAssets));
         } catch (CarrotException e) {
             e.printStackTrace();
             return "(rendering exception: " + e + ")";
         }
     }
 
-    private Arrangement arrange(String abcString) throws IOException, AbcParser.AbcParsingException, NoValidArrangementException {
-        Score score = new AbcParser().read(new StringReader(abcString));
+    private Arrangement arrange(Score score, CostEstimate estimate) throws AdmissionRejectedException, NoValidArrangementException {
+        int beamWidth = admit(estimate);
+
+        try {
+            return arrange(score, beamWidth);
+        } finally {
+            admission.release();
+        }
+    }
+
+    // Waits until a song with the given estimate may be arranged, and returns the beam width
+    // with which it must be arranged. The caller must release the admission controller afterwards.
+    private int admit(CostEstimate estimate) throws AdmissionRejectedException {
+        if( admission.decide(estimate) == AdmissionController.Decision.REJECT ) {
+            throw new AdmissionRejectedException(String.format("This song is too large for the web demo (%s). Please arrange it with the command-line version of AABA.", estimate), 413);
+        }
+
+        admission.acquire();
+        return admission.getBeamWidth(estimate);
+    }
+
+    private Arrangement arrange(Score score, int beamWidth) throws NoValidArrangementException {
+        Arrange arranger = (Arrange) ArrangementEngine.create(config); // see the constructor
+        arranger.setBeamWidth(beamWidth);
+        arranger.setCache(latticeCache);
+        arranger.setPrefixCache(prefixCache);
 
-        Arrange arranger = new Arrange(config);
         Arrangement arrangement = arranger.arrange(score);
 
         if( arrangement == null ) {
@@ -0,0 +1,201 @@
+package de.saar.coli.arranger.web;
+
+import io.javalin.http.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The static files of the web demo (scripts and stylesheets), held in memory.
+ * Each file is read and gzip-compressed once, when the server starts. It is then
+ * served under a name which contains a hash of its contents, e.g.
+ * "/assets/music.min.0123456789abcdef.css". Because the content behind
+ * such a name can never change, browsers are allowed to cache it forever.
+ */
+public class StaticAssets {
+    /**
+     * The URL path under which the assets are served.
+     */
+    public static final String PATH = "/assets/";
+
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private final Map<String, Asset> assetsByHashedName = new HashMap<>();
+    private final Map<String, String> urlsByName = new HashMap<>();
+
+    /**
+     * Reads the given files from the given directory on the classpath.
+     *
+     * @param resourceDirectory
+     * @param filenames
+     * @throws IOException
+     */
+    public StaticAssets(String resourceDirectory, String... filenames) throws IOException {
+        for (String filename : filenames) {
+            byte[] content = readResource(resourceDirectory + "/" + filename);
+            String hashedName = hashedName(filename, content);
+
+            assetsByHashedName.put(hashedName, new Asset(content, gzip(content), contentType(filename)));
+            urlsByName.put(filename, PATH + hashedName);
+        }
+    }
+
+    /**
+     * Returns the URL of the file with the given (unhashed) name.
+     *
+     * @param filename
+     * @return
+     */
+    public String getUrl(String filename) {
+        return urlsByName.get(filename);
+    }
+
+    /**
+     * Serves the asset whose hashed name is given in the path parameter "name".
+     * If the client accepts gzip encoding, the precompressed version is sent.
+     *
+     * @param ctx
+     */
+    public void serve(Context ctx) {
+        Asset asset = assetsByHashedName.get(ctx.pathParam("name"));
+
+        if (asset == null) {
+            ctx.status(404);
+            return;
+        }
+
+        ctx.contentType(asset.contentType);
+        ctx.header("Cache-Control", CACHE_CONTROL);
+        ctx.header("Vary", "Accept-Encoding");
+
+        if (acceptsGzip(ctx.header("Accept-Encoding"))) {
+            ctx.header("Content-Encoding", "gzip");
+            ctx.result(asset.gzipped);
+        } else {
+            ctx.result(asset.content);
+        }
+    }
+
+    /**
+     * Checks whether the given value of an Accept-Encoding header allows a
+     * gzip-encoded response. This is the case if gzip (or x-gzip) is listed with
+     * a q-value above zero, or if it is not listed and the wildcard * is.
+     *
+     * @param acceptEncoding the header value, or null if the header was not sent
+     * @return
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        Double gzip = null;
+        Double wildcard = null;
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            double q = 1;
+
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim().toLowerCase();
+
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0; // ignore codings with a malformed q-value
+                    }
+                }
+            }
+
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = q;
+            } else if (name.equals("*")) {
+                wildcard = q;
+            }
+        }
+
+        if (gzip != null) {
+            return gzip > 0;
+        } else {
+            return wildcard != null && wildcard > 0;
+        }
+    }
+
+    private static byte[] readResource(String resourceName) throws IOException {
+        try (InputStream is = StaticAssets.class.getResourceAsStream(resourceName)) {
+            if (is == null) {
+                throw new IOException("Could not find resource " + resourceName);
+            }
+
+            return is.readAllBytes();
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+            gz.write(content);
+        }
+
+        return bos.toByteArray();
+    }
+
+    // music.min.css -> music.min.<hash>.css
+    private static String hashedName(String filename, byte[] content) {
+        int dot = filename.lastIndexOf('.');
+        String hash = sha256(content).substring(0, 16);
+
+        if (dot < 0) {
+            return filename + "." + hash;
+        } else {
+            return filename.substring(0, dot) + "." + hash + filename.substring(dot);
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder buf = new StringBuilder();
+
+            for (byte b : digest) {
+                buf.append(String.format("%02x", b));
+            }
+
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String contentType(String filename) {
+        if (filename.endsWith(".js")) {
+            return "application/javascript";
+        } else if (filename.endsWith(".css")) {
+            return "text/css";
+        } else {
+            return "application/octet-stream";
+        }
+    }
+
+    private static class Asset {
+        private final byte[] content;
+        private final byte[] gzipped;
+        private final String contentType;
+
+        public Asset(byte[] content, byte[] gzipped, String contentType) {
+            this.content = content;
+            this.gzipped = gzipped;
+            this.contentType = contentType;
+        }
+    }
+}
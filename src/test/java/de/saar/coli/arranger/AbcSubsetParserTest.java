@@ -0,0 +1,104 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.AbcSubsetParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AbcSubsetParserTest {
+    @Test
+    public void testCorpus() throws IOException, AbcParser.AbcParsingException {
+        List<String> tunes = AbcParser.splitTunes(readResource("/corpus.abc"));
+        assertEquals(10, tunes.size());
+
+        for (String tune : tunes) {
+            Score fast = new AbcSubsetParser().parse(tune);
+            assertNotNull("Subset parser rejected tune:\n" + tune, fast);
+            assertSameScore(tune, new AbcParser().readWithGrammar(new StringReader(tune)), fast);
+        }
+    }
+
+    @Test
+    public void testDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        String abc = readResource("/downourway.abc");
+        Score fast = new AbcSubsetParser().parse(abc);
+        assertNotNull(fast);
+        assertSameScore(abc, new AbcParser().readWithGrammar(new StringReader(abc)), fast);
+
+        // Windows line endings
+        String crlf = abc.replace("\n", "\r\n");
+        assertSameScore(crlf, new AbcParser().readWithGrammar(new StringReader(crlf)), new AbcSubsetParser().parse(crlf));
+    }
+
+    @Test
+    public void testFallback() throws IOException, AbcParser.AbcParsingException {
+        // tuplets, meter symbols, and multi-note chords are outside the subset
+        for (String abc : List.of(TUPLET, METER_SYMBOL, MULTIPLE_NOTES)) {
+            assertNull(new AbcSubsetParser().parse(abc));
+        }
+
+        // read() must then give the same result as the grammar
+        assertSameScore(TUPLET, new AbcParser().readWithGrammar(new StringReader(TUPLET)), new AbcParser().read(new StringReader(TUPLET)));
+
+        // issue7.abc has trailing whitespace, which the grammar handles by error recovery
+        String issue7 = readResource("/issue7.abc");
+        assertSameScore(issue7, new AbcParser().readWithGrammar(new StringReader(issue7)), new AbcParser().read(new StringReader(issue7)));
+    }
+
+    private static void assertSameScore(String abc, Score expected, Score actual) {
+        assertNotNull(actual);
+        assertEquals(abc, expected.getTitle(), actual.getTitle());
+        assertEquals(abc, expected.getComposer(), actual.getComposer());
+        assertEquals(abc, expected.getKey(), actual.getKey());
+        assertEquals(abc, expected.getQuartersPerMeasure(), actual.getQuartersPerMeasure());
+        assertEquals(abc, expected.getTempo(), actual.getTempo());
+        assertEquals(abc, expected.getPart(VoicePart.LEAD), actual.getPart(VoicePart.LEAD));
+        assertEquals(abc, expected.getLyrics(), actual.getLyrics());
+
+        List<Pair<Integer, Chord>> expectedChords = expected.getChords();
+        List<Pair<Integer, Chord>> actualChords = actual.getChords();
+        assertEquals(abc, expectedChords.size(), actualChords.size());
+
+        for (int i = 0; i < expectedChords.size(); i++) {
+            assertEquals(abc, expectedChords.get(i).getLeft(), actualChords.get(i).getLeft());
+            assertEquals(abc, expectedChords.get(i).getRight(), actualChords.get(i).getRight());
+        }
+    }
+
+    private String readResource(String name) throws IOException {
+        try (InputStream is = getClass().getResourceAsStream(name)) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final String HEADER =
+            "%abc-2.1\n" +
+                    "X:1\n" +
+                    "T:Test Song\n" +
+                    "C:AK\n";
+
+    private static final String TUPLET = HEADER +
+            "M:4/4\n" +
+            "K:C\n" +
+            "V:1\n" +
+            "\"C\" (3C2D2E2 G2 | \"G7\" B,8 |]";
+
+    private static final String METER_SYMBOL = HEADER +
+            "M:C\n" +
+            "K:C\n" +
+            "V:1\n" +
+            "\"C\" C8 |]";
+
+    private static final String MULTIPLE_NOTES = HEADER +
+            "M:4/4\n" +
+            "K:C\n" +
+            "V:1\n" +
+            "\"C\" [CEG]8 |]";
+}
@@ -0,0 +1,47 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.AbcWriter;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class AbcWriterTest {
+    @Test
+    public void testStreamingWriterStandard() throws IOException, AbcParser.AbcParsingException {
+        assertSameOutput(Config.ABC_DIALECT.STANDARD);
+    }
+
+    @Test
+    public void testStreamingWriterAbc2svg() throws IOException, AbcParser.AbcParsingException {
+        assertSameOutput(Config.ABC_DIALECT.ABC2SVG);
+    }
+
+    private void assertSameOutput(Config.ABC_DIALECT dialect) throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        config.setAbcDialect(dialect);
+
+        Score withTempo = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        Score arranged = new Arrange(config).arrange(withTempo).getArrangement();
+        assertEquals(new AbcWriter(config).asString(arranged), new StreamingAbcWriter(config).asString(arranged));
+
+        // no tempo, chord change in the middle of the part, notes in several octaves
+        Score withoutTempo = new AbcParser().read(new StringReader(ABC));
+        assertEquals(new AbcWriter(config).asString(withoutTempo), new StreamingAbcWriter(config).asString(withoutTempo));
+    }
+
+    private static final String ABC =
+            "%abc-2.1\n" +
+                    "X:1\n" +
+                    "T:Test Song\n" +
+                    "C:AK\n" +
+                    "M:4/4\n" +
+                    "K:Bb\n" +
+                    "V:1\n" +
+                    "\"C\" C,2 d''2 _E2 ^F2 | \"G7\" =B,2 D2 \"Gm\" c'2 e2 |]";
+}
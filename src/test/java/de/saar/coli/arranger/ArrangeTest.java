@@ -0,0 +1,207 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import static de.saar.coli.arranger.ColumnarScoreTest.repeat;
+import static org.junit.Assert.*;
+
+public class ArrangeTest {
+    @Test
+    public void testArrangeRepeats() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = repeat(readDownOurWay(), 0, 0, 2, 0);
+        StreamingAbcWriter writer = new StreamingAbcWriter(config);
+
+        for (int beamWidth : new int[]{0, 20}) {
+            Arrange arranger = new Arrange(config);
+            arranger.setBeamWidth(beamWidth);
+            Arrangement reused = arranger.arrange(song);
+            assertTrue(arranger.getReusedColumns() > 0);
+
+            arranger.setReuseRepeats(false);
+            Arrangement computed = arranger.arrange(song);
+            assertEquals(0, arranger.getReusedColumns());
+
+            assertEquals(computed.getScore(), reused.getScore());
+            assertEquals(writer.asString(computed.getArrangement()), writer.asString(reused.getArrangement()));
+        }
+    }
+
+    @Test
+    public void testCollapseHeldNotes() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new Score("Chant", null, readDownOurWay().getKey(), 4);
+        String[] chords = {"Bb", "Eb", "F7", "Bb"};
+        String[] leads = {"D4", "Eb4", "C4", "Bb3"};
+
+        // each chord has four syllables on the same note
+        for (int i = 0; i < chords.length; i++) {
+            song.addChord(8 * i, Chord.lookup(chords[i]));
+            for (int k = 0; k < 4; k++) {
+                song.addNote(VoicePart.LEAD, Note.create(leads[i], 2));
+            }
+        }
+
+        Arrange arranger = new Arrange(config);
+        Arrangement separate = arranger.arrange(song);
+        assertEquals(16, arranger.getComputedColumns());
+
+        arranger.setCollapseHeldNotes(true);
+        Arrangement collapsed = arranger.arrange(song);
+        Score arrangement = collapsed.getArrangement();
+        assertEquals(4, arranger.getComputedColumns());
+        assertEquals(song.getPart(VoicePart.LEAD), arrangement.getPart(VoicePart.LEAD));
+        assertTrue(collapsed.getScore() <= separate.getScore());
+
+        // the harmony parts repeat their notes, and the score is that of the whole arrangement
+        int score = 0;
+        for (int i = 0; i < 16; i++) {
+            Note[] voicing = new Note[4];
+            for (int part = 0; part < 4; part++) {
+                voicing[part] = arrangement.getPart(part).get(i);
+                assertEquals(arrangement.getPart(part).get(i - i % 4).getAbsoluteNote(), voicing[part].getAbsoluteNote());
+                assertEquals(2, voicing[part].getDuration());
+            }
+
+            score += arranger.scoreVoicing(voicing, Chord.lookup(chords[i / 4]));
+            if (i > 0) {
+                Note[] previous = new Note[4];
+                for (int part = 0; part < 4; part++) {
+                    previous[part] = arrangement.getPart(part).get(i - 1);
+                }
+                score += arranger.scoreVoiceLeading(previous, voicing);
+            }
+        }
+
+        assertEquals(score, collapsed.getScore());
+    }
+
+    @Test
+    public void testSwipe() throws IOException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new Score("Swipe", null, "C", 4);
+        song.addChord(0, Chord.lookup("C"));
+        song.addChord(4, Chord.lookup("C7"));
+        song.addChord(8, Chord.lookup("F"));
+        song.addNote(VoicePart.LEAD, Note.create("E4", 8));
+        song.addNote(VoicePart.LEAD, Note.create("F4", 8));
+
+        // the harmony parts move to a C7 chord under the sustained E
+        Arrange arranger = new Arrange(config);
+        Score arrangement = arranger.arrange(song).getArrangement();
+        assertEquals(song.getPart(VoicePart.LEAD), arrangement.getPart(VoicePart.LEAD));
+        assertTrue(getNotesAt(arrangement, 4).contains(10)); // Bb
+
+        for (int part = 0; part < 4; part++) {
+            assertEquals(16, arrangement.getPart(part).stream().mapToInt(Note::getDuration).sum());
+        }
+
+        // without splitting, the C7 chord is ignored
+        arranger.setSplitAtChordChanges(false);
+        arrangement = arranger.arrange(song).getArrangement();
+        assertFalse(getNotesAt(arrangement, 4).contains(10));
+
+        for (int part = 0; part < 4; part++) {
+            assertEquals(2, arrangement.getPart(part).size());
+        }
+    }
+
+    @Test
+    public void testCoarseToFine() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+
+        for (Score song : new Score[]{readDownOurWay(), repeat(readDownOurWay(), 0, 2)}) {
+            Arrangement expected = new Arrange(config).arrange(song);
+            Arrange arranger = new Arrange(config);
+            arranger.setCoarseToFine(true);
+            Arrangement actual = arranger.arrange(song);
+
+            assertEquals(expected.getScore(), actual.getScore());
+            assertEquals(song.getPart(VoicePart.LEAD), actual.getArrangement().getPart(VoicePart.LEAD));
+            assertTrue(arranger.getFinePasses() == 1 || arranger.getFinePasses() == 2);
+        }
+    }
+
+    @Test
+    public void testFactorizeTransitions() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Config wide = Arrange.loadConfig(null);
+        wide.getVoiceParts().get(VoicePart.TENOR).setBottom("C3");
+        wide.getVoiceParts().get(VoicePart.BASS).setBottom("C2");
+        Score song = repeat(readDownOurWay(), 0, 2);
+
+        for (Config c : new Config[]{config, wide}) {
+            Arrange arranger = new Arrange(c);
+            arranger.setFactorizeTransitions(false);
+            Arrangement expected = arranger.arrange(song);
+
+            arranger.setFactorizeTransitions(true);
+            Arrangement actual = arranger.arrange(song);
+
+            StreamingAbcWriter writer = new StreamingAbcWriter(c);
+            assertEquals(expected.getScore(), actual.getScore());
+            assertEquals(writer.asString(expected.getArrangement()), writer.asString(actual.getArrangement()));
+        }
+    }
+
+    @Test
+    public void testSkipTransitions() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        int best = new VoicingLattice(new Arrange(config), config, ColumnarScore.of(song.splitAtChordChanges())).getBestScore();
+
+        // the scans of the predecessors stop early, with and without factorized transitions
+        for (boolean factorize : new boolean[]{false, true}) {
+            Arrange arranger = new Arrange(config);
+            arranger.setFactorizeTransitions(factorize);
+            assertEquals(best, arranger.arrange(song).getScore());
+            assertTrue(arranger.getSkippedTransitions() > 0);
+        }
+    }
+
+    @Test
+    public void testUnarrangeableNote() throws IOException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new Score("Too low", null, "C", 4);
+        song.addChord(0, Chord.lookup("C"));
+        song.addNote(VoicePart.LEAD, Note.create("E4", 4));
+        song.addNote(VoicePart.LEAD, Note.create("Eb2", 4)); // below the bass range
+        song.addNote(VoicePart.LEAD, Note.create("G4", 4));
+        song.addNote(VoicePart.LEAD, Note.create("C5", 4));
+
+        // the notes after the unarrangeable one have no predecessors
+        for (boolean factorize : new boolean[]{false, true}) {
+            Arrange arranger = new Arrange(config);
+            arranger.setFactorizeTransitions(factorize);
+            assertNull(arranger.arrange(song));
+        }
+    }
+
+    // the relative notes that are sung at the given time
+    private static Set<Integer> getNotesAt(Score score, int time) {
+        Set<Integer> ret = new HashSet<>();
+
+        for (int part = 0; part < 4; part++) {
+            int start = 0;
+            for (Note note : score.getPart(part)) {
+                if (start <= time && time < start + note.getDuration()) {
+                    ret.add(note.getRelativeNote());
+                }
+                start += note.getDuration();
+            }
+        }
+
+        return ret;
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}
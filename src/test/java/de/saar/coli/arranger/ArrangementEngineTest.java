@@ -0,0 +1,81 @@
+package de.saar.coli.arranger;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ArrangementEngineTest {
+    @Test
+    public void testEnginesAgree() throws FileNotFoundException {
+        Config config = Arrange.loadConfig(null);
+
+        for (Config.ENGINE kind : Config.ENGINE.values()) {
+            if (kind != Config.ENGINE.VITERBI) {
+                new DifferentialHarness(kind.ordinal()).compare(config, Arrange::new, c -> ArrangementEngine.create(kind, c), 30);
+            }
+        }
+    }
+
+    @Test
+    public void testWideRanges() throws FileNotFoundException {
+        Config config = Arrange.loadConfig(null);
+        config.getVoiceParts().get(VoicePart.TENOR).setBottom("C3");
+        config.getVoiceParts().get(VoicePart.BASS).setBottom("C2");
+
+        new DifferentialHarness(42).compare(config, Arrange::new, c -> ArrangementEngine.create(Config.ENGINE.UNFACTORIZED, c), 20);
+        new DifferentialHarness(43).compare(config, Arrange::new, c -> ArrangementEngine.create(Config.ENGINE.LATTICE, c), 20);
+    }
+
+    @Test
+    public void testUnarrangeableNotes() throws FileNotFoundException {
+        Config config = Arrange.loadConfig(null);
+        List<Function<Config, ArrangementEngine>> engines = new ArrayList<>();
+
+        for (Config.ENGINE kind : Config.ENGINE.values()) {
+            engines.add(c -> ArrangementEngine.create(kind, c));
+        }
+
+        new DifferentialHarness(11).checkUnarrangeable(config, engines, 30);
+    }
+
+    @Test
+    public void testHarnessCatchesDisagreement() throws FileNotFoundException {
+        // with a beam width of two, the arranger misses the best arrangement of some songs
+        Config config = Arrange.loadConfig(null);
+
+        try {
+            new DifferentialHarness(7).compare(config, Arrange::new, c -> {
+                Arrange beam = new Arrange(c);
+                beam.setBeamWidth(2);
+                return beam;
+            }, 30);
+        } catch (AssertionError e) {
+            return;
+        }
+
+        fail("The harness did not notice that the beam-limited arranger is worse.");
+    }
+
+    @Test
+    public void testCreate() throws FileNotFoundException {
+        Config config = Arrange.loadConfig(null);
+        assertTrue(ArrangementEngine.create(config) instanceof Arrange);
+
+        config.setEngine(Config.ENGINE.LATTICE);
+        assertTrue(ArrangementEngine.create(config) instanceof LatticeEngine);
+
+        // the lattice does not know about second-order rules
+        config.getScores().setConsecutiveLeaps(-10);
+        try {
+            ArrangementEngine.create(config);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.binary.BinaryScoreReader;
+import de.saar.coli.arranger.binary.BinaryScoreWriter;
+import de.saar.coli.arranger.binary.MappedCorpus;
+import de.saar.coli.arranger.binary.RecordType;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class BinaryFormatTest {
+    @Test
+    public void testStream() throws IOException, AbcParser.AbcParsingException {
+        Score score = readDownOurWay();
+        Arrangement arrangement = new Arrange(Arrange.loadConfig(null)).arrange(score);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (BinaryScoreWriter w = new BinaryScoreWriter(bos)) {
+            w.write(score);
+            w.write(arrangement);
+            w.write(allChords());
+        }
+
+        try (BinaryScoreReader r = new BinaryScoreReader(new ByteArrayInputStream(bos.toByteArray()))) {
+            assertEquals(RecordType.SCORE, r.nextType());
+            assertSameScore(score, r.readScore());
+
+            assertEquals(RecordType.ARRANGEMENT, r.nextType());
+            Arrangement decoded = r.readArrangement();
+            assertSameScore(arrangement.getOriginal(), decoded.getOriginal());
+            assertSameScore(arrangement.getArrangement(), decoded.getArrangement());
+            assertEquals(arrangement.getScore(), decoded.getScore());
+            assertEquals(arrangement.getRuntimeNs(), decoded.getRuntimeNs());
+
+            assertSameScore(allChords(), r.readScore());
+            assertNull(r.nextType());
+            assertNull(r.readScore());
+        }
+    }
+
+    @Test
+    public void testMappedCorpus() throws IOException, AbcParser.AbcParsingException {
+        Score score = readDownOurWay();
+        Arrangement arrangement = new Arrange(Arrange.loadConfig(null)).arrange(score);
+        Path file = Files.createTempFile("corpus", ".aaba");
+
+        try {
+            try (BinaryScoreWriter w = new BinaryScoreWriter(Files.newOutputStream(file))) {
+                for (int i = 0; i < 2000; i++) {
+                    if (i % 2 == 0) {
+                        w.write(score);
+                    } else {
+                        w.write(arrangement);
+                    }
+                }
+            }
+
+            MappedCorpus corpus = new MappedCorpus(file);
+            assertEquals(2000, corpus.size());
+            assertEquals(RecordType.SCORE, corpus.getType(1998));
+            assertEquals(RecordType.ARRANGEMENT, corpus.getType(1999));
+            assertSameScore(score, corpus.getScore(1234));
+            assertSameScore(arrangement.getArrangement(), corpus.getArrangement(1999).getArrangement());
+            assertSameScore(score, corpus.getScore(0));
+
+            try {
+                corpus.getArrangement(0);
+                fail("Record 0 is not an arrangement");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongVersion() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new BinaryScoreWriter(bos).close();
+
+        byte[] bytes = bos.toByteArray();
+        bytes[7]++;
+        new BinaryScoreReader(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertSameScore(Score expected, Score actual) {
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getComposer(), actual.getComposer());
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getTempo(), actual.getTempo());
+        assertEquals(expected.getQuartersPerMeasure(), actual.getQuartersPerMeasure());
+        assertEquals(expected.getLyrics(), actual.getLyrics());
+
+        for (int part = 0; part < 4; part++) {
+            assertEquals(expected.getPart(part), actual.getPart(part));
+        }
+
+        assertEquals(expected.getChords().size(), actual.getChords().size());
+        for (int i = 0; i < expected.getChords().size(); i++) {
+            assertEquals(expected.getChords().get(i).getLeft(), actual.getChords().get(i).getLeft());
+            assertEquals(expected.getChords().get(i).getRight(), actual.getChords().get(i).getRight());
+        }
+    }
+
+    // every chord type on every root, plus notes far outside the usual range
+    private static Score allChords() {
+        Score ret = new Score("Ünicode", null, "C", 3);
+        int time = 0;
+
+        for (int root = 0; root < 12; root++) {
+            for (Chord.ChordType type : Chord.ChordType.values()) {
+                ret.addChord(time, Chord.lookup(Note.getNoteName(root), type));
+                time += 300;
+            }
+        }
+
+        ret.addNote(VoicePart.BASS, Note.create(-5, 1000000));
+        ret.addNote(VoicePart.BASS, Note.create(200, 1));
+        return ret;
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}
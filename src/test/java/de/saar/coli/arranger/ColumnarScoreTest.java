@@ -0,0 +1,122 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarScoreTest {
+    @Test
+    public void testRoundTrip() throws IOException, AbcParser.AbcParsingException {
+        Score score = readDownOurWay();
+        ColumnarScore columns = ColumnarScore.of(score);
+        Score back = columns.toScore();
+
+        assertEquals(score.getTitle(), back.getTitle());
+        assertEquals(score.getTempo(), back.getTempo());
+        assertEquals(score.getLyrics(), back.getLyrics());
+        assertEquals(score.getPart(VoicePart.LEAD), back.getPart(VoicePart.LEAD));
+        assertEquals(score.getChords().size(), back.getChords().size());
+
+        int time = 0;
+        for (int i = 0; i < columns.countNotes(VoicePart.LEAD); i++) {
+            assertEquals(time, columns.getOnset(VoicePart.LEAD, i));
+            assertEquals(score.getChordAtTime(time), columns.getChordAtNote(VoicePart.LEAD, i));
+            time += columns.getDuration(VoicePart.LEAD, i);
+        }
+    }
+
+    @Test
+    public void testChordTimeline() {
+        Chord c = Chord.lookup("C");
+        Chord f = Chord.lookup("F");
+        Chord g = Chord.lookup("G7");
+
+        // two chords at the same time; the later one wins
+        assertSameChords(List.of(new Pair<>(2, c), new Pair<>(4, f), new Pair<>(4, g), new Pair<>(9, c)));
+
+        // not sorted by time
+        assertSameChords(List.of(new Pair<>(4, c), new Pair<>(0, f), new Pair<>(6, g)));
+
+        assertSameChords(List.of());
+    }
+
+    @Test
+    public void testArrangeAndWrite() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score score = readDownOurWay();
+        ColumnarScore columns = ColumnarScore.of(score);
+
+        Arrangement fromScore = new Arrange(config).arrange(score);
+        Arrangement fromColumns = new Arrange(config).arrange(columns);
+        assertEquals(fromScore.getScore(), fromColumns.getScore());
+
+        StreamingAbcWriter writer = new StreamingAbcWriter(config);
+        assertEquals(writer.asString(fromScore.getArrangement()), writer.asString(fromColumns.getArrangement()));
+        assertEquals(writer.asString(fromScore.getArrangement()), writer.asString(ColumnarScore.of(fromScore.getArrangement())));
+    }
+
+    @Test
+    public void testFindRepeats() throws IOException, AbcParser.AbcParsingException {
+        Score song = readDownOurWay();
+        int n = song.getPart(VoicePart.LEAD).size();
+        ColumnarScore columns = ColumnarScore.of(repeat(song, 0, 0, 2, 0));
+        int[] repeats = columns.findRepeats(VoicePart.LEAD, 4);
+
+        // the second and fourth section repeat the first one, the third is transposed
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, repeats[n + i]);
+            assertEquals(i, repeats[3 * n + i]);
+        }
+
+        assertEquals(-1, repeats[0]);
+    }
+
+    // the melody and chords of the song, once for each transposition
+    static Score repeat(Score song, int... transpositions) {
+        Score ret = new Score(song.getTitle(), song.getComposer(), song.getKey(), song.getQuartersPerMeasure());
+        int time = 0;
+
+        for (int halfsteps : transpositions) {
+            Score transposed = song.transpose(halfsteps);
+
+            for (Pair<Integer, Chord> chord : transposed.getChords()) {
+                ret.addChord(time + chord.getLeft(), chord.getRight());
+            }
+
+            for (Note note : transposed.getPart(VoicePart.LEAD)) {
+                ret.addNote(VoicePart.LEAD, note);
+                time += note.getDuration();
+            }
+        }
+
+        return ret;
+    }
+
+    private static void assertSameChords(List<Pair<Integer, Chord>> chords) {
+        Score score = new Score();
+        for (Pair<Integer, Chord> chord : chords) {
+            score.addChord(chord.getLeft(), chord.getRight());
+        }
+
+        ChordTimeline timeline = new ChordTimeline(chords);
+        ChordTimeline.Cursor cursor = timeline.cursor();
+
+        for (int time = -1; time < 12; time++) {
+            assertSame(score.getChordAtTime(time), timeline.getChordAtTime(time));
+            assertSame(score.getChordAtTime(time), cursor.getChordAtTime(time));
+        }
+
+        // cursor going backwards
+        assertSame(score.getChordAtTime(3), cursor.getChordAtTime(3));
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}
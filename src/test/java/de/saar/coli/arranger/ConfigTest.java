@@ -7,6 +7,8 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 
 public class ConfigTest {
     @Test
@@ -15,4 +17,27 @@ public class ConfigTest {
         assertEquals("Automatically arranged by AABA", config.getArranger());
         assertEquals(-20, config.getScores().getHarmonyLeaps());
     }
+
+    @Test
+    public void testWriteConfig() throws FileNotFoundException {
+        Config config = Arrange.loadConfig(null);
+        config.getScores().setUnisonNotes(-7);
+        config.getScores().setConsecutiveLeaps(-15);
+        config.setAbcDialect(Config.ABC_DIALECT.ABC2SVG);
+        config.setEngine(Config.ENGINE.COARSE_TO_FINE);
+
+        StringWriter sw = new StringWriter();
+        config.write(sw);
+        Config read = Config.read(new StringReader(sw.toString()));
+
+        assertEquals(config.getArranger(), read.getArranger());
+        assertEquals(-7, read.getScores().getUnisonNotes());
+        assertEquals(-20, read.getScores().getWideSpread());
+        assertEquals(-15, read.getScores().getConsecutiveLeaps());
+        assertEquals(0, read.getScores().getUnresolvedLeaps());
+        assertEquals(config.getVoiceParts().toString(), read.getVoiceParts().toString());
+        assertEquals("bass", read.getClefs().get(1).getName());
+        assertEquals(Config.ABC_DIALECT.ABC2SVG, read.getAbcDialect());
+        assertEquals(Config.ENGINE.COARSE_TO_FINE, read.getEngine());
+    }
 }
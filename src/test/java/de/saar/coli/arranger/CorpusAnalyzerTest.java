@@ -0,0 +1,128 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.AbcSubsetParser;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import de.saar.coli.arranger.corpus.CorpusAnalyzer;
+import de.saar.coli.arranger.corpus.RuleStatistics;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class CorpusAnalyzerTest {
+    @Test
+    public void testReadAllVoices() throws IOException, AbcParser.AbcParsingException {
+        Arrangement arrangement = arrangeDownOurWay();
+        String abc = new StreamingAbcWriter(Arrange.loadConfig(null)).asString(arrangement.getArrangement());
+
+        Score fast = new AbcSubsetParser().parseAllVoices(abc);
+        Score read = new AbcParser().readAllVoices(new StringReader(abc));
+        assertNotNull(fast);
+
+        for (int part = 0; part < 4; part++) {
+            assertEquals(arrangement.getArrangement().getPart(part), read.getPart(part));
+            assertEquals(arrangement.getArrangement().getPart(part), fast.getPart(part));
+        }
+
+        // the grammar-based parser, because of the tuplet
+        Score slow = new AbcParser().readAllVoices(new StringReader(FOUR_VOICES));
+        assertNull(new AbcSubsetParser().parseAllVoices(FOUR_VOICES));
+        assertEquals(List.of(Note.create("C4", 2)), slow.getPart(VoicePart.BASS));
+        assertEquals(List.of(Note.create("E4", 2)), slow.getPart(VoicePart.BARI));
+        assertEquals(List.of(Note.create("G4", 2)), slow.getPart(VoicePart.LEAD));
+        assertEquals(3, slow.getPart(VoicePart.TENOR).size());
+        assertEquals(1, slow.getChords().size());
+        assertEquals(0, (int) slow.getChords().get(0).getLeft());
+    }
+
+    @Test
+    public void testFiringsMatchArrangementScore() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Arrangement arrangement = arrangeDownOurWay();
+        RuleStatistics stats = new RuleStatistics();
+        new CorpusAnalyzer().analyze(arrangement.getArrangement(), stats);
+
+        assertEquals(1, stats.getTunes());
+        int n = arrangement.getArrangement().countNotes(VoicePart.LEAD);
+        assertEquals(n, stats.getVoicings().values().stream().mapToLong(x -> x).sum());
+        assertEquals(n - 1, stats.getTransitions().values().stream().mapToLong(x -> x).sum());
+
+        // the arranger never chooses forbidden voicings
+        assertEquals(0, totalFirings(stats, "VoBassLowest"));
+        assertEquals(0, totalFirings(stats, "VoUseAllChordNotes"));
+
+        // the rule weights, times the number of firings, add up to the score of the arrangement
+        Config.Scores w = config.getScores();
+        long total = w.getHarmonyLeaps() * totalFirings(stats, "LdHarmonyLeaps")
+                + w.getParallelOctaves() * totalFirings(stats, "LdParallelOctaves")
+                + w.getTenorCrossing() * totalFirings(stats, "VoTenorCrossing")
+                + w.getUnisonNotes() * totalFirings(stats, "VoUnisonNotes")
+                + w.getWideSpread() * totalFirings(stats, "VoWideSpread");
+        assertEquals(arrangement.getScore(), total);
+
+        // YAML round trip
+        StringWriter sw = new StringWriter();
+        stats.write(sw);
+        RuleStatistics read = RuleStatistics.read(new StringReader(sw.toString()));
+        assertEquals(stats.getFirings(), read.getFirings());
+        assertEquals(stats.getVoicings(), read.getVoicings());
+        assertEquals(stats.getTransitions(), read.getTransitions());
+        assertEquals(stats.getTunes(), read.getTunes());
+    }
+
+    @Test
+    public void testAnalyzeFiles() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Arrangement arrangement = arrangeDownOurWay();
+        String abc = new StreamingAbcWriter(Arrange.loadConfig(null)).asString(arrangement.getArrangement());
+        Path dir = Files.createTempDirectory("corpus");
+
+        try {
+            // the writer does not write chords, so add them to the lead voice
+            String withChords = abc.replace("V:Ld\n  ", "V:Ld\n  \"Bb\"");
+            assertNotEquals(abc, withChords);
+
+            Files.write(dir.resolve("a.abc"), (withChords + withChords).getBytes(StandardCharsets.UTF_8));
+            Files.write(dir.resolve("b.abc"), (withChords + "X:2\nT:Only a melody\nK:C\nV:1\n\"C\" C2 |]\n").getBytes(StandardCharsets.UTF_8));
+
+            RuleStatistics stats = new CorpusAnalyzer().analyzeFiles(List.of(dir.resolve("a.abc"), dir.resolve("b.abc")), 2);
+            assertEquals(3, stats.getTunes());
+            assertEquals(1, stats.getFailedTunes());
+            assertEquals(3 * arrangement.getArrangement().countNotes(VoicePart.LEAD), (long) stats.getVoicings().get("MAJOR"));
+        } finally {
+            Files.delete(dir.resolve("a.abc"));
+            Files.delete(dir.resolve("b.abc"));
+            Files.delete(dir);
+        }
+    }
+
+    private static long totalFirings(RuleStatistics stats, String rule) {
+        return stats.getFirings().getOrDefault(rule, java.util.Map.of()).values().stream().mapToLong(x -> x).sum();
+    }
+
+    private Arrangement arrangeDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        Score score = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        return new Arrange(Arrange.loadConfig(null)).arrange(score);
+    }
+
+    private static final String FOUR_VOICES =
+            "%abc-2.1\n" +
+                    "X:1\n" +
+                    "T:Test Song\n" +
+                    "M:4/4\n" +
+                    "K:C\n" +
+                    "V:Bass\n" +
+                    "\"C\" C2 |]\n" +
+                    "V:1\n" +
+                    "(3c2d2e2 |]\n" +
+                    "V:2\n" +
+                    "\"G\" G2 |]\n" +
+                    "V:3\n" +
+                    "E2 |]\n";
+}
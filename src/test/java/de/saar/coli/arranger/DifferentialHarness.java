@@ -0,0 +1,154 @@
+package de.saar.coli.arranger;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two {@link ArrangementEngine}s on randomly generated songs and
+ * checks that they find arrangements with the same score. The songs are
+ * short melodies under common chords, with notes of different lengths
+ * and some chord changes in the middle of notes. Most melody notes
+ * belong to the chord, but some do not. The harness can also generate
+ * songs with a note that cannot be arranged, on which all engines must
+ * find no arrangement.
+ */
+public class DifferentialHarness {
+    private static final List<String> CHORDS = List.of("C", "F", "G7", "Am", "Dm", "E7", "Bb", "D7");
+    private static final int[] DURATIONS = {2, 4, 4, 8};
+
+    private final Random random;
+
+    public DifferentialHarness(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Generates the given number of songs and asserts that the two engines,
+     * which are created for each song from the configuration, find
+     * arrangements with the same score, or both find none.
+     *
+     * @param config
+     * @param reference
+     * @param engine
+     * @param songs
+     */
+    public void compare(Config config, Function<Config, ArrangementEngine> reference, Function<Config, ArrangementEngine> engine, int songs) {
+        for (int i = 0; i < songs; i++) {
+            Score song = generateSong(config);
+            Arrangement expected = reference.apply(config).arrange(song);
+            Arrangement actual = engine.apply(config).arrange(song);
+            String message = "song " + i + ": " + describe(song);
+
+            if (expected == null) {
+                assertNull(message, actual);
+            } else {
+                assertNotNull(message, actual);
+                assertEquals(message, expected.getScore(), actual.getScore());
+                assertEquals(message, song.getPart(VoicePart.LEAD), actual.getArrangement().getPart(VoicePart.LEAD));
+            }
+        }
+    }
+
+    /**
+     * Generates the given number of songs in which one note lies below the range
+     * of the bass, so that it has no valid voicing, followed by notes that could be
+     * arranged. Asserts that each engine, created for each song from the configuration,
+     * finds no arrangement and does not throw an exception.
+     *
+     * @param config
+     * @param engines
+     * @param songs
+     */
+    public void checkUnarrangeable(Config config, List<Function<Config, ArrangementEngine>> engines, int songs) {
+        for (int i = 0; i < songs; i++) {
+            Score song = generateUnarrangeableSong(config);
+            String message = "song " + i + ": " + describe(song);
+
+            for (int e = 0; e < engines.size(); e++) {
+                try {
+                    assertNull(message + ", engine " + e, engines.get(e).apply(config).arrange(song));
+                } catch (RuntimeException ex) {
+                    throw new AssertionError(message + ", engine " + e + " threw " + ex, ex);
+                }
+            }
+        }
+    }
+
+    // the melody and chords, for finding the song again if the engines disagree
+    private static String describe(Score song) {
+        StringBuilder ret = new StringBuilder(song.getPart(VoicePart.LEAD).toString());
+
+        for (Pair<Integer, Chord> chord : song.getChords()) {
+            ret.append(" ").append(chord.getLeft()).append(":").append(chord.getRight());
+        }
+
+        return ret.toString();
+    }
+
+    /**
+     * Generates a random song for the voice ranges of the given configuration.
+     *
+     * @param config
+     * @return
+     */
+    public Score generateSong(Config config) {
+        Score ret = new Score("Random song", null, "C", 4);
+        VoicePart lead = config.getVoiceParts().get(VoicePart.LEAD);
+        int notes = 3 + random.nextInt(10);
+        int time = 0;
+        int nextChord = 0;
+        Chord chord = null;
+
+        for (int i = 0; i < notes; i++) {
+            int duration = DURATIONS[random.nextInt(DURATIONS.length)];
+
+            // a new chord at the start of this note, or sometimes in the middle of it
+            while (nextChord < time + duration) {
+                chord = Chord.lookup(CHORDS.get(random.nextInt(CHORDS.size())));
+                ret.addChord(nextChord, chord);
+                nextChord += random.nextBoolean() ? duration : 2;
+            }
+
+            List<Note> chordNotes = lead.getNotesInRange(chord.getNotes(), duration);
+            int low = lead.getLowLimit().getAbsoluteNote();
+            int high = lead.getHighLimit().getAbsoluteNote();
+            Note note = random.nextInt(10) > 0 && !chordNotes.isEmpty()
+                    ? chordNotes.get(random.nextInt(chordNotes.size()))
+                    : Note.create(low + random.nextInt(high - low + 1), duration);
+
+            ret.addNote(VoicePart.LEAD, note);
+            time += duration;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Generates a random song like {@link #generateSong(Config)}, in which one
+     * note other than the last one is moved below the range of the bass.
+     *
+     * @param config
+     * @return
+     */
+    public Score generateUnarrangeableSong(Config config) {
+        Score song = generateSong(config);
+        List<Note> melody = song.getPart(VoicePart.LEAD);
+        int tooLow = random.nextInt(melody.size() - 1);
+        int bassBottom = config.getVoiceParts().get(VoicePart.BASS).getLowLimit().getAbsoluteNote();
+        Score ret = new Score(song.getTitle(), null, song.getKey(), song.getQuartersPerMeasure());
+
+        for (Pair<Integer, Chord> chord : song.getChords()) {
+            ret.addChord(chord.getLeft(), chord.getRight());
+        }
+
+        for (int i = 0; i < melody.size(); i++) {
+            Note note = melody.get(i);
+            ret.addNote(VoicePart.LEAD, i == tooLow ? Note.create(bassBottom - 1 - random.nextInt(6), note.getDuration()) : note);
+        }
+
+        return ret;
+    }
+}
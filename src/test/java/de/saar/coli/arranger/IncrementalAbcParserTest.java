@@ -0,0 +1,145 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.IncrementalAbcParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IncrementalAbcParserTest {
+    @Test
+    public void testEditBar() throws IOException, AbcParser.AbcParsingException {
+        IncrementalAbcParser parser = new IncrementalAbcParser();
+        String abc = readResource("/downourway.abc");
+        assertSameScore(abc, parser.parse(abc));
+
+        // change the length of a note in the second line of music; this shifts all later chords
+        String edited = abc.replace("| G,4 F,2 |", "| G,2 F,4 G,2 |");
+        assertNotEquals(abc, edited);
+        assertSameScore(edited, parser.update(edited));
+        assertEquals(1, parser.getReparsedLineCount());
+
+        // and back
+        assertSameScore(abc, parser.update(abc));
+        assertEquals(1, parser.getReparsedLineCount());
+    }
+
+    @Test
+    public void testEditHeader() throws IOException, AbcParser.AbcParsingException {
+        IncrementalAbcParser parser = new IncrementalAbcParser();
+        String abc = readResource("/downourway.abc");
+        parser.parse(abc);
+
+        // a different key changes how all notes are read
+        String edited = abc.replace("K:Bb", "K:D");
+        assertSameScore(edited, parser.update(edited));
+        assertEquals(edited, parser.getText());
+    }
+
+    @Test
+    public void testSyntaxError() throws IOException, AbcParser.AbcParsingException {
+        IncrementalAbcParser parser = new IncrementalAbcParser();
+        String abc = readResource("/downourway.abc");
+        parser.parse(abc);
+
+        // trailing whitespace, which the grammar handles by error recovery
+        String broken = abc.replace("C4 G,2 |\n", "C4 G,2 | \n");
+        assertNotEquals(abc, broken);
+        assertSameScore(broken, parser.update(broken));
+
+        assertSameScore(abc, parser.update(abc));
+    }
+
+    @Test
+    public void testRandomEdits() throws IOException, AbcParser.AbcParsingException {
+        Random random = new Random(1);
+
+        for (String tune : AbcParser.splitTunes(readResource("/corpus.abc"))) {
+            IncrementalAbcParser parser = new IncrementalAbcParser();
+            List<String> lines = new ArrayList<>(Arrays.asList(tune.split("(?<=\n)")));
+            assertSameScore(tune, parser.parse(tune));
+
+            for (int i = 0; i < 20; i++) {
+                int position = 1 + random.nextInt(lines.size() - 1);
+
+                switch (random.nextInt(4)) {
+                    case 0:
+                        lines.remove(position);
+                        break;
+                    case 1:
+                        lines.add(position, EDITS.get(random.nextInt(EDITS.size())));
+                        break;
+                    case 2:
+                        lines.set(position, EDITS.get(random.nextInt(EDITS.size())));
+                        break;
+                    default:
+                        lines.add(position, lines.get(random.nextInt(lines.size())));
+                }
+
+                String edited = String.join("", lines);
+                Score expected;
+
+                try {
+                    expected = new AbcParser().read(new StringReader(edited));
+                } catch (RuntimeException e) {
+                    // the grammar-based parser cannot read some of the edited tunes at all
+                    try {
+                        parser.update(edited);
+                        fail("Expected " + e + " for:\n" + edited);
+                    } catch (RuntimeException e2) {
+                        assertEquals(e.getClass(), e2.getClass());
+                    }
+                    continue;
+                }
+
+                assertSameScore(edited, expected, parser.update(edited));
+            }
+        }
+    }
+
+    private static void assertSameScore(String abc, Score actual) throws IOException, AbcParser.AbcParsingException {
+        assertSameScore(abc, new AbcParser().read(new StringReader(abc)), actual);
+    }
+
+    private static void assertSameScore(String abc, Score expected, Score actual) {
+        assertEquals(abc, expected.getTitle(), actual.getTitle());
+        assertEquals(abc, expected.getComposer(), actual.getComposer());
+        assertEquals(abc, expected.getKey(), actual.getKey());
+        assertEquals(abc, expected.getQuartersPerMeasure(), actual.getQuartersPerMeasure());
+        assertEquals(abc, expected.getTempo(), actual.getTempo());
+        assertEquals(abc, expected.getPart(VoicePart.LEAD), actual.getPart(VoicePart.LEAD));
+        assertEquals(abc, expected.getLyrics(), actual.getLyrics());
+        assertEquals(abc, expected.getChords().size(), actual.getChords().size());
+
+        for (int i = 0; i < expected.getChords().size(); i++) {
+            assertEquals(abc, expected.getChords().get(i).getLeft(), actual.getChords().get(i).getLeft());
+            assertEquals(abc, expected.getChords().get(i).getRight(), actual.getChords().get(i).getRight());
+        }
+    }
+
+    private String readResource(String name) throws IOException {
+        try (InputStream is = getClass().getResourceAsStream(name)) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final List<String> EDITS = List.of(
+            "\"C\" C2 E2 G2 c2 | \"G7\" B,4 D4 |\n",
+            "\"F\" ^F2 _B,2 z2 (A2 | G4) \"Dm\" d'4 |]\n",
+            "w: some more words\n",
+            "V:2\n",
+            "% a comment\n",
+            "\n",
+            "K:G\n",
+            "\"C\" C2 E2\n"
+    );
+}
@@ -0,0 +1,63 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IncrementalArrangerTest {
+    @Test
+    public void testEdits() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        int n = song.getPart(VoicePart.LEAD).size();
+        IncrementalArranger arranger = new IncrementalArranger(new Arrange(config));
+
+        arranger.arrange(song);
+        assertEquals(n, arranger.getComputedColumns());
+
+        // unchanged song
+        assertSameArrangement(config, song, arranger.arrange(song));
+        assertEquals(0, arranger.getComputedColumns());
+
+        // move a note in the middle of the song up by an octave; the notes before it are
+        // not arranged again, and neither are most of the notes after it
+        Score edited = transposeNote(song, 14, 12);
+        assertSameArrangement(config, edited, arranger.arrange(edited));
+        assertTrue(arranger.getComputedColumns() < n / 2);
+
+        // and back
+        assertSameArrangement(config, song, arranger.arrange(song));
+        assertTrue(arranger.getComputedColumns() < n / 2);
+
+        // a different beam width needs new columns
+        arranger.getArranger().setBeamWidth(20);
+        arranger.arrange(song);
+        assertEquals(n, arranger.getComputedColumns());
+    }
+
+    private static void assertSameArrangement(Config config, Score song, Arrangement actual) throws IOException {
+        Arrangement expected = new Arrange(config).arrange(song);
+        StreamingAbcWriter writer = new StreamingAbcWriter(config);
+        assertEquals(expected.getScore(), actual.getScore());
+        assertEquals(writer.asString(expected.getArrangement()), writer.asString(actual.getArrangement()));
+    }
+
+    // a copy of the song in which the note at the given position is transposed
+    private static Score transposeNote(Score song, int position, int halfsteps) {
+        Score ret = song.cloneWithoutNotes();
+        List<Note> lead = song.getPart(VoicePart.LEAD);
+
+        for (int i = 0; i < lead.size(); i++) {
+            Note note = lead.get(i);
+            ret.addNote(VoicePart.LEAD, i == position ? note.transpose(halfsteps) : note);
+        }
+
+        return ret;
+    }
+}
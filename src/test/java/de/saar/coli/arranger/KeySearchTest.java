@@ -0,0 +1,66 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class KeySearchTest {
+    @Test
+    public void testDownOurWay() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        List<KeySearch.Result> results = new KeySearch(config).search(song);
+
+        assertEquals(12, results.size());
+
+        Set<String> keys = new HashSet<>();
+        for (KeySearch.Result result : results) {
+            keys.add(result.getKey());
+        }
+        assertEquals(12, keys.size());
+
+        // ranked by score
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getScore() >= results.get(i).getScore());
+        }
+
+        // the original key is arranged like without the key search
+        KeySearch.Result original = results.stream().filter(r -> r.getTransposition() == 0).findFirst().get();
+        Arrangement arrangement = new Arrange(config).arrange(song);
+        assertEquals("Bb", original.getKey());
+        assertEquals(arrangement.getScore(), original.getScore());
+        assertEquals(arrangement.getArrangement().getPart(VoicePart.BASS), original.getArrangement().getArrangement().getPart(VoicePart.BASS));
+
+        // the arranged parts stay within their ranges
+        for (KeySearch.Result result : results) {
+            if (result.getArrangement() != null) {
+                for (int part = 0; part < 4; part++) {
+                    if (part != VoicePart.LEAD) {
+                        assertTrue(result.getRangeUsage(part) <= 1);
+                        assertTrue(result.getLowestNote(part).getAbsoluteNote() >= config.getVoiceParts().get(part).getLowLimit().getAbsoluteNote());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransposeScore() throws IOException, AbcParser.AbcParsingException {
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        Score transposed = song.transpose(2);
+
+        assertEquals("C", transposed.getKey());
+        assertEquals(song.getPart(VoicePart.LEAD).get(0).getAbsoluteNote() + 2, transposed.getPart(VoicePart.LEAD).get(0).getAbsoluteNote());
+        assertEquals(song.getChords().size(), transposed.getChords().size());
+        assertEquals((song.getChords().get(0).getRight().getRoot() + 2) % 12, transposed.getChords().get(0).getRight().getRoot());
+        assertEquals(song.getChords().get(0).getRight().getType(), transposed.getChords().get(0).getRight().getType());
+    }
+}
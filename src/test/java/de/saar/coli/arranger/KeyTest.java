@@ -15,6 +15,16 @@ public class KeyTest {
         assertEquals(Key.lookup("C"), Key.lookup("Am"));
     }
 
+    @Test
+    public void testTransposeName() {
+        assertEquals("C", Key.transposeName("Bb", 2));
+        assertEquals("Gm", Key.transposeName("Am", -2));
+        assertEquals("Eb", Key.transposeName("F#", -3));
+        assertEquals("C#m", Key.transposeName("Em", 9));
+        assertEquals("Bb", Key.transposeName("Bb", 12));
+        assertNull(Key.transposeName("H", 1));
+    }
+
     @Test
     public void testAccidentals() {
         assertNoteSpelling("C", "C", "C");
@@ -0,0 +1,47 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.*;
+
+public class LatticeCacheTest {
+    @Test
+    public void testTransposedSong() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        LatticeCache cache = new LatticeCache(config);
+
+        Arrange arranger = new Arrange(config);
+        arranger.setCache(cache);
+        arranger.setFactorizeTransitions(false); // the factorized lattice does not use the transition matrices
+        Arrangement original = arranger.arrange(song);
+        long computedVoicings = cache.getComputedVoicings();
+        long computedTransitions = cache.getComputedTransitions();
+        assertEquals(-60, original.getScore());
+
+        for (int halftones : new int[]{2, -3}) {
+            Score transposed = song.transpose(halftones);
+            Arrangement withCache = arranger.arrange(transposed);
+            Arrangement withoutCache = new Arrange(config).arrange(transposed);
+
+            assertEquals(withoutCache.getScore(), withCache.getScore());
+            for (int part = 0; part < 4; part++) {
+                assertEquals(withoutCache.getArrangement().getPart(part), withCache.getArrangement().getPart(part));
+            }
+        }
+
+        // the transposed songs only needed the scores for voicings at the edges of the voice ranges
+        assertTrue(cache.getComputedVoicings() < 2 * computedVoicings);
+        assertTrue(cache.getComputedTransitions() < 2 * computedTransitions);
+
+        // a cache is not used with different rule weights
+        Config otherConfig = Arrange.loadConfig(null);
+        otherConfig.getScores().setUnisonNotes(-5);
+        assertTrue(cache.isCompatible(config));
+        assertFalse(cache.isCompatible(otherConfig));
+    }
+}
@@ -0,0 +1,62 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import org.junit.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class MultiProfileArrangerTest {
+    @Test
+    public void testMaleAndFemale() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Config male = Arrange.loadConfig(null);
+        Config female = Config.read(new FileReader("examples/female.yaml"));
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc"))).transpose(4);
+
+        MultiProfileArranger arranger = new MultiProfileArranger(List.of(male, female));
+        List<Arrangement> arrangements = arranger.arrange(song);
+        assertEquals(2, arrangements.size());
+
+        // both profiles have the same weights, so they share their cache
+        assertSame(arranger.getCache(0), arranger.getCache(1));
+
+        List<Config> profiles = List.of(male, female);
+        for (int i = 0; i < 2; i++) {
+            Config profile = profiles.get(i);
+            Arrangement arrangement = arrangements.get(i);
+            Arrangement single = new Arrange(profile).arrange(song);
+
+            assertNotNull(arrangement);
+            assertEquals(single.getScore(), arrangement.getScore());
+            assertEquals(song.getPart(VoicePart.LEAD), arrangement.getArrangement().getPart(VoicePart.LEAD));
+
+            for (int part = 0; part < 4; part++) {
+                if (part != VoicePart.LEAD) {
+                    VoicePart voicePart = profile.getVoiceParts().get(part);
+
+                    for (Note note : arrangement.getArrangement().getPart(part)) {
+                        assertTrue(note.getAbsoluteNote() >= voicePart.getLowLimit().getAbsoluteNote());
+                        assertTrue(note.getAbsoluteNote() <= voicePart.getHighLimit().getAbsoluteNote());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNoValidArrangement() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Config male = Arrange.loadConfig(null);
+        Config female = Config.read(new FileReader("examples/female.yaml"));
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+
+        // the female bass cannot sing this song in Bb
+        List<Arrangement> arrangements = new MultiProfileArranger(List.of(male, female)).arrange(song);
+        assertEquals(new Arrange(male).arrange(song).getScore(), arrangements.get(0).getScore());
+        assertNull(arrangements.get(1));
+    }
+}
@@ -0,0 +1,59 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.corpus.PerceptronTrainer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class PerceptronTrainerTest {
+    @Test
+    public void testLearnReferenceWeights() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+
+        // reference arrangement with weights that are different from the default ones
+        Config referenceConfig = Arrange.loadConfig(null);
+        referenceConfig.getScores().setUnisonNotes(-5);
+        referenceConfig.getScores().setWideSpread(-60);
+        Score reference = new Arrange(referenceConfig).arrange(song).getArrangement();
+
+        PerceptronTrainer trainer = new PerceptronTrainer();
+        long[] referenceFeatures = trainer.countFeatures(reference);
+        Config initial = Arrange.loadConfig(null);
+        assertNotEquals(List.of(referenceFeatures), List.of(trainer.countFeatures(new Arrange(initial).arrange(song).getArrangement())));
+
+        trainer.setEpochs(20);
+        trainer.setThreads(2);
+        Config trained = trainer.train(List.of(reference, reference), initial);
+
+        // the trained weights reproduce the rule firings of the reference arrangement
+        long[] trainedFeatures = trainer.countFeatures(new Arrange(trained).arrange(song).getArrangement());
+        assertArrayEquals(referenceFeatures, trainedFeatures);
+        assertEquals(initial.getVoiceParts(), trained.getVoiceParts());
+    }
+
+    @Test
+    public void testKeepUntrainedSettings() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        Score reference = new Arrange(Arrange.loadConfig(null)).arrange(song).getArrangement();
+
+        // the second-order rules and the engine are not trained, but must not be dropped
+        Config initial = Arrange.loadConfig(null);
+        initial.getScores().setConsecutiveLeaps(-7);
+        initial.getScores().setUnresolvedLeaps(-3);
+        initial.setEngine(Config.ENGINE.UNFACTORIZED);
+
+        PerceptronTrainer trainer = new PerceptronTrainer();
+        trainer.setEpochs(1);
+        Config trained = trainer.train(List.of(reference), initial);
+
+        assertEquals(-7, trained.getScores().getConsecutiveLeaps());
+        assertEquals(-3, trained.getScores().getUnresolvedLeaps());
+        assertEquals(Config.ENGINE.UNFACTORIZED, trained.getEngine());
+    }
+}
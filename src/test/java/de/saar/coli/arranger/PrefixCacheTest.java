@@ -0,0 +1,94 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.abc.StreamingAbcWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.*;
+
+public class PrefixCacheTest {
+    @Test
+    public void testResumeAfterPrefix() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        int n = song.getPart(VoicePart.LEAD).size();
+        Score longer = append(song, song.transpose(2));
+        PrefixCache prefixCache = new PrefixCache();
+
+        Arrange arranger = new Arrange(config);
+        arranger.setPrefixCache(prefixCache);
+        arranger.arrange(song);
+        assertEquals(0, prefixCache.getResumedColumns());
+        assertEquals(n, prefixCache.getCachedColumns());
+
+        // the longer song starts with the first one
+        Arrangement resumed = arranger.arrange(longer);
+        assertEquals(n, prefixCache.getResumedColumns());
+        assertEquals(2 * n, prefixCache.getCachedColumns());
+        assertSameArrangement(config, new Arrange(config).arrange(longer), resumed);
+
+        // the first song is completely in the cache
+        Arrangement cached = arranger.arrange(song);
+        assertEquals(2 * n, prefixCache.getResumedColumns());
+        assertSameArrangement(config, new Arrange(config).arrange(song), cached);
+
+        // a different beam width needs different columns
+        arranger.setBeamWidth(20);
+        arranger.arrange(song);
+        assertEquals(2 * n, prefixCache.getResumedColumns());
+        assertEquals(3 * n, prefixCache.getCachedColumns());
+    }
+
+    @Test
+    public void testEviction() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        PrefixCache prefixCache = new PrefixCache(500);
+
+        Arrange arranger = new Arrange(config);
+        arranger.setPrefixCache(prefixCache);
+
+        for (int halfsteps = 0; halfsteps < 4; halfsteps++) {
+            Score transposed = song.transpose(halfsteps);
+            Arrangement arrangement = arranger.arrange(transposed);
+            assertTrue(prefixCache.getCachedBackpointers() <= 500);
+            assertSameArrangement(config, new Arrange(config).arrange(transposed), arrangement);
+        }
+
+        assertTrue(prefixCache.getCachedColumns() < 4 * song.getPart(VoicePart.LEAD).size());
+    }
+
+    private static void assertSameArrangement(Config config, Arrangement expected, Arrangement actual) throws IOException {
+        StreamingAbcWriter writer = new StreamingAbcWriter(config);
+        assertEquals(expected.getScore(), actual.getScore());
+        assertEquals(writer.asString(expected.getArrangement()), writer.asString(actual.getArrangement()));
+    }
+
+    // the melody and chords of the first song, followed by those of the second
+    private static Score append(Score first, Score second) {
+        Score ret = first.cloneWithoutNotes();
+        int time = 0;
+
+        for (Note note : first.getPart(VoicePart.LEAD)) {
+            ret.addNote(VoicePart.LEAD, note);
+            time += note.getDuration();
+        }
+
+        for (Pair<Integer, Chord> chord : second.getChords()) {
+            ret.addChord(time + chord.getLeft(), chord.getRight());
+        }
+
+        for (Note note : second.getPart(VoicePart.LEAD)) {
+            ret.addNote(VoicePart.LEAD, note);
+        }
+
+        return ret;
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}
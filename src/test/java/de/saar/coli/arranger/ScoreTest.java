@@ -65,6 +65,22 @@ public class ScoreTest {
         assertEquals(Chord.lookup("G7"), score.getChordAtTime(7));
     }
 
+    @Test
+    public void testSplitAtChordChanges() {
+        Score score = new Score("", "", "C", 4);
+        score.addChord(0, Chord.lookup("C"));
+        score.addChord(2, Chord.lookup("C")); // restated, does not split
+        score.addChord(4, Chord.lookup("G7"));
+        score.addChord(6, Chord.lookup("C"));
+        score.addChord(8, Chord.lookup("F"));
+        score.addNote(VoicePart.LEAD, Note.create("E4", 8));
+        score.addNote(VoicePart.LEAD, Note.create("F4", 8));
+
+        Score split = score.splitAtChordChanges();
+        assertEquals(List.of(Note.create("E4", 4), Note.create("E4", 2), Note.create("E4", 2), Note.create("F4", 8)), split.getPart(VoicePart.LEAD));
+        assertEquals(5, split.getChords().size());
+    }
+
     @Test
     public void testWords() throws AbcParser.AbcParsingException, IOException {
         Score score = new AbcParser().read(new InputStreamReader(this.getClass().getResourceAsStream("/downourway.abc")));
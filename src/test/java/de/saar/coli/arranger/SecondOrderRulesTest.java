@@ -0,0 +1,119 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.rules.LdConsecutiveLeaps;
+import de.saar.coli.arranger.rules.LdUnresolvedLeaps;
+import de.saar.coli.arranger.rules.SecondOrderVoiceLeadingRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class SecondOrderRulesTest {
+    @Test
+    public void testRules() throws IOException {
+        Config config = Arrange.loadConfig(null);
+        config.getScores().setConsecutiveLeaps(-10);
+        config.getScores().setUnresolvedLeaps(-5);
+
+        // the baritone leaps up a fourth and then down a fifth; the tenor leaps up a fourth and steps down
+        Note[] before = voicing("B3", "G3", "D3", "G2");
+        Note[] from = voicing("E4", "G3", "G3", "G2");
+        Note[] to = voicing("D4", "G3", "C3", "G2");
+
+        assertEquals(-10, new LdConsecutiveLeaps().score(before, from, to, config));
+        assertEquals(-5, new LdUnresolvedLeaps().score(before, from, to, config));
+        assertEquals(-20, new LdConsecutiveLeaps().getLowestScore(config));
+        assertEquals(-30, Arrange.getSecondOrderBound(config));
+
+        // a bonus makes the rule active as well
+        config.getScores().setConsecutiveLeaps(10);
+        assertEquals(20, new LdConsecutiveLeaps().getHighestScore(config));
+        assertEquals(-30, Arrange.getSecondOrderBound(config));
+
+        config.getScores().setConsecutiveLeaps(0);
+        config.getScores().setUnresolvedLeaps(0);
+        assertEquals(0, Arrange.getSecondOrderBound(config));
+    }
+
+    @Test
+    public void testArrangeWithBonus() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        config.getScores().setConsecutiveLeaps(30);
+
+        // the bonus is included in the score, and the arrangement is at least as good
+        // as the best one without second-order rules, scored with the bonus
+        Arrange arranger = new Arrange(config);
+        Arrangement arrangement = arranger.arrange(song);
+        Score firstOrder = new Arrange(Arrange.loadConfig(null)).arrange(song).getArrangement();
+        assertEquals(rescore(arranger, config, song, arrangement.getArrangement()), arrangement.getScore());
+        assertTrue(arrangement.getScore() >= rescore(arranger, config, song, firstOrder));
+
+        // the bounds of the coarse lattice take the bonus into account
+        arranger.setCoarseToFine(true);
+        assertEquals(arrangement.getScore(), arranger.arrange(song).getScore());
+    }
+
+    @Test
+    public void testArrange() throws IOException, AbcParser.AbcParsingException, ExecutionException, InterruptedException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+        config.getScores().setConsecutiveLeaps(-30);
+        config.getScores().setUnresolvedLeaps(-30);
+
+        // the score of the arrangement includes the second-order rules
+        Arrange arranger = new Arrange(config);
+        Arrangement arrangement = arranger.arrange(song);
+        assertEquals(rescore(arranger, config, song, arrangement.getArrangement()), arrangement.getScore());
+
+        // the profile is arranged without a union lattice
+        List<Arrangement> arrangements = new MultiProfileArranger(List.of(config, Arrange.loadConfig(null))).arrange(song);
+        assertEquals(arrangement.getScore(), arrangements.get(0).getScore());
+        assertEquals(new Arrange(Arrange.loadConfig(null)).arrange(song).getScore(), arrangements.get(1).getScore());
+    }
+
+    // the total score of the voicings and voice leadings in the arrangement
+    private static int rescore(Arrange arranger, Config config, Score song, Score arrangement) {
+        ColumnarScore columns = ColumnarScore.of(song);
+        int n = columns.countNotes(VoicePart.LEAD);
+        int ret = 0;
+
+        for (int i = 0; i < n; i++) {
+            ret += arranger.scoreVoicing(voicingAt(arrangement, i), columns.getChordAtNote(VoicePart.LEAD, i));
+
+            if (i > 0) {
+                ret += arranger.scoreVoiceLeading(voicingAt(arrangement, i - 1), voicingAt(arrangement, i));
+            }
+
+            if (i > 1) {
+                for (SecondOrderVoiceLeadingRule rule : Arrange.getSecondOrderVoiceLeadingRules()) {
+                    ret += rule.score(voicingAt(arrangement, i - 2), voicingAt(arrangement, i - 1), voicingAt(arrangement, i), config);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static Note[] voicingAt(Score arrangement, int i) {
+        Note[] ret = new Note[4];
+        for (int part = 0; part < 4; part++) {
+            ret[part] = arrangement.getPart(part).get(i);
+        }
+        return ret;
+    }
+
+    // tenor, lead, bari, bass
+    private static Note[] voicing(String... notes) {
+        Note[] ret = new Note[4];
+        for (int part = 0; part < 4; part++) {
+            ret[part] = Note.create(notes[part], 1);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,29 @@
+package de.saar.coli.arranger;
+
+import org.junit.Test;
+
+import static de.saar.coli.arranger.web.StaticAssets.acceptsGzip;
+import static org.junit.Assert.*;
+
+public class StaticAssetsTest {
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(acceptsGzip("gzip"));
+        assertTrue(acceptsGzip("gzip, deflate, br"));
+        assertTrue(acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(acceptsGzip("*"));
+        assertTrue(acceptsGzip("x-gzip"));
+
+        assertFalse(acceptsGzip(null));
+        assertFalse(acceptsGzip(""));
+        assertFalse(acceptsGzip("identity"));
+        assertFalse(acceptsGzip("gzip;q=0"));
+        assertFalse(acceptsGzip("gzip; q=0.000, deflate"));
+        assertFalse(acceptsGzip("*;q=0"));
+        assertFalse(acceptsGzip("notgzip, gzipped"));
+
+        // an explicit entry for gzip overrides the wildcard
+        assertFalse(acceptsGzip("gzip;q=0, *"));
+        assertTrue(acceptsGzip("gzip;q=0.1, *;q=0"));
+    }
+}
@@ -0,0 +1,132 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VoicingLatticeTest {
+    @Test
+    public void testBestScore() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        Arrange arranger = new Arrange(config);
+        VoicingLattice lattice = new VoicingLattice(arranger, config, ColumnarScore.of(song.splitAtChordChanges()));
+
+        assertEquals(arranger.arrange(song).getScore(), lattice.getBestScore());
+
+        // the specialized loops agree with the generic forward algorithm
+        assertEquals(lattice.getTotal(Semiring.MAX_PLUS), lattice.getBestScore(), 0);
+        assertEquals(lattice.getTotal(Semiring.COUNTING), lattice.countArrangements(), 0);
+    }
+
+    @Test
+    public void testCountAndMarginals() throws IOException {
+        Config config = Arrange.loadConfig(null);
+        Score song = new Score("Two notes", null, "C", 4);
+        song.addChord(0, Chord.lookup("C"));
+        song.addChord(4, Chord.lookup("G7"));
+        song.addNote(VoicePart.LEAD, Note.create("E4", 4));
+        song.addNote(VoicePart.LEAD, Note.create("D4", 4));
+
+        Arrange arranger = new Arrange(config);
+        VoicingLattice lattice = new VoicingLattice(arranger, config, ColumnarScore.of(song));
+        int first = lattice.getVoicings(0).size();
+        int second = lattice.getVoicings(1).size();
+        assertTrue(first > 0 && second > 0);
+
+        // every pair of valid voicings is an arrangement
+        assertEquals((double) first * second, lattice.countArrangements(), 0);
+
+        // the probabilities of each note sum to one, and the voicing of the best arrangement is the most likely one at low temperatures
+        double[][] marginals = lattice.getMarginals(1);
+        for (double[] probabilities : marginals) {
+            assertEquals(1, Arrays.stream(probabilities).sum(), 1e-9);
+        }
+
+        Score best = lattice.getBestArrangements(1).get(0).getArrangement();
+        double[][] cold = lattice.getMarginals(0.01);
+        for (int pos = 0; pos < 2; pos++) {
+            int bestVoicing = indexOf(lattice.getVoicings(pos), best, pos);
+            for (double probability : cold[pos]) {
+                assertTrue(probability <= cold[pos][bestVoicing]);
+            }
+        }
+    }
+
+    @Test
+    public void testBestArrangements() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        Arrange arranger = new Arrange(config);
+        VoicingLattice lattice = new VoicingLattice(arranger, config, ColumnarScore.of(song.splitAtChordChanges()));
+        List<Arrangement> best = lattice.getBestArrangements(10);
+
+        assertEquals(10, best.size());
+        assertEquals(lattice.getBestScore(), best.get(0).getScore());
+
+        for (int i = 0; i < best.size(); i++) {
+            Score arrangement = best.get(i).getArrangement();
+            assertEquals(rescore(arranger, arrangement), best.get(i).getScore());
+
+            if (i > 0) {
+                assertTrue(best.get(i).getScore() <= best.get(i - 1).getScore());
+            }
+
+            for (int j = 0; j < i; j++) {
+                assertNotEquals(getHarmonyParts(best.get(j).getArrangement()), getHarmonyParts(arrangement));
+            }
+        }
+    }
+
+    // the score of the arrangement under the rules of the arranger
+    private static int rescore(Arrange arranger, Score arrangement) {
+        ColumnarScore columns = ColumnarScore.of(arrangement);
+        int ret = 0;
+        Note[] previous = null;
+
+        for (int i = 0; i < arrangement.getPart(VoicePart.LEAD).size(); i++) {
+            Note[] voicing = new Note[4];
+            for (int part = 0; part < 4; part++) {
+                voicing[part] = arrangement.getPart(part).get(i);
+            }
+
+            ret += arranger.scoreVoicing(voicing, columns.getChordAtNote(VoicePart.LEAD, i));
+            if (previous != null) {
+                ret += arranger.scoreVoiceLeading(previous, voicing);
+            }
+
+            previous = voicing;
+        }
+
+        return ret;
+    }
+
+    private static List<List<Note>> getHarmonyParts(Score arrangement) {
+        return List.of(arrangement.getPart(VoicePart.TENOR), arrangement.getPart(VoicePart.BARI), arrangement.getPart(VoicePart.BASS));
+    }
+
+    private static int indexOf(List<Note[]> voicings, Score arrangement, int pos) {
+        for (int v = 0; v < voicings.size(); v++) {
+            boolean same = true;
+            for (int part = 0; part < 4; part++) {
+                same = same && voicings.get(v)[part].getAbsoluteNote() == arrangement.getPart(part).get(pos).getAbsoluteNote();
+            }
+
+            if (same) {
+                return v;
+            }
+        }
+
+        return -1;
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}
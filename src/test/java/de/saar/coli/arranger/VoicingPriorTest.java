@@ -0,0 +1,98 @@
+package de.saar.coli.arranger;
+
+import de.saar.coli.arranger.abc.AbcParser;
+import de.saar.coli.arranger.corpus.VoicingPriorLearner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VoicingPriorTest {
+    @Test
+    public void testReadWrite() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        VoicingPrior prior = VoicingPriorLearner.learnFromMelodies(List.of(song), config);
+        assertTrue(prior.getVoicings() > 0);
+
+        StringWriter w = new StringWriter();
+        prior.write(w);
+        VoicingPrior read = VoicingPrior.read(new StringReader(w.toString()));
+        assertEquals(prior.getVoicings(), read.getVoicings());
+
+        // every voicing of the arrangement was counted under its own shape
+        Score arrangement = new Arrange(config).arrange(song).getArrangement();
+        ColumnarScore columns = ColumnarScore.of(arrangement);
+        for (int i = 0; i < arrangement.getPart(VoicePart.LEAD).size(); i++) {
+            Note[] voicing = new Note[4];
+            for (int part = 0; part < 4; part++) {
+                voicing[part] = arrangement.getPart(part).get(i);
+            }
+
+            Chord chord = columns.getChordAtNote(VoicePart.LEAD, i);
+            assertTrue(read.getCount(voicing, chord) > 0);
+            assertEquals(prior.getCount(voicing, chord), read.getCount(voicing, chord));
+        }
+    }
+
+    @Test
+    public void testPruning() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        Arrangement exact = new Arrange(config).arrange(song);
+        VoicingPrior prior = VoicingPriorLearner.learnFromMelodies(List.of(song), config);
+
+        // the prior contains the shapes of the best arrangement, so it is still found
+        Arrange arranger = new Arrange(config);
+        arranger.setVoicingPrior(prior, 1);
+        Arrangement pruned = arranger.arrange(song);
+
+        assertEquals(exact.getScore(), pruned.getScore());
+        assertTrue(arranger.getPrunedVoicings() > 0);
+    }
+
+    @Test
+    public void testEmptyPrior() throws IOException, AbcParser.AbcParsingException {
+        // without counts, no voicing is pruned
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        Arrange arranger = new Arrange(config);
+        arranger.setVoicingPrior(new VoicingPrior(), 0.95);
+
+        assertEquals(new Arrange(config).arrange(song).getScore(), arranger.arrange(song).getScore());
+        assertEquals(0, arranger.getPrunedVoicings());
+    }
+
+    @Test
+    public void testIncrementalArranger() throws IOException, AbcParser.AbcParsingException {
+        Config config = Arrange.loadConfig(null);
+        Score song = readDownOurWay();
+        Arrange arranger = new Arrange(config);
+        IncrementalArranger incremental = new IncrementalArranger(arranger);
+        Arrangement exact = incremental.arrange(song);
+        int columns = incremental.getComputedColumns();
+
+        // the columns of the last call were computed without the prior, so they are not reused
+        arranger.setVoicingPrior(VoicingPriorLearner.learnFromMelodies(List.of(song), config), 0.5);
+        incremental.arrange(song);
+        assertEquals(columns, incremental.getComputedColumns());
+        assertTrue(arranger.getPrunedVoicings() > 0);
+
+        arranger.setVoicingPrior(null, 1);
+        assertEquals(exact.getScore(), incremental.arrange(song).getScore());
+        assertEquals(columns, incremental.getComputedColumns());
+
+        // with the same settings, the columns are reused
+        incremental.arrange(song);
+        assertEquals(0, incremental.getComputedColumns());
+    }
+
+    private Score readDownOurWay() throws IOException, AbcParser.AbcParsingException {
+        return new AbcParser().read(new InputStreamReader(getClass().getResourceAsStream("/downourway.abc")));
+    }
+}